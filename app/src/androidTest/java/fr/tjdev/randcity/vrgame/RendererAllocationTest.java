@@ -0,0 +1,176 @@
+/*
+ * This file is part of RandCity.
+ * Copyright (c) 2015 Fabien Caylus <toutjuste13@gmail.com>
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.tjdev.randcity.vrgame;
+
+import android.opengl.Matrix;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+
+import com.google.vrtoolkit.cardboard.Eye;
+import com.google.vrtoolkit.cardboard.HeadTransform;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.egl.EGLContext;
+import javax.microedition.khronos.egl.EGLDisplay;
+import javax.microedition.khronos.egl.EGLSurface;
+
+import fr.tjdev.randcity.generation.CityConfig;
+import fr.tjdev.randcity.generation.CitySeed;
+
+/**
+ * The render path must not allocate anything once the city is loaded.
+ * A renderer is drawn in an offscreen surface (on the thread of the test, like the GL thread), and objects
+ * allocated by the thread during frames (onNewFrame() and both onDrawEye()) are counted.
+ */
+public class RendererAllocationTest extends AndroidTestCase {
+
+    static private final int EGL_OPENGL_ES2_BIT = 4;
+    static private final int EGL_CONTEXT_CLIENT_VERSION = 0x3098;
+    static private final int SURFACE_SIZE = 256;
+
+    static private final CitySeed SEED = new CitySeed(1);
+    // Frames drawn before counting: buffers of the command list and of the render queue grow
+    static private final int WARM_UP_FRAMES = 30;
+    // Checked frames, less than the interval of the draw time log (300 eyes)
+    static private final int CHECKED_FRAMES = 100;
+    // The streaming city waits for this number of frames without loading chunks before counting
+    static private final int STEADY_FRAMES = 30;
+    static private final int MAX_LOADING_FRAMES = 1000;
+    static private final long LOADING_FRAME_TIME = 10;
+    // The player moves back and forth, without leaving its block
+    static private final float PLAYER_MOVE = 0.05f;
+
+    private EGL10 mEgl;
+    private EGLDisplay mDisplay;
+    private EGLConfig mConfig;
+    private EGLContext mContext;
+    private EGLSurface mSurface;
+
+    private final HeadTransform mHeadTransform = new HeadTransform();
+    private final Eye mLeftEye = new Eye(Eye.Type.LEFT);
+    private final Eye mRightEye = new Eye(Eye.Type.RIGHT);
+    private int mFrame;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mEgl = (EGL10) EGLContext.getEGL();
+        mDisplay = mEgl.eglGetDisplay(EGL10.EGL_DEFAULT_DISPLAY);
+        assertTrue(mEgl.eglInitialize(mDisplay, new int[2]));
+
+        final int[] configAttributes = {
+                EGL10.EGL_RED_SIZE, 8,
+                EGL10.EGL_GREEN_SIZE, 8,
+                EGL10.EGL_BLUE_SIZE, 8,
+                EGL10.EGL_DEPTH_SIZE, 16,
+                EGL10.EGL_RENDERABLE_TYPE, EGL_OPENGL_ES2_BIT,
+                EGL10.EGL_SURFACE_TYPE, EGL10.EGL_PBUFFER_BIT,
+                EGL10.EGL_NONE
+        };
+        final EGLConfig[] configs = new EGLConfig[1];
+        final int[] configsNumber = new int[1];
+        assertTrue(mEgl.eglChooseConfig(mDisplay, configAttributes, configs, 1, configsNumber));
+        assertTrue("No EGL config for OpenGL ES 2", configsNumber[0] > 0);
+        mConfig = configs[0];
+
+        mContext = mEgl.eglCreateContext(mDisplay, mConfig, EGL10.EGL_NO_CONTEXT,
+                new int[]{EGL_CONTEXT_CLIENT_VERSION, 2, EGL10.EGL_NONE});
+        assertNotSame(EGL10.EGL_NO_CONTEXT, mContext);
+        mSurface = mEgl.eglCreatePbufferSurface(mDisplay, mConfig,
+                new int[]{EGL10.EGL_WIDTH, SURFACE_SIZE, EGL10.EGL_HEIGHT, SURFACE_SIZE, EGL10.EGL_NONE});
+        assertNotSame(EGL10.EGL_NO_SURFACE, mSurface);
+        assertTrue(mEgl.eglMakeCurrent(mDisplay, mSurface, mSurface, mContext));
+
+        // Eyes are on each side of the head
+        Matrix.setIdentityM(mLeftEye.getEyeView(), 0);
+        Matrix.translateM(mLeftEye.getEyeView(), 0, 0.03f, 0.0f, 0.0f);
+        Matrix.setIdentityM(mRightEye.getEyeView(), 0);
+        Matrix.translateM(mRightEye.getEyeView(), 0, -0.03f, 0.0f, 0.0f);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mEgl.eglMakeCurrent(mDisplay, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_CONTEXT);
+        mEgl.eglDestroySurface(mDisplay, mSurface);
+        mEgl.eglDestroyContext(mDisplay, mContext);
+        mEgl.eglTerminate(mDisplay);
+        super.tearDown();
+    }
+
+    public void testFullCityDoesNotAllocate() throws InterruptedException {
+        checkAllocations(false);
+    }
+
+    public void testStreamingCityDoesNotAllocate() throws InterruptedException {
+        checkAllocations(true);
+    }
+
+    private void checkAllocations(boolean streamingCity) throws InterruptedException {
+        final VRRenderer renderer = new VRRenderer(getContext(), true, SEED, CityConfig.DEFAULT, streamingCity);
+        try {
+            renderer.onSurfaceCreated(mConfig);
+            renderer.onSurfaceChanged(SURFACE_SIZE, SURFACE_SIZE);
+
+            for (int i = 0; i < WARM_UP_FRAMES; ++i) {
+                drawFrame(renderer);
+            }
+            // Chunks are generated in the background, wait until all chunks around the player are uploaded
+            if (streamingCity) {
+                int steadyFrames = 0;
+                for (int i = 0; steadyFrames < STEADY_FRAMES; ++i) {
+                    assertTrue("Chunks are still loaded after " + Integer.toString(i) + " frames",
+                            i < MAX_LOADING_FRAMES);
+                    drawFrame(renderer);
+                    steadyFrames = renderer.mSteadyFrame ? steadyFrames + 1 : 0;
+                    Thread.sleep(LOADING_FRAME_TIME);
+                }
+            }
+
+            // The renderer logs the draw time every 300 eyes in debug (this allocates), start a new interval
+            renderer.mDrawCount = 0;
+
+            Debug.startAllocCounting();
+            int allocations = 0;
+            for (int i = 0; i < CHECKED_FRAMES; ++i) {
+                final int startCount = Debug.getThreadAllocCount();
+                drawFrame(renderer);
+                allocations += Debug.getThreadAllocCount() - startCount;
+                if (streamingCity) {
+                    assertTrue("Chunks loaded during checked frames", renderer.mSteadyFrame);
+                }
+            }
+            Debug.stopAllocCounting();
+
+            assertEquals(Integer.toString(allocations) + " objects allocated in "
+                    + Integer.toString(CHECKED_FRAMES) + " frames", 0, allocations);
+        } finally {
+            renderer.onRendererShutdown();
+        }
+    }
+
+    // One frame of the stereo renderer: the new frame, then each eye
+    private void drawFrame(VRRenderer renderer) {
+        renderer.movePlayer((mFrame++ % 2 == 0) ? PLAYER_MOVE : -PLAYER_MOVE, 0.0f, 0.0f);
+        renderer.onNewFrame(mHeadTransform);
+        renderer.onDrawEye(mLeftEye);
+        renderer.onDrawEye(mRightEye);
+    }
+}
@@ -35,9 +35,23 @@ public class MainActivity extends MainMenuActivity {
         // Add items to the menu
         super.addItem(R.drawable.icon, R.string.vrGameLabel, R.string.vrGameSubtitle, VRGameActivity.class, false);
 
-        // Add debug item on debug builds
+        // The streaming city has no limit
+        Bundle streamingExtras = new Bundle();
+        streamingExtras.putBoolean(VRGameActivity.EXTRA_STREAMING_CITY, true);
+        super.addItem(R.drawable.icon, R.string.vrStreamingGameLabel, R.string.vrStreamingGameSubtitle,
+                VRGameActivity.class, false, streamingExtras);
+
+        // Add debug items on debug builds
         if (BuildConfig.DEBUG) {
             super.addItem(R.drawable.icon, R.string.vrGameLabel, R.string.vrGameSubtitle, VRGameActivity.class, true);
+            super.addItem(R.drawable.icon, R.string.vrStreamingGameLabel, R.string.vrStreamingGameSubtitle,
+                    VRGameActivity.class, true, streamingExtras);
+
+            // Stress test with a really large city
+            Bundle megaExtras = new Bundle();
+            megaExtras.putBoolean(VRGameActivity.EXTRA_MEGA_CITY, true);
+            super.addItem(R.drawable.icon, R.string.vrMegaCityLabel, R.string.vrMegaCitySubtitle,
+                    VRGameActivity.class, true, megaExtras);
         }
 
         // Set the header text
@@ -18,25 +18,34 @@
 
 package fr.tjdev.randcity.generation;
 
-import android.graphics.Bitmap;
-import android.graphics.Canvas;
 import android.graphics.Color;
-import android.graphics.Rect;
-import android.graphics.Region;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import fr.tjdev.commonvrlibrary.shapes.Cube;
+import fr.tjdev.commonvrlibrary.shapes.IndexedMesh;
 import fr.tjdev.commonvrlibrary.util.Random;
 import fr.tjdev.commonvrlibrary.util.RectF3D;
 
 /**
  * This class represent a building (with some information)
- * Building objects are created with the static method generateBuilding()
+ * Buildings are stored in a CityModel, generated with the static method generateAllBuildings().
+ * A Building object is only a view over one building of the model.
  * VBOs are used to render buildings
  */
 public class Building {
 
+    // Cities with less buildings are generated on one thread, tasks would cost more than they save
+    // (the default city is generated in a few tens of microseconds)
+    static public final int PARALLEL_MIN_BUILDINGS = 4096;
+
     // Position of normals
     static public final float[] normals = {
             // Front face
@@ -123,17 +132,46 @@ public class Building {
             0.0f, 0.0f,
     };
 
-    // Contains positions of all vertex in the building
-    public float[] positions;
-    // Contains the color of the building
-    public float[] color;
-    // Contains the coordinates of the center of the building square.
-    public float[] centerCoordinates;
+    // Shape of all buildings: a cube of size 1 without the bottom face, with shared vertices.
+    // Each building scales its positions (see CityModel.generatePositions()).
+    static public final IndexedMesh mesh = IndexedMesh.create(
+            Arrays.copyOf(Cube.generateCuboid(0.0f, 0.0f, 0.0f, 1.0f, 1.0f, 1.0f, false), normals.length),
+            normals, textureCoordinates);
+
+    // The model that contains the data of this building
+    public final CityModel model;
+    // Index of this building in the model
+    public final int index;
+
+    // Buildings are views over a CityModel, use CityModel.get() to have one.
+    Building(CityModel model, int index) {
+        this.model = model;
+        this.index = index;
+    }
+
+    // Return the coordinates of the center of the building square.
+    public float[] getCenterCoordinates() {
+        return new float[]{model.centerX[index], 0.0f, model.centerZ[index]};
+    }
+
+    // Return the height (from the floor) of the building
+    public float getHeight() {
+        return model.heights[index];
+    }
 
-    // Contains the height (from the floor) of the building
-    public float height;
+    // Return the color of the building (RGBA)
+    public float[] getColor() {
+        final float[] color = new float[4];
+        System.arraycopy(model.colors, index * 4, color, 0, 4);
+        return color;
+    }
 
-    // Contains the type of texture used by this building.
+    // Return positions of all vertices of the building (in the order of the mesh)
+    public float[] getPositions() {
+        return model.generatePositions(index);
+    }
+
+    // Return the type of texture used by this building.
     // Index are mapped as this :
     // 0 --> fuzzy windows
     // 1 --> "
@@ -157,24 +195,19 @@ public class Building {
     // linear --> 40 %
     //
     // In each category of texture, the chance to have one to another are the same
-    public int textureType;
-
-    static public Building generateBuilding(float topLeftX, float topLeftZ) {
-        Building build = new Building();
+    public int getTextureType() {
+        return model.textureTypes[index];
+    }
 
-        // Generate the center coordinates
-        build.centerCoordinates = new float[]{
-                topLeftX + GenUtil.HALF_BUILD_SQUARE_WIDTH,
-                0.0f,
-                topLeftZ + GenUtil.HALF_BUILD_SQUARE_WIDTH
-        };
+    /**
+     * Generate a building at the specified position, and store it in the model at the specified index.
+     * All random values are taken from the specified generator.
+     */
+    static public void generateBuilding(CityModel model, int index, float topLeftX, float topLeftZ, Random rand) {
+        final CityConfig config = model.config;
 
         // Generate a random height for the building.
-        Random rand = new Random();
-        build.height = (float) rand.intBetween(GenUtil.BUILD_MIN_HEIGHT, GenUtil.BUILD_MAX_HEIGHT);
-
-        build.positions = Cube.generateCuboid(topLeftX, 0.0f, topLeftZ,
-                GenUtil.BUILD_SQUARE_WIDTH, build.height, GenUtil.BUILD_SQUARE_WIDTH, false);
+        final float height = (float) rand.intBetween(config.buildMinHeight, config.buildMaxHeight);
 
         // Generate a random color (a variant of grey)
         // Color are represented with values between 0.00f, and 1.00f
@@ -204,251 +237,166 @@ public class Building {
             }
         } // Only 1% of white
 
-        build.color = new float[]{red/100.0f, green/100.0f, blue/100.0f, 1.0f};
-        /*final int randColor = rand.nextInt(5);
-        if (randColor == 0) {
-            build.color = new float[]{242.0f/256.0f, 143.0f/256.0f, 138.0f/256.0f, 1.0f};
-        } else if (randColor == 1) {
-            build.color = new float[]{143.0f/256.0f, 242.0f/256.0f, 138.0f/256.0f, 1.0f};
-        } else if (randColor == 2) {
-            build.color = new float[]{138.0f/256.0f, 141.0f/256.0f, 242.0f/256.0f, 1.0f};
-        } else if (randColor == 3) {
-            build.color = new float[]{233.0f/256.0f, 138.0f/256.0f, 242.0f/256.0f, 1.0f};
-        } else if (randColor == 4) {
-            build.color = new float[]{242.0f/256.0f, 159.0f/256.0f, 100.0f/256.0f, 1.0f};
-        }*/
-
         // Generate the texture type
+        int textureType;
         if(rand.chance(60)) {
             // Fuzzy
-            build.textureType = rand.nextInt(GenUtil.TEX_TYPES_NB / 2);
+            textureType = rand.nextInt(GenUtil.TEX_TYPES_NB / 2);
         } else {
             // Linear
-            build.textureType = rand.nextInt(GenUtil.TEX_TYPES_NB / 2) + GenUtil.TEX_TYPES_NB / 2;
+            textureType = rand.nextInt(GenUtil.TEX_TYPES_NB / 2) + GenUtil.TEX_TYPES_NB / 2;
         }
 
-        return build;
+        model.set(index, topLeftX + config.halfBuildSquareWidth, topLeftZ + config.halfBuildSquareWidth,
+                height, red/100.0f, green/100.0f, blue/100.0f, textureType);
     }
 
     /**
-     * Generate a list of buildings (all buildings in the city grid)
+     * Generate all buildings in the city grid.
+     * Each building use its own random stream derived from the seed and its block,
+     * so the same seed always gives the same city.
      */
-    static public ArrayList<Building> generateAllBuildings() {
-        ArrayList<Building> builds = new ArrayList<>();
-        final float firstPoint = GenUtil.HALF_ROAD_WIDTH + GenUtil.HALF_DIFF_BETWEEN_ROADS;
-
-        for (float x = firstPoint;
-             x <= GenUtil.HALF_GRID_SIZE;
-             x += GenUtil.SPACE_BETWEEN_ROADS) {
-            for (float z = firstPoint;
-                 z <= GenUtil.HALF_GRID_SIZE;
-                 z += GenUtil.SPACE_BETWEEN_ROADS) {
-                // Bottom-right part of the city
-                builds.add(generateBuilding(x, z));
-                // Bottom-left part
-                builds.add(generateBuilding(-x - GenUtil.BUILD_SQUARE_WIDTH, z));
-                // Top-right part
-                builds.add(generateBuilding(x, -z - GenUtil.BUILD_SQUARE_WIDTH));
-                // Top-left part
-                builds.add(generateBuilding(-x - GenUtil.BUILD_SQUARE_WIDTH, -z - GenUtil.BUILD_SQUARE_WIDTH));
-            }
+    static public CityModel generateAllBuildings(CityConfig config, CitySeed seed) {
+        final int blocksNumber = config.blocksPerHalfSide;
+        final CityModel model = new CityModel(config, config.getBuildingsNumber());
+
+        for (int i = 0; i < blocksNumber; ++i) {
+            generateBuildingsRow(seed, i, blocksNumber, model);
         }
 
-        return builds;
+        return model;
     }
 
     /**
-     * Generate a list of areas where the buildings are. Used to prevent user to walk inside buildings
+     * Same as generateAllBuildings(), but rows of blocks are shared between the calling thread and
+     * threadsNumber - 1 tasks on the executor (the pool of the texture generation, it's not shut down).
+     * Since each building has its own random stream, the result is exactly the same as the serial version.
+     * The calling thread takes rows too, so it never waits for tasks queued behind other work: tasks which
+     * start after the last row are cancelled. Small cities are generated on the calling thread only.
      */
-    static public ArrayList<RectF3D> generateRestrictedAreas(ArrayList<Building> buildings, final float[] treasureCenterCoordinates) {
-        ArrayList<RectF3D> restrictedAreas = new ArrayList<>();
-
-        // All areas contains a margin of 0.8 on each side
-        final float margin = 1.0f;
-        for (Building build : buildings) {
-            // Check if the building is not the treasure
-            if (build.centerCoordinates != treasureCenterCoordinates) {
-                restrictedAreas.add(new RectF3D(build.centerCoordinates[0] - GenUtil.HALF_BUILD_SQUARE_WIDTH - margin,
-                        build.centerCoordinates[2] - GenUtil.HALF_BUILD_SQUARE_WIDTH - margin,
-                        build.centerCoordinates[0] + GenUtil.HALF_BUILD_SQUARE_WIDTH + margin,
-                        build.centerCoordinates[2] + GenUtil.HALF_BUILD_SQUARE_WIDTH + margin,
-                        0.0f,
-                        build.height));
-            }
+    static public CityModel generateAllBuildings(CityConfig config, final CitySeed seed, ExecutorService executor,
+                                                 int threadsNumber) {
+        if (threadsNumber <= 1 || config.getBuildingsNumber() < PARALLEL_MIN_BUILDINGS) {
+            return generateAllBuildings(config, seed);
         }
-        return restrictedAreas;
-    }
 
-    /**
-     * The result bitmap is composed with some random squares with a grey nuance.
-     * If lowDensity set to true, only few windows will be white
-     */
-    static public Bitmap generateFuzzyTexture(boolean lowDensity) {
-        Random rand = new Random();
-        // Randomize width and height (+/- 4 windows)
-        final int nbWinX = rand.moreOrLess(GenUtil.TEX_NB_WINDOW_X, 4) * 4;
-        final int nbWinY = rand.moreOrLess(GenUtil.TEX_NB_WINDOW_Y, 4);
-
-        // Randomize the percentage of chance to have a white glass
-        final int chanceWhiteGlass = lowDensity ? rand.moreOrLess(10, 5) : rand.moreOrLess(20, 10);
-        // Randomize the percentage of chance to repeat the brightness
-        final int chanceToRepeat = lowDensity ? rand.moreOrLess(20, 10) : rand.moreOrLess(40, 20);
-
-        // Create an empty, mutable bitmap
-        Bitmap bitmap = Bitmap.createBitmap(nbWinX * GenUtil.TEX_WINDOW_WIDTH,
-                nbWinY * GenUtil.TEX_WINDOW_HEIGHT, Bitmap.Config.ARGB_8888);
-        // Get a canvas to paint over the bitmap
-        Canvas canvas = new Canvas(bitmap);
-        canvas.drawColor(0);
-
-        // First pass : create white window
-        for (int x = 0; x < nbWinX; ++x) {
-            for (int y = 0; y < nbWinY; ++y) {
-                final int left = x * GenUtil.TEX_WINDOW_WIDTH + GenUtil.TEX_WINDOW_H_BORDER;
-                final int top = y * GenUtil.TEX_WINDOW_HEIGHT + GenUtil.TEX_WINDOW_V_BORDER;
-                canvas.clipRect(new Rect(left, top, left + GenUtil.TEX_WINDOW_GLASS_WIDTH,
-                        top + GenUtil.TEX_WINDOW_GLASS_HEIGHT), Region.Op.REPLACE);
-                // Percentage of chance to have a white glass
-                if (rand.chance(chanceWhiteGlass)) {
-                    canvas.drawColor(GenUtil.WIN_BRIGHT_1);
-                } else {
-                    canvas.drawColor(GenUtil.WIN_DARK);
+        final int blocksNumber = config.blocksPerHalfSide;
+        final CityModel model = new CityModel(config, config.getBuildingsNumber());
+
+        // Each row is taken by one thread, which writes in its own part of the model
+        final AtomicInteger nextRow = new AtomicInteger();
+        final CountDownLatch rowsDone = new CountDownLatch(blocksNumber);
+        final AtomicReference<RuntimeException> error = new AtomicReference<>();
+        final Runnable rowsTask = new Runnable() {
+            @Override
+            public void run() {
+                for (int row = nextRow.getAndIncrement(); row < blocksNumber; row = nextRow.getAndIncrement()) {
+                    try {
+                        generateBuildingsRow(seed, row, blocksNumber, model);
+                    } catch (RuntimeException e) {
+                        error.compareAndSet(null, e);
+                    } finally {
+                        rowsDone.countDown();
+                    }
                 }
             }
-        }
+        };
 
-        // Second pass : Create gradient on the sides of white windows
-        // The second pass is made twice to have a more completed gradient
-        for (int pass = 0 ; pass < 2 ; ++pass) {
-            for (int x2 = 0; x2 < nbWinX; ++x2) {
-                for (int y2 = 0; y2 < nbWinY; ++y2) {
-                    final int left = x2 * GenUtil.TEX_WINDOW_WIDTH + GenUtil.TEX_WINDOW_H_BORDER;
-                    final int top = y2 * GenUtil.TEX_WINDOW_HEIGHT + GenUtil.TEX_WINDOW_V_BORDER;
-                    canvas.clipRect(new Rect(left, top, left + GenUtil.TEX_WINDOW_GLASS_WIDTH,
-                            top + GenUtil.TEX_WINDOW_GLASS_HEIGHT), Region.Op.REPLACE);
-
-                    if (Color.blue(bitmap.getPixel(left, top)) != GenUtil.WIN_BRIGHT_1_RGB) {
-                        // Check the brightness of next windows
-                        final int nextBright = getBrightestInSideWindow(bitmap, left, top);
-                        // There is a chance to repeat the light
-                        if (rand.chance(chanceToRepeat)) {
-                            if (nextBright == GenUtil.WIN_BRIGHT_1_RGB) { // White
-                                canvas.drawColor(GenUtil.WIN_BRIGHT_2);
-                            } else if (nextBright == GenUtil.WIN_BRIGHT_2_RGB) {
-                                canvas.drawColor(GenUtil.WIN_BRIGHT_3);
-                            } else if (nextBright == GenUtil.WIN_BRIGHT_3_RGB) {
-                                canvas.drawColor(GenUtil.WIN_BRIGHT_4);
-                            }
-                        }
-                    }
-                }
+        List<Future<?>> tasks = new ArrayList<>(threadsNumber - 1);
+        for (int i = 1; i < threadsNumber; ++i) {
+            tasks.add(executor.submit(rowsTask));
+        }
+        rowsTask.run();
+
+        try {
+            rowsDone.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Buildings generation interrupted.", e);
+        } finally {
+            for (Future<?> task : tasks) {
+                task.cancel(false);
             }
         }
-        return bitmap;
+        if (error.get() != null) {
+            throw new RuntimeException("Error generating buildings.", error.get());
+        }
+
+        return model;
     }
 
-    static public Bitmap generateLinearTexture() {
-        Random rand = new Random();
-        // Randomize width and height (+/- 4 windows)
-        final int nbWinX = rand.moreOrLess(GenUtil.TEX_NB_WINDOW_X, 4) * 4;
-        final int nbWinY = rand.moreOrLess(GenUtil.TEX_NB_WINDOW_Y, 4);
-
-        // Randomize some values
-        final int spaceLength = rand.moreOrLess(16, 3);
-        final int whiteGlassLength = rand.moreOrLess(16, 3);
-        final int chanceToContinue = rand.moreOrLess(12, 3);
-        final int chanceToStartRow = rand.moreOrLess(12, 3);
-
-        Bitmap bitmap = Bitmap.createBitmap(nbWinX * GenUtil.TEX_WINDOW_WIDTH,
-                nbWinY * GenUtil.TEX_WINDOW_HEIGHT, Bitmap.Config.ARGB_8888);
-        Canvas canvas = new Canvas(bitmap);
-        canvas.drawColor(0);
-
-        // Used to know when there is a minimum of white glass.
-        int whiteCount = 0;
-        // Used to space the row with a minimum.
-        // Set a large number since there is no space at the beginning (unlimited space in fact)
-        int space = 100;
-
-        // Create line of windows (inverse x and y in the loop)
-        for (int y = 0; y < nbWinY; ++y) {
-            for (int x = 0; x < nbWinX; ++x) {
-                final int left = x * GenUtil.TEX_WINDOW_WIDTH + GenUtil.TEX_WINDOW_H_BORDER;
-                final int top = y * GenUtil.TEX_WINDOW_HEIGHT + GenUtil.TEX_WINDOW_V_BORDER;
-                canvas.clipRect(new Rect(left, top, left + GenUtil.TEX_WINDOW_GLASS_WIDTH,
-                        top + GenUtil.TEX_WINDOW_GLASS_HEIGHT), Region.Op.REPLACE);
-
-                // If we are not in a white row and there is a minimum space
-                // and it's the chance to have a white glass
-                if (whiteCount == 0 && space >= spaceLength && rand.chance(chanceToStartRow)) {
-                    whiteCount++;
-                    space = 0;
-                    // Start the gradient
-                    if (rand.chance(50)) {
-                        canvas.drawColor(GenUtil.WIN_BRIGHT_4);
-                    } else {
-                        canvas.drawColor(GenUtil.WIN_BRIGHT_3);
-                    }
-                } else {
-                    // Check the status of the row
-                    if (whiteCount > 0 && whiteCount <= whiteGlassLength) {
-                        if (whiteCount == 1) {
-                            canvas.drawColor(GenUtil.WIN_BRIGHT_2);
-                        } else {
-                            canvas.drawColor(GenUtil.WIN_BRIGHT_1);
-                        }
-                        whiteCount++;
-                    } else if (whiteCount > 0 && rand.chance(chanceToContinue)) {
-                        // Here the row is finished but there is a chance to continue
-                        canvas.drawColor(GenUtil.WIN_BRIGHT_1);
-                        whiteCount++;
-                    } else {
-                        // The row is really finished, reset the counter
-                        whiteCount = 0;
-                        space++;
-                        // Check to begin the gradient
-                        if (space == 1) {
-                            canvas.drawColor(GenUtil.WIN_BRIGHT_2);
-                        } else if (space == 2) {
-                            // Random gradient value
-                            if (rand.chance(50)) {
-                                canvas.drawColor(GenUtil.WIN_BRIGHT_3);
-                            } else {
-                                canvas.drawColor(GenUtil.WIN_BRIGHT_4);
-                            }
-                        } else {
-                            // No need of gradient, set to dark
-                            canvas.drawColor(GenUtil.WIN_DARK);
-                        }
-                    }
-                }
-            }
+    // Generate the 4 buildings (one per part of the city) of each block in the row i.
+    // Buildings are stored in the same order than a serial generation.
+    static private void generateBuildingsRow(CitySeed seed, int i, int blocksNumber, CityModel model) {
+        // i and j are the indexes of the block from the center of the city
+        for (int j = 0; j < blocksNumber; ++j) {
+            final int index = (i * blocksNumber + j) * 4;
+
+            // Bottom-right part of the city
+            generateBlockBuilding(model, index, seed, i, j);
+            // Bottom-left part
+            generateBlockBuilding(model, index + 1, seed, -i - 1, j);
+            // Top-right part
+            generateBlockBuilding(model, index + 2, seed, i, -j - 1);
+            // Top-left part
+            generateBlockBuilding(model, index + 3, seed, -i - 1, -j - 1);
         }
+    }
 
-        return bitmap;
+    // Generate the building of the specified block, using the random stream of this block
+    static public void generateBlockBuilding(CityModel model, int index, CitySeed seed, int blockX, int blockZ) {
+        generateBuilding(model, index, model.config.getBlockTopLeft(blockX), model.config.getBlockTopLeft(blockZ),
+                seed.buildingRandom(blockX, blockZ));
     }
 
-    // Return the higher value in windows on each side of the specified one
-    static private int getBrightestInSideWindow(final Bitmap bitmap, final int left, final int top) {
-        int topVal = 0;
-        int bottomVal = 0;
-        int leftVal = 0;
-        int rightVal = 0;
+    /**
+     * Generate a list of areas where the buildings are. Used to prevent user to walk inside buildings
+     */
+    static public ArrayList<RectF3D> generateRestrictedAreas(CityModel model) {
+        ArrayList<RectF3D> restrictedAreas = new ArrayList<>(model.size);
+        final float halfWidth = model.config.halfBuildSquareWidth;
 
-        if (top - GenUtil.TEX_WINDOW_HEIGHT > 0) {
-            topVal = Color.blue(bitmap.getPixel(left, top - GenUtil.TEX_WINDOW_HEIGHT));
-        }
-        if (top + GenUtil.TEX_WINDOW_HEIGHT < bitmap.getHeight()) {
-            bottomVal = Color.blue(bitmap.getPixel(left, top + GenUtil.TEX_WINDOW_HEIGHT));
-        }
-        if (left - GenUtil.TEX_WINDOW_WIDTH > 0) {
-            leftVal = Color.blue(bitmap.getPixel(left - GenUtil.TEX_WINDOW_WIDTH, top));
+        // All areas contains a margin of 0.8 on each side
+        final float margin = 1.0f;
+        for (int i = 0; i < model.size; ++i) {
+            restrictedAreas.add(new RectF3D(model.centerX[i] - halfWidth - margin,
+                    model.centerZ[i] - halfWidth - margin,
+                    model.centerX[i] + halfWidth + margin,
+                    model.centerZ[i] + halfWidth + margin,
+                    0.0f,
+                    model.heights[i]));
         }
-        if (left + GenUtil.TEX_WINDOW_WIDTH < bitmap.getWidth()) {
-            rightVal = Color.blue(bitmap.getPixel(left + GenUtil.TEX_WINDOW_WIDTH, top));
+        return restrictedAreas;
+    }
+
+    /**
+     * Generate the window texture of the specified type (from 0 to GenUtil.TEX_TYPES_NB).
+     * The first types are composed with some random squares with a grey nuance (only few windows
+     * are white for types 6 and 7), the other ones with rows of windows.
+     */
+    static public WindowTexture generateWindowTexture(CityConfig config, int type, Random rand) {
+        if (type < 6) {
+            return WindowTexture.generateFuzzy(config, false, rand);
+        } else if (type < 8) {
+            return WindowTexture.generateFuzzy(config, true, rand);
         }
+        return WindowTexture.generateLinear(config, rand);
+    }
 
-        // Return the max value between all windows
-        return Math.max(topVal, Math.max(bottomVal, Math.max(leftVal, rightVal)));
+    /**
+     * Pack all window textures in one image (ARGB pixels, row after row), so buildings can be drawn
+     * without rebinding textures.
+     * Texture coordinates of buildings must then be mapped with atlas.mapTextureCoordinates().
+     */
+    static public int[] generateTextureAtlas(WindowTexture[] textures, TextureAtlas atlas) {
+        // Empty parts are transparent, like borders of windows
+        int[] pixels = new int[atlas.width * atlas.height];
+        for (int i = 0; i < textures.length; ++i) {
+            for (int y = 0; y < textures[i].height; ++y) {
+                System.arraycopy(textures[i].pixels, y * textures[i].width, pixels,
+                        (atlas.getY(i) + y) * atlas.width + atlas.getX(i), textures[i].width);
+            }
+        }
+        return pixels;
     }
 }
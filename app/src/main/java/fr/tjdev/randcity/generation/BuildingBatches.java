@@ -0,0 +1,230 @@
+/*
+ * This file is part of RandCity.
+ * Copyright (c) 2015 Fabien Caylus <toutjuste13@gmail.com>
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.tjdev.randcity.generation;
+
+import java.util.Arrays;
+
+import fr.tjdev.commonvrlibrary.shapes.IndexedMesh;
+import fr.tjdev.commonvrlibrary.util.Frustum;
+
+/**
+ * Groups of buildings of the full city merged in the same VBO, so each group is drawn with one draw call.
+ * All buildings use the texture atlas and store their color in their vertices, so a batch only depends on
+ * the place of its buildings: it contains the buildings of a square of BATCH_BLOCKS * BATCH_BLOCKS blocks.
+ * Buildings of a batch are consecutive in the model (it's sorted by sort()), so their vertices are
+ * consecutive too (in the cache and in VBOs).
+ *
+ * Batches are also a uniform grid used for frustum culling: each batch is split in cells of
+ * CELL_BLOCKS * CELL_BLOCKS blocks (buildings of a cell are consecutive too), and the bounding box
+ * of each batch and each cell is kept. Only cells of visible batches are tested, see cull().
+ */
+public class BuildingBatches {
+
+    // Number of blocks on each side of a batch
+    static public final int BATCH_BLOCKS = 16;
+    // Number of blocks on each side of a cell (the size of a chunk of the streaming city)
+    static public final int CELL_BLOCKS = 4;
+    // Maximum number of cells in a batch
+    static public final int MAX_BATCH_CELLS = (BATCH_BLOCKS / CELL_BLOCKS) * (BATCH_BLOCKS / CELL_BLOCKS);
+    // Indices are unsigned shorts, a batch can't have more vertices
+    static public final int MAX_BATCH_BUILDINGS = IndexedMesh.MAX_VERTICES / CityChunk.BUILDING_VERTICES;
+
+    // Number of floats per bounding box (minX, minZ, maxX, maxZ and the height, the bottom is always 0)
+    static private final int BOUNDS_SIZE = 5;
+    // Added to batch coordinates in sort keys (12 bits each), batches from -1024 to 1023 on each side
+    static private final int BATCH_INDEX_BIAS = 0x400;
+
+    // Index of the first building of each cell, followed by the number of buildings
+    protected final int[] mCellFirstBuildings;
+    // Index of the first cell of each batch, followed by the number of cells
+    protected final int[] mBatchFirstCells;
+    // Bounding box of each cell and each batch
+    protected final float[] mCellBounds;
+    protected final float[] mBatchBounds;
+    // Number of buildings of the biggest batch
+    public final int maxBatchBuildings;
+
+    private BuildingBatches(CityModel model, int[] cellFirstBuildings, int[] batchFirstCells) {
+        mCellFirstBuildings = cellFirstBuildings;
+        mBatchFirstCells = batchFirstCells;
+
+        final int cellsNumber = cellFirstBuildings.length - 1;
+        mCellBounds = new float[cellsNumber * BOUNDS_SIZE];
+        for (int cell = 0; cell < cellsNumber; ++cell) {
+            computeBounds(model, cellFirstBuildings[cell], cellFirstBuildings[cell + 1], mCellBounds, cell);
+        }
+
+        mBatchBounds = new float[getBatchesNumber() * BOUNDS_SIZE];
+        int max = 0;
+        for (int batch = 0; batch < getBatchesNumber(); ++batch) {
+            computeBounds(model, getFirstBuilding(batch), getFirstBuilding(batch) + getBuildingsNumber(batch),
+                    mBatchBounds, batch);
+            max = Math.max(max, getBuildingsNumber(batch));
+        }
+        maxBatchBuildings = max;
+    }
+
+    public int getBatchesNumber() {
+        return mBatchFirstCells.length - 1;
+    }
+
+    public int getCellsNumber() {
+        return mCellFirstBuildings.length - 1;
+    }
+
+    public int getFirstBuilding(int batch) {
+        return mCellFirstBuildings[mBatchFirstCells[batch]];
+    }
+
+    public int getBuildingsNumber(int batch) {
+        return mCellFirstBuildings[mBatchFirstCells[batch + 1]] - getFirstBuilding(batch);
+    }
+
+    // Return the horizontal distance between the point and the bounding box of the batch (0 inside)
+    public float getDistance(int batch, float x, float z) {
+        final int offset = batch * BOUNDS_SIZE;
+        return getBoxDistance(mBatchBounds[offset], mBatchBounds[offset + 1], mBatchBounds[offset + 2],
+                mBatchBounds[offset + 3], x, z);
+    }
+
+    /**
+     * Find visible buildings of the batch. Buildings of visible cells are merged in ranges of consecutive
+     * buildings (from the first building of the batch), stored in ranges as (first, count) pairs.
+     * The array must have a place for MAX_BATCH_CELLS ranges.
+     * Return the number of ranges (0 if the batch isn't visible).
+     */
+    public int cull(int batch, Frustum frustum, int[] ranges) {
+        if (!intersects(mBatchBounds, batch, frustum)) {
+            return 0;
+        }
+
+        final int batchFirstBuilding = getFirstBuilding(batch);
+        int rangesNumber = 0;
+        int rangeEnd = -1;
+        for (int cell = mBatchFirstCells[batch]; cell < mBatchFirstCells[batch + 1]; ++cell) {
+            if (!intersects(mCellBounds, cell, frustum)) {
+                continue;
+            }
+
+            final int first = mCellFirstBuildings[cell] - batchFirstBuilding;
+            final int count = mCellFirstBuildings[cell + 1] - mCellFirstBuildings[cell];
+            if (first == rangeEnd) {
+                // Continue the previous range
+                ranges[rangesNumber * 2 - 1] += count;
+            } else {
+                ranges[rangesNumber * 2] = first;
+                ranges[rangesNumber * 2 + 1] = count;
+                rangesNumber++;
+            }
+            rangeEnd = first + count;
+        }
+        return rangesNumber;
+    }
+
+    /**
+     * Sort buildings of the model by batch (and by cell in each batch) and return the batches.
+     * The order of buildings is kept inside a cell, so a model already sorted (like the one stored in
+     * the cache) is not changed.
+     */
+    static public BuildingBatches sort(CityModel model) {
+        final CityConfig config = model.config;
+        final int batchCells = BATCH_BLOCKS / CELL_BLOCKS;
+
+        // From the high bits: the batch (from 0 for the top left one), the cell in the batch and the building.
+        // Batch coordinates are biased by BATCH_INDEX_BIAS, so the sign bit is never set and keys are
+        // sorted as signed longs.
+        long[] keys = new long[model.size];
+        for (int i = 0; i < model.size; ++i) {
+            final int cellX = getGridIndex(config.getBlockIndex(model.centerX[i]), CELL_BLOCKS);
+            final int cellZ = getGridIndex(config.getBlockIndex(model.centerZ[i]), CELL_BLOCKS);
+            final long batchX = getGridIndex(cellX, batchCells) + BATCH_INDEX_BIAS;
+            final long batchZ = getGridIndex(cellZ, batchCells) + BATCH_INDEX_BIAS;
+            final long cell = (cellX - getGridIndex(cellX, batchCells) * batchCells) * batchCells
+                    + cellZ - getGridIndex(cellZ, batchCells) * batchCells;
+            keys[i] = (batchX << 52) | (batchZ << 40) | (cell << 32) | i;
+        }
+        Arrays.sort(keys);
+
+        int[] order = new int[model.size];
+        int[] cellFirstBuildings = new int[model.size + 1];
+        int[] batchFirstCells = new int[model.size + 1];
+        int cellsNumber = 0;
+        int batchesNumber = 0;
+        for (int i = 0; i < model.size; ++i) {
+            order[i] = (int) keys[i];
+            // New batch when the square changes (or when the batch is full)
+            final boolean newBatch = i == 0 || (keys[i] >>> 40) != (keys[i - 1] >>> 40)
+                    || i - cellFirstBuildings[batchFirstCells[batchesNumber - 1]] == MAX_BATCH_BUILDINGS;
+            if (newBatch) {
+                batchFirstCells[batchesNumber++] = cellsNumber;
+            }
+            if (newBatch || (keys[i] >>> 32) != (keys[i - 1] >>> 32)) {
+                cellFirstBuildings[cellsNumber++] = i;
+            }
+        }
+        cellFirstBuildings[cellsNumber] = model.size;
+        batchFirstCells[batchesNumber] = cellsNumber;
+        model.reorder(order);
+
+        return new BuildingBatches(model, Arrays.copyOf(cellFirstBuildings, cellsNumber + 1),
+                Arrays.copyOf(batchFirstCells, batchesNumber + 1));
+    }
+
+    // Return the horizontal distance between the point and the box (0 inside)
+    static public float getBoxDistance(float minX, float minZ, float maxX, float maxZ, float x, float z) {
+        final float dx = Math.max(Math.max(minX - x, x - maxX), 0.0f);
+        final float dz = Math.max(Math.max(minZ - z, z - maxZ), 0.0f);
+        return (float) Math.sqrt(dx * dx + dz * dz);
+    }
+
+    // Return the index of the square of the specified size (in blocks or cells) that contains the block or cell
+    static private int getGridIndex(int index, int size) {
+        // Round to the lower value for negative indexes
+        return index >= 0 ? index / size : ((index + 1) / size) - 1;
+    }
+
+    // Store the bounding box of buildings from first to end (excluded) at the specified index
+    static private void computeBounds(CityModel model, int first, int end, float[] bounds, int index) {
+        final float halfWidth = model.config.halfBuildSquareWidth;
+        float minX = Float.MAX_VALUE;
+        float minZ = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE;
+        float maxZ = -Float.MAX_VALUE;
+        float height = 0.0f;
+        for (int i = first; i < end; ++i) {
+            minX = Math.min(minX, model.centerX[i] - halfWidth);
+            minZ = Math.min(minZ, model.centerZ[i] - halfWidth);
+            maxX = Math.max(maxX, model.centerX[i] + halfWidth);
+            maxZ = Math.max(maxZ, model.centerZ[i] + halfWidth);
+            height = Math.max(height, model.heights[i]);
+        }
+
+        bounds[index * BOUNDS_SIZE] = minX;
+        bounds[index * BOUNDS_SIZE + 1] = minZ;
+        bounds[index * BOUNDS_SIZE + 2] = maxX;
+        bounds[index * BOUNDS_SIZE + 3] = maxZ;
+        bounds[index * BOUNDS_SIZE + 4] = height;
+    }
+
+    static private boolean intersects(float[] bounds, int index, Frustum frustum) {
+        final int offset = index * BOUNDS_SIZE;
+        return frustum.intersectsBox(bounds[offset], 0.0f, bounds[offset + 1],
+                bounds[offset + 2], bounds[offset + 4], bounds[offset + 3]);
+    }
+}
@@ -0,0 +1,671 @@
+/*
+ * This file is part of RandCity.
+ * Copyright (c) 2015 Fabien Caylus <toutjuste13@gmail.com>
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.tjdev.randcity.generation;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+import fr.tjdev.commonvrlibrary.shapes.IShape;
+import fr.tjdev.commonvrlibrary.util.CompressedTexture;
+import fr.tjdev.commonvrlibrary.util.ETC1Encoder;
+import fr.tjdev.commonvrlibrary.util.MeshBuilder;
+import fr.tjdev.commonvrlibrary.util.MipChain;
+import fr.tjdev.randcity.BuildConfig;
+
+/**
+ * On-disk cache of a generated city, stored in the app-private cache directory.
+ * The file contains the buildings (attributes, visible buildings from the streets and interleaved
+ * geometry), the treasure position,
+ * all textures with their mipmaps and the layout of the texture atlas (with the average color of
+ * its textures). Textures are stored only in the format uploaded by the device: ETC1 levels when
+ * it supports them, else raw RGBA pixels. It is read back through a memory mapping, so
+ * geometry and pixels can be passed to OpenGL without any copy or conversion.
+ * Files are keyed by the seed, the config and the generation mode. A header with a version
+ * and a checksum of the metadata is used to detect stale or corrupted files when loading.
+ * Big sections (the geometry and each texture) have their own checksum, only verified when
+ * they are used: a corrupted section is not returned and the file is deleted.
+ */
+public class CityCache {
+    private static final String TAG = "CityCache";
+
+    // Increment it each time the generation or the file format changes
+    static public final int VERSION = 12;
+    // Number of cities kept in the cache, the least recently used ones are deleted
+    static public final int MAX_CACHED_CITIES = 4;
+
+    // Number of floats per vertex in the geometry (position, normal, texture coordinates and color)
+    static public final int VERTEX_FLOATS = MeshBuilder.POSITION_NORMAL_TEXTURE_COLOR.vertexFloats;
+    // Size of the geometry of one building (vertices of Building.mesh, like chunks)
+    static public final int BUILDING_GEOMETRY_BYTES = CityChunk.BUILDING_VERTICES * VERTEX_FLOATS
+            * IShape.BYTES_PER_FLOAT;
+
+    // "RCTY", also used to detect a different byte order
+    static private final int MAGIC = 0x52435459;
+    static private final String FILE_PREFIX = "city_";
+    static private final String FILE_SUFFIX = ".cache";
+
+    // Format of stored textures
+    static public final int TEXTURE_RGBA = 0;
+    static public final int TEXTURE_ETC1 = 1;
+
+    // Fixed part of the header, followed by the description (width, height, format and checksum) of each
+    // texture and by the atlas (width, height, average color, then x, y, width, height of each texture in it)
+    static private final int HEADER_SIZE = 88;
+    static private final int TEXTURE_HEADER_SIZE = 16;
+    static private final int ATLAS_HEADER_SIZE = 24;
+    static private final int ATLAS_RECT_SIZE = 16;
+    static private final int CHECKSUM_CHUNK_SIZE = 64 * 1024;
+
+    static private final int FLAG_DEBUG_GENERATION = 1;
+    static private final int FLAG_STREAMING_CITY = 2;
+
+    protected final File mFile;
+    protected final CitySeed mSeed;
+    protected final CityConfig mConfig;
+    protected final int mFlags;
+
+    // The mapped file (null if not loaded)
+    protected MappedByteBuffer mBuffer;
+
+    protected float[] mTreasurePosition;
+    protected int mBuildingsNumber;
+    protected int[] mTextureWidths;
+    protected int[] mTextureHeights;
+    protected int[] mTextureFormats;
+    protected TextureAtlas mAtlas;
+    protected float[] mAtlasAverageColor;
+    // Number of cells of the street visibility (0 if not stored), and the eye height used to compute it
+    protected int mVisibilityCellsNumber;
+    protected float mVisibilityEyeHeight;
+
+    // Offsets of each part in the file
+    protected int mAtlasOffset;
+    protected int mBuildingsOffset;
+    protected int mVisibilityOffset;
+    protected int mGeometryOffset;
+    // Offsets of the levels (all mipmaps) of each texture
+    protected int[][] mTextureOffsets;
+    // Size of each texture, with all its levels
+    protected int[] mTextureSizes;
+
+    // Checksums of big sections, and whether they have already been verified
+    protected int mGeometryChecksum;
+    protected int[] mTextureChecksums;
+    protected boolean mGeometryVerified;
+    protected boolean[] mTexturesVerified;
+
+    public CityCache(File directory, CitySeed seed, CityConfig config, boolean debugGeneration, boolean streamingCity) {
+        mSeed = seed;
+        mConfig = config;
+        mFlags = (debugGeneration ? FLAG_DEBUG_GENERATION : 0) | (streamingCity ? FLAG_STREAMING_CITY : 0);
+        mFile = new File(directory, FILE_PREFIX + seed.toString() + "_" + Integer.toHexString(config.hashCode())
+                + "_" + Integer.toString(mFlags) + FILE_SUFFIX);
+    }
+
+    public boolean isLoaded() {
+        return mBuffer != null;
+    }
+
+    // Forget the mapped file, save() can then write the city again
+    public void unload() {
+        mBuffer = null;
+    }
+
+    /**
+     * Map the cache file and check its header and the checksum of its metadata.
+     * Return false if there is no valid file for this city, it must then be generated and saved.
+     */
+    public boolean load() {
+        if (!mFile.exists()) {
+            return false;
+        }
+
+        try {
+            RandomAccessFile file = new RandomAccessFile(mFile, "r");
+            try {
+                // The mapping stays valid when the file is closed
+                final FileChannel channel = file.getChannel();
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                buffer.order(ByteOrder.nativeOrder());
+
+                if (!readHeader(buffer)) {
+                    Log.w(TAG, "Stale cache file " + mFile.getName() + ", it will be generated again");
+                    mFile.delete();
+                    return false;
+                }
+                mBuffer = buffer;
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Error reading " + mFile, e);
+            return false;
+        }
+
+        // Used to find the least recently used cities
+        mFile.setLastModified(System.currentTimeMillis());
+        return true;
+    }
+
+    /**
+     * Write the city in the cache. Buildings can be null (for the streaming city).
+     * Buildings are stored in their order, they should be sorted before (see BuildingBatches.sort()).
+     * The street visibility of buildings is optional (it can be null).
+     * Textures must contain all their mipmaps. Compressed textures are optional (the array or its
+     * items can be null), they are stored instead of the uncompressed ones when etc1Supported is true.
+     * Texture coordinates of buildings are mapped in the atlas, the average color is the one of
+     * its textures (see TextureAtlas.getAverageColor()).
+     * On success, the cache is loaded and textures are no longer needed.
+     */
+    public boolean save(CityModel buildings, float[] treasurePosition, MipChain[] textures,
+                        CompressedTexture[] compressedTextures, TextureAtlas atlas, float[] atlasAverageColor,
+                        StreetVisibility visibility, boolean etc1Supported) {
+        final int buildingsNumber = buildings != null ? buildings.size : 0;
+        final int visibilityCellsNumber = visibility != null ? visibility.getVisibleBuildings().length : 0;
+        final int[] widths = new int[textures.length];
+        final int[] heights = new int[textures.length];
+        final int[] formats = new int[textures.length];
+        for (int i = 0; i < textures.length; ++i) {
+            widths[i] = textures[i].width;
+            heights[i] = textures[i].height;
+            if (etc1Supported && compressedTextures != null && compressedTextures[i] != null) {
+                formats[i] = TEXTURE_ETC1;
+            }
+        }
+        final int size = computeLayout(buildingsNumber, visibilityCellsNumber, widths, heights, formats,
+                atlas.getTexturesNumber());
+        final int[] textureChecksums = new int[textures.length];
+
+        // Write in a temporary file, so a partial file is never read
+        final File tempFile = new File(mFile.getPath() + ".tmp");
+        try {
+            MappedByteBuffer buffer;
+            RandomAccessFile file = new RandomAccessFile(tempFile, "rw");
+            try {
+                file.setLength(size);
+                buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+                buffer.order(ByteOrder.nativeOrder());
+
+                writeAtlas(buffer, atlas, atlasAverageColor);
+                if (buildings != null) {
+                    writeBuildings(buffer, buildings, atlas);
+                }
+                if (visibility != null) {
+                    writeVisibility(buffer, visibility, buildingsNumber);
+                }
+                for (int i = 0; i < textures.length; ++i) {
+                    final ByteBuffer[] levels = formats[i] == TEXTURE_ETC1 ? compressedTextures[i].levels
+                            : textures[i].levels;
+                    for (int level = 0; level < mTextureOffsets[i].length; ++level) {
+                        putLevel(buffer, mTextureOffsets[i][level], levels[level]);
+                    }
+                    textureChecksums[i] = computeChecksum(new Adler32(), buffer, mTextureOffsets[i][0],
+                            mTextureSizes[i]);
+                    buffer.putInt(HEADER_SIZE + i * TEXTURE_HEADER_SIZE, widths[i]);
+                    buffer.putInt(HEADER_SIZE + i * TEXTURE_HEADER_SIZE + 4, heights[i]);
+                    buffer.putInt(HEADER_SIZE + i * TEXTURE_HEADER_SIZE + 8, formats[i]);
+                    buffer.putInt(HEADER_SIZE + i * TEXTURE_HEADER_SIZE + 12, textureChecksums[i]);
+                }
+
+                mTreasurePosition = treasurePosition.clone();
+                mBuildingsNumber = buildingsNumber;
+                mTextureWidths = widths;
+                mTextureHeights = heights;
+                mTextureFormats = formats;
+                mAtlas = atlas;
+                mAtlasAverageColor = atlasAverageColor.clone();
+                mVisibilityCellsNumber = visibilityCellsNumber;
+                mVisibilityEyeHeight = visibility != null ? visibility.eyeHeight : 0.0f;
+                // The written data are known to be valid
+                mGeometryChecksum = computeChecksum(new Adler32(), buffer, mGeometryOffset,
+                        buildingsNumber * BUILDING_GEOMETRY_BYTES);
+                mTextureChecksums = textureChecksums;
+                mGeometryVerified = true;
+                mTexturesVerified = new boolean[textures.length];
+                Arrays.fill(mTexturesVerified, true);
+                writeHeader(buffer, computeChecksum(new CRC32(), buffer, HEADER_SIZE, mGeometryOffset - HEADER_SIZE));
+                buffer.force();
+            } finally {
+                file.close();
+            }
+
+            if (!tempFile.renameTo(mFile)) {
+                throw new IOException("Can't rename " + tempFile);
+            }
+            mBuffer = buffer;
+        } catch (IOException e) {
+            Log.w(TAG, "Error writing " + mFile, e);
+            tempFile.delete();
+            return false;
+        }
+
+        deleteOldFiles();
+        return true;
+    }
+
+    public float[] getTreasurePosition() {
+        return mTreasurePosition.clone();
+    }
+
+    // Create a model from the cached buildings
+    public CityModel getBuildings() {
+        final int n = mBuildingsNumber;
+        CityModel model = new CityModel(mConfig, n);
+
+        FloatBuffer floats = getFloats(mBuffer, mBuildingsOffset, n * 7);
+        floats.get(model.centerX);
+        floats.get(model.centerZ);
+        floats.get(model.heights);
+        floats.get(model.colors);
+        getBytes(mBuffer, mBuildingsOffset + n * 7 * IShape.BYTES_PER_FLOAT, n).get(model.textureTypes);
+
+        return model;
+    }
+
+    // Return the street visibility of the cached buildings, null if it's not stored
+    public StreetVisibility getStreetVisibility() {
+        if (mVisibilityCellsNumber == 0) {
+            return null;
+        }
+
+        final int words = getVisibilityWords(mBuildingsNumber);
+        final ByteBuffer flags = getBytes(mBuffer, mVisibilityOffset, mVisibilityCellsNumber);
+        final LongBuffer bits = getBytes(mBuffer, mVisibilityOffset + mVisibilityCellsNumber,
+                mVisibilityCellsNumber * words * 8).asLongBuffer();
+        final long[][] visibleBuildings = new long[mVisibilityCellsNumber][];
+        for (int cell = 0; cell < mVisibilityCellsNumber; ++cell) {
+            if (flags.get(cell) != 0) {
+                visibleBuildings[cell] = new long[words];
+                bits.position(cell * words);
+                bits.get(visibleBuildings[cell]);
+            }
+        }
+        return new StreetVisibility(mConfig, mVisibilityEyeHeight, visibleBuildings);
+    }
+
+    // Return the interleaved geometry of consecutive buildings (CityChunk.BUILDING_VERTICES vertices each),
+    // in the format MeshBuilder.POSITION_NORMAL_TEXTURE_COLOR. Return null if the geometry is corrupted.
+    public FloatBuffer getBuildingsGeometry(int first, int count) {
+        if (!mGeometryVerified) {
+            mGeometryVerified = verifySection("geometry", mGeometryOffset, mBuildingsNumber * BUILDING_GEOMETRY_BYTES,
+                    mGeometryChecksum);
+            if (!mGeometryVerified) {
+                return null;
+            }
+        }
+        return getFloats(mBuffer, mGeometryOffset + first * BUILDING_GEOMETRY_BYTES,
+                count * BUILDING_GEOMETRY_BYTES / IShape.BYTES_PER_FLOAT);
+    }
+
+    // Return the layout of the texture atlas used by buildings
+    public TextureAtlas getAtlas() {
+        return mAtlas;
+    }
+
+    // Return the average color of the textures in the atlas (RGBA from 0 to 1)
+    public float[] getAtlasAverageColor() {
+        return mAtlasAverageColor.clone();
+    }
+
+    public int getTextureWidth(int index) {
+        return mTextureWidths[index];
+    }
+
+    public int getTextureHeight(int index) {
+        return mTextureHeights[index];
+    }
+
+    public int getTextureFormat(int index) {
+        return mTextureFormats[index];
+    }
+
+    /**
+     * Return true if all textures can be uploaded on a device, with or without ETC1 support,
+     * and if they are not corrupted.
+     */
+    public boolean hasValidTextures(boolean etc1Supported) {
+        for (int i = 0; i < mTextureFormats.length; ++i) {
+            if ((mTextureFormats[i] == TEXTURE_ETC1 && !etc1Supported) || !verifyTexture(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Return the RGBA pixels of the texture at the specified index, with all its mipmaps
+    // (null if it's stored in ETC1, or corrupted)
+    public MipChain getTexture(int index) {
+        if (mTextureFormats[index] != TEXTURE_RGBA || !verifyTexture(index)) {
+            return null;
+        }
+
+        final int width = mTextureWidths[index];
+        final int height = mTextureHeights[index];
+        ByteBuffer[] levels = new ByteBuffer[mTextureOffsets[index].length];
+        for (int level = 0; level < levels.length; ++level) {
+            levels[level] = getBytes(mBuffer, mTextureOffsets[index][level],
+                    MipChain.getLevelSize(width, level) * MipChain.getLevelSize(height, level) * 4);
+        }
+        return new MipChain(width, height, levels);
+    }
+
+    // Return the ETC1 version of the texture at the specified index (null if it's stored in RGBA, or corrupted)
+    public CompressedTexture getCompressedTexture(int index) {
+        if (mTextureFormats[index] != TEXTURE_ETC1 || !verifyTexture(index)) {
+            return null;
+        }
+
+        final int width = mTextureWidths[index];
+        final int height = mTextureHeights[index];
+        ByteBuffer[] levels = new ByteBuffer[mTextureOffsets[index].length];
+        for (int level = 0; level < levels.length; ++level) {
+            levels[level] = getBytes(mBuffer, mTextureOffsets[index][level], ETC1Encoder.getEncodedDataSize(
+                    MipChain.getLevelSize(width, level), MipChain.getLevelSize(height, level)));
+        }
+        return new CompressedTexture(width, height, levels);
+    }
+
+    // Compute the offset of each part and return the size of the file
+    protected int computeLayout(int buildingsNumber, int visibilityCellsNumber, int[] widths, int[] heights,
+                                int[] formats, int atlasTexturesNumber) {
+        mAtlasOffset = HEADER_SIZE + widths.length * TEXTURE_HEADER_SIZE;
+        mBuildingsOffset = mAtlasOffset + ATLAS_HEADER_SIZE + atlasTexturesNumber * ATLAS_RECT_SIZE;
+        // 7 floats (center, height and color) and one byte (texture type) per building
+        mVisibilityOffset = align(mBuildingsOffset + buildingsNumber * (7 * IShape.BYTES_PER_FLOAT + 1));
+        // One byte per cell (1 for street cells), then visible buildings of each cell (0 for other cells)
+        mGeometryOffset = align(mVisibilityOffset + visibilityCellsNumber
+                * (1 + getVisibilityWords(buildingsNumber) * 8));
+
+        int offset = mGeometryOffset + buildingsNumber * BUILDING_GEOMETRY_BYTES;
+        mTextureOffsets = new int[widths.length][];
+        mTextureSizes = new int[widths.length];
+        for (int i = 0; i < widths.length; ++i) {
+            mTextureOffsets[i] = new int[MipChain.getLevelsNumber(widths[i], heights[i])];
+            for (int level = 0; level < mTextureOffsets[i].length; ++level) {
+                final int levelWidth = MipChain.getLevelSize(widths[i], level);
+                final int levelHeight = MipChain.getLevelSize(heights[i], level);
+                mTextureOffsets[i][level] = offset;
+                offset += formats[i] == TEXTURE_ETC1 ? ETC1Encoder.getEncodedDataSize(levelWidth, levelHeight)
+                        : levelWidth * levelHeight * 4;
+            }
+            mTextureSizes[i] = offset - mTextureOffsets[i][0];
+        }
+        return offset;
+    }
+
+    // Read the header and check that it matches this city. The layout is computed from it.
+    // Metadata (texture descriptions, the atlas, attributes and visibility of buildings) are after the fixed part
+    // of the header, they are included in its checksum. Checksums of other sections are only read.
+    protected boolean readHeader(ByteBuffer buffer) {
+        if (buffer.capacity() < HEADER_SIZE
+                || buffer.getInt(0) != MAGIC
+                || buffer.getInt(4) != VERSION
+                || buffer.getLong(8) != mSeed.value
+                || buffer.getFloat(16) != mConfig.gridSize
+                || buffer.getFloat(20) != mConfig.spaceBetweenRoads
+                || buffer.getFloat(24) != mConfig.roadWidth
+                || buffer.getFloat(28) != mConfig.mainRoadScale
+                || buffer.getInt(32) != mConfig.buildMinHeight
+                || buffer.getInt(36) != mConfig.buildMaxHeight
+                || buffer.getInt(40) != mFlags) {
+            return false;
+        }
+
+        final int buildingsNumber = buffer.getInt(56);
+        final int texturesNumber = buffer.getInt(60);
+        final int atlasTexturesNumber = buffer.getInt(72);
+        final int visibilityCellsNumber = buffer.getInt(80);
+        if (buildingsNumber < 0 || texturesNumber < 0 || atlasTexturesNumber < 0 || visibilityCellsNumber < 0
+                || HEADER_SIZE + texturesNumber * TEXTURE_HEADER_SIZE + ATLAS_HEADER_SIZE
+                    + atlasTexturesNumber * ATLAS_RECT_SIZE > buffer.capacity()) {
+            return false;
+        }
+
+        final int[] widths = new int[texturesNumber];
+        final int[] heights = new int[texturesNumber];
+        final int[] formats = new int[texturesNumber];
+        final int[] textureChecksums = new int[texturesNumber];
+        for (int i = 0; i < texturesNumber; ++i) {
+            widths[i] = buffer.getInt(HEADER_SIZE + i * TEXTURE_HEADER_SIZE);
+            heights[i] = buffer.getInt(HEADER_SIZE + i * TEXTURE_HEADER_SIZE + 4);
+            formats[i] = buffer.getInt(HEADER_SIZE + i * TEXTURE_HEADER_SIZE + 8);
+            textureChecksums[i] = buffer.getInt(HEADER_SIZE + i * TEXTURE_HEADER_SIZE + 12);
+            if (widths[i] <= 0 || heights[i] <= 0 || (formats[i] != TEXTURE_RGBA && formats[i] != TEXTURE_ETC1)) {
+                return false;
+            }
+        }
+
+        final int size = computeLayout(buildingsNumber, visibilityCellsNumber, widths, heights, formats,
+                atlasTexturesNumber);
+        if (size != buffer.capacity() || buffer.getInt(64) != size
+                || buffer.getInt(68) != computeChecksum(new CRC32(), buffer, HEADER_SIZE,
+                    mGeometryOffset - HEADER_SIZE)) {
+            return false;
+        }
+
+        mTreasurePosition = new float[]{buffer.getFloat(44), buffer.getFloat(48), buffer.getFloat(52)};
+        mBuildingsNumber = buildingsNumber;
+        mTextureWidths = widths;
+        mTextureHeights = heights;
+        mTextureFormats = formats;
+        mGeometryChecksum = buffer.getInt(76);
+        mVisibilityCellsNumber = visibilityCellsNumber;
+        mVisibilityEyeHeight = buffer.getFloat(84);
+        mTextureChecksums = textureChecksums;
+        mGeometryVerified = false;
+        mTexturesVerified = new boolean[texturesNumber];
+        mAtlas = readAtlas(buffer, atlasTexturesNumber);
+        mAtlasAverageColor = new float[4];
+        for (int i = 0; i < 4; ++i) {
+            mAtlasAverageColor[i] = buffer.getFloat(mAtlasOffset + 8 + i * 4);
+        }
+        return true;
+    }
+
+    protected void writeHeader(ByteBuffer buffer, int checksum) {
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putLong(8, mSeed.value);
+        buffer.putFloat(16, mConfig.gridSize);
+        buffer.putFloat(20, mConfig.spaceBetweenRoads);
+        buffer.putFloat(24, mConfig.roadWidth);
+        buffer.putFloat(28, mConfig.mainRoadScale);
+        buffer.putInt(32, mConfig.buildMinHeight);
+        buffer.putInt(36, mConfig.buildMaxHeight);
+        buffer.putInt(40, mFlags);
+        buffer.putFloat(44, mTreasurePosition[0]);
+        buffer.putFloat(48, mTreasurePosition[1]);
+        buffer.putFloat(52, mTreasurePosition[2]);
+        buffer.putInt(56, mBuildingsNumber);
+        buffer.putInt(60, mTextureWidths.length);
+        buffer.putInt(64, buffer.capacity());
+        buffer.putInt(68, checksum);
+        buffer.putInt(72, mAtlas.getTexturesNumber());
+        buffer.putInt(76, mGeometryChecksum);
+        buffer.putInt(80, mVisibilityCellsNumber);
+        buffer.putFloat(84, mVisibilityEyeHeight);
+    }
+
+    protected boolean verifyTexture(int index) {
+        if (!mTexturesVerified[index]) {
+            mTexturesVerified[index] = verifySection("texture " + Integer.toString(index), mTextureOffsets[index][0],
+                    mTextureSizes[index], mTextureChecksums[index]);
+        }
+        return mTexturesVerified[index];
+    }
+
+    // Check a section of the loaded file, the file is deleted if it's corrupted (the mapping stays valid)
+    protected boolean verifySection(String name, int offset, int length, int checksum) {
+        final long startTime = System.nanoTime();
+        if (computeChecksum(new Adler32(), mBuffer, offset, length) != checksum) {
+            Log.w(TAG, "Corrupted " + name + " in " + mFile.getName() + ", it will be generated again");
+            mFile.delete();
+            return false;
+        }
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "Checksum of " + name + " (" + Integer.toString(length / 1024) + " KiB) verified in "
+                    + Long.toString((System.nanoTime() - startTime) / 1000) + " us");
+        }
+        return true;
+    }
+
+    protected TextureAtlas readAtlas(ByteBuffer buffer, int texturesNumber) {
+        final int[] rects = new int[texturesNumber * 4];
+        for (int i = 0; i < rects.length; ++i) {
+            rects[i] = buffer.getInt(mAtlasOffset + ATLAS_HEADER_SIZE + i * 4);
+        }
+        return new TextureAtlas(buffer.getInt(mAtlasOffset), buffer.getInt(mAtlasOffset + 4), rects);
+    }
+
+    protected void writeAtlas(ByteBuffer buffer, TextureAtlas atlas, float[] averageColor) {
+        buffer.putInt(mAtlasOffset, atlas.width);
+        buffer.putInt(mAtlasOffset + 4, atlas.height);
+        for (int i = 0; i < 4; ++i) {
+            buffer.putFloat(mAtlasOffset + 8 + i * 4, averageColor[i]);
+        }
+        final int[] rects = atlas.getRects();
+        for (int i = 0; i < rects.length; ++i) {
+            buffer.putInt(mAtlasOffset + ATLAS_HEADER_SIZE + i * 4, rects[i]);
+        }
+    }
+
+    // Write attributes and geometry of all buildings
+    protected void writeBuildings(ByteBuffer buffer, CityModel buildings, TextureAtlas atlas) {
+        final int n = buildings.size;
+
+        FloatBuffer floats = getFloats(buffer, mBuildingsOffset, n * 7);
+        floats.put(buildings.centerX, 0, n);
+        floats.put(buildings.centerZ, 0, n);
+        floats.put(buildings.heights, 0, n);
+        floats.put(buildings.colors, 0, n * 4);
+        getBytes(buffer, mBuildingsOffset + n * 7 * IShape.BYTES_PER_FLOAT, n).put(buildings.textureTypes, 0, n);
+
+        FloatBuffer geometry = getFloats(buffer, mGeometryOffset, n * BUILDING_GEOMETRY_BYTES / IShape.BYTES_PER_FLOAT);
+        final float[] positions = new float[CityChunk.BUILDING_VERTICES * 3];
+        final float[] textureCoordinates = new float[CityChunk.BUILDING_VERTICES * 2];
+        for (int i = 0; i < n; ++i) {
+            buildings.writePositions(i, positions, 0);
+            atlas.mapTextureCoordinates(buildings.textureTypes[i], Building.mesh.textureCoordinates,
+                    textureCoordinates, 0);
+            for (int vertex = 0; vertex < CityChunk.BUILDING_VERTICES; ++vertex) {
+                geometry.put(positions, vertex * 3, 3);
+                geometry.put(Building.mesh.normals, vertex * 3, 3);
+                geometry.put(textureCoordinates, vertex * 2, 2);
+                geometry.put(buildings.colors, i * 4, 4);
+            }
+        }
+    }
+
+    protected void writeVisibility(ByteBuffer buffer, StreetVisibility visibility, int buildingsNumber) {
+        final long[][] visibleBuildings = visibility.getVisibleBuildings();
+        final int words = getVisibilityWords(buildingsNumber);
+        final LongBuffer bits = getBytes(buffer, mVisibilityOffset + visibleBuildings.length,
+                visibleBuildings.length * words * 8).asLongBuffer();
+        for (int cell = 0; cell < visibleBuildings.length; ++cell) {
+            if (visibleBuildings[cell] != null) {
+                buffer.put(mVisibilityOffset + cell, (byte) 1);
+                bits.position(cell * words);
+                bits.put(visibleBuildings[cell], 0, words);
+            }
+        }
+    }
+
+    // Delete the least recently used cities when there are too many files
+    protected void deleteOldFiles() {
+        File[] files = mFile.getParentFile().listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().startsWith(FILE_PREFIX) && file.getName().endsWith(FILE_SUFFIX);
+            }
+        });
+        if (files == null || files.length <= MAX_CACHED_CITIES) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                // Most recent first
+                return Long.valueOf(rhs.lastModified()).compareTo(lhs.lastModified());
+            }
+        });
+        for (int i = MAX_CACHED_CITIES; i < files.length; ++i) {
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "Delete old cache file " + files[i].getName());
+            }
+            files[i].delete();
+        }
+    }
+
+    // Return a view over a part of the buffer
+    static protected ByteBuffer getBytes(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer bytes = buffer.duplicate();
+        bytes.position(offset);
+        bytes.limit(offset + length);
+        return bytes.slice().order(ByteOrder.nativeOrder());
+    }
+
+    // Copy a whole level (from its start) at the specified offset
+    static protected void putLevel(ByteBuffer buffer, int offset, ByteBuffer level) {
+        ByteBuffer data = level.duplicate();
+        data.clear();
+        getBytes(buffer, offset, data.remaining()).put(data);
+    }
+
+    static protected FloatBuffer getFloats(ByteBuffer buffer, int offset, int length) {
+        return getBytes(buffer, offset, length * IShape.BYTES_PER_FLOAT).asFloatBuffer();
+    }
+
+    // CRC32 is used for the small metadata, Adler32 (faster) for big sections
+    static protected int computeChecksum(Checksum checksum, ByteBuffer buffer, int offset, int length) {
+        final byte[] chunk = new byte[Math.min(length, CHECKSUM_CHUNK_SIZE)];
+        ByteBuffer data = getBytes(buffer, offset, length);
+        while (data.hasRemaining()) {
+            final int chunkLength = Math.min(data.remaining(), chunk.length);
+            data.get(chunk, 0, chunkLength);
+            checksum.update(chunk, 0, chunkLength);
+        }
+        return (int) checksum.getValue();
+    }
+
+    // Number of longs of the visible buildings of a cell (one bit per building)
+    static private int getVisibilityWords(int buildingsNumber) {
+        return (buildingsNumber + 63) / 64;
+    }
+
+    // Align the offset on 4 bytes, so floats can be read directly
+    static private int align(int offset) {
+        return (offset + 3) & ~3;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * This file is part of RandCity.
+ * Copyright (c) 2015 Fabien Caylus <toutjuste13@gmail.com>
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.tjdev.randcity.generation;
+
+import fr.tjdev.commonvrlibrary.shapes.IndexedMesh;
+import fr.tjdev.commonvrlibrary.util.MeshBuilder;
+import fr.tjdev.randcity.shapes.Road;
+
+/**
+ * Represent a square part of the city (chunkBlocks * chunkBlocks blocks), used by the streaming city.
+ * A chunk contains its buildings and the roads around them.
+ * Chunks are generated with the static method generate(), buildings use the same random streams as
+ * the full city, so a chunk is always the same for a given seed.
+ */
+public class CityChunk {
+
+    // Number of vertices and indices per building in the buildings buffers (see Building.mesh)
+    static public final int BUILDING_VERTICES = Building.mesh.verticesNumber;
+    static public final int BUILDING_INDICES = Building.mesh.getIndicesNumber();
+
+    public final int chunkX;
+    public final int chunkZ;
+
+    // Buildings of this chunk
+    public CityModel buildings;
+
+    // Interleaved vertices (positions, normals, texture coordinates and the color of buildings) and indices
+    // ready to be uploaded in VBOs. Builders come from pools, they are given back (and set to null) once uploaded.
+    public MeshBuilder buildingsMesh;
+    public MeshBuilder roadsMesh;
+    public int roadsIndicesNumber;
+
+    // Bounding box of the chunk (buildings and roads), used to skip chunks that are not visible
+    public float minX;
+    public float minZ;
+    public float maxX;
+    public float maxZ;
+    public float maxHeight;
+
+    // Handles of the VBOs (vertices and indices), set once uploaded
+    public int buildingsVBOBuffer;
+    public int buildingsIBOBuffer;
+    public int roadsVBOBuffer;
+    public int roadsIBOBuffer;
+
+    private CityChunk(int chunkX, int chunkZ) {
+        this.chunkX = chunkX;
+        this.chunkZ = chunkZ;
+    }
+
+    // Return a unique key for the specified chunk
+    static public long getKey(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    public long getKey() {
+        return getKey(chunkX, chunkZ);
+    }
+
+    /**
+     * Generate a chunk with its buildings and roads, and fill the buffers (taken from the pools).
+     * Buildings are merged in one mesh with their color in vertices (the pool format must be
+     * MeshBuilder.POSITION_NORMAL_TEXTURE_COLOR), roads are merged in another one.
+     * The building on the skipped block is not generated (used for the treasure).
+     * Texture coordinates of buildings are mapped in the atlas.
+     */
+    static public CityChunk generate(CityConfig config, CitySeed seed, TextureAtlas atlas, MeshBuilder.Pool buildingsPool,
+                                     MeshBuilder.Pool roadsPool, int chunkX, int chunkZ, int skipBlockX, int skipBlockZ) {
+        CityChunk chunk = new CityChunk(chunkX, chunkZ);
+
+        final int firstBlockX = chunkX * config.chunkBlocks;
+        final int firstBlockZ = chunkZ * config.chunkBlocks;
+        final int blocksNumber = config.chunkBlocks * config.chunkBlocks;
+
+        // Generate buildings and roads of each block
+        CityModel model = new CityModel(config, blocksNumber);
+        final int roadsVertices = blocksNumber * Road.BLOCK_ROADS_VERTICES;
+        float[] roadPositions = new float[roadsVertices * 3];
+        float[] roadNormals = new float[roadsVertices * 3];
+        float[] roadTexCoords = new float[roadsVertices * 2];
+
+        int index = 0;
+        int roadIndex = 0;
+        for (int blockX = firstBlockX; blockX < firstBlockX + config.chunkBlocks; ++blockX) {
+            for (int blockZ = firstBlockZ; blockZ < firstBlockZ + config.chunkBlocks; ++blockZ) {
+                Road.generateBlockRoads(config, blockX, blockZ, roadPositions, roadNormals, roadTexCoords,
+                        roadIndex * Road.BLOCK_ROADS_VERTICES);
+                roadIndex++;
+
+                if (blockX != skipBlockX || blockZ != skipBlockZ) {
+                    Building.generateBlockBuilding(model, index, seed, blockX, blockZ);
+                    index++;
+                }
+            }
+        }
+        model.size = index;
+        chunk.buildings = model;
+
+        // Roads after the last blocks are in the chunk
+        chunk.minX = config.getBlockTopLeft(firstBlockX);
+        chunk.minZ = config.getBlockTopLeft(firstBlockZ);
+        chunk.maxX = config.getBlockTopLeft(firstBlockX + config.chunkBlocks);
+        chunk.maxZ = config.getBlockTopLeft(firstBlockZ + config.chunkBlocks);
+        for (int i = 0; i < model.size; ++i) {
+            chunk.maxHeight = Math.max(chunk.maxHeight, model.heights[i]);
+        }
+
+        // Put all buildings in the same buffer, attributes of each building are written in the same arrays
+        chunk.buildingsMesh = buildingsPool.obtain();
+        final float[] positions = new float[BUILDING_VERTICES * 3];
+        final float[] textureCoordinates = new float[BUILDING_VERTICES * 2];
+        final float[] colors = new float[BUILDING_VERTICES * 4];
+        for (int i = 0; i < model.size; ++i) {
+            model.writePositions(i, positions, 0);
+            atlas.mapTextureCoordinates(model.textureTypes[i], Building.mesh.textureCoordinates, textureCoordinates, 0);
+            model.writeColors(i, colors, 0);
+            final int firstVertex = chunk.buildingsMesh.addVertices(BUILDING_VERTICES, positions,
+                    Building.mesh.normals, textureCoordinates, colors);
+            chunk.buildingsMesh.addIndices(Building.mesh.indices, firstVertex);
+        }
+
+        // Triangles of each road share their vertices
+        final IndexedMesh roads = IndexedMesh.create(roadPositions, roadNormals, roadTexCoords);
+        chunk.roadsMesh = roadsPool.obtain();
+        chunk.roadsMesh.addMesh(roads);
+        chunk.roadsIndicesNumber = roads.getIndicesNumber();
+
+        return chunk;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * This file is part of RandCity.
+ * Copyright (c) 2015 Fabien Caylus <toutjuste13@gmail.com>
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.tjdev.randcity.generation;
+
+/**
+ * Contains the layout of a city (grid size, roads, buildings heights, ...).
+ * All other values are computed from the values passed to the constructor.
+ * Use one of the presets (DEFAULT, MEGA_CITY) or create your own.
+ */
+public class CityConfig {
+
+    // The default city
+    static public final CityConfig DEFAULT = new CityConfig(2048.0f, 128.0f, 32.0f, 2.0f, 150, 350);
+    // A really large city (more than 16 000 buildings) used to check how the game scales
+    static public final CityConfig MEGA_CITY = new CityConfig(16384.0f, 128.0f, 32.0f, 2.0f, 150, 350);
+
+    public final float gridSize;
+    public final float halfGridSize;
+
+    public final float spaceBetweenRoads;
+    public final float spaceBetweenRoadsX2;
+
+    // The size of the grid where you can walk
+    public final float allowedGridSize;
+    public final float halfAllowedGridSize;
+
+    public final float roadWidth;
+    public final float halfRoadWidth;
+    public final float mainRoadScale;
+    public final float mainRoadWidth;
+    public final float halfDiffBetweenRoads;
+
+    public final int buildMinHeight;
+    public final int buildMaxHeight;
+    public final int averageBuildHeight;
+
+    // The square for buildings is smaller than the space between roads since this space
+    // is computed from the middle of the road.
+    // So, subtract 2 * the half road width.
+    public final float buildSquareWidth;
+    public final float halfBuildSquareWidth;
+
+    // Position of the first block after the main road (on both axis)
+    public final float firstBlockPos;
+    // Number of blocks from the center of the city to one side
+    public final int blocksPerHalfSide;
+
+    // Number of blocks on each side of a chunk, used by the streaming city
+    public final int chunkBlocks = 4;
+    public final float chunkSize;
+
+    // Some defines for the stairs on the treasure
+    // The width is the same as the square width
+    public final float stairsWidth;
+    public final int stairsNumber = 10;
+    public final float stairsDepth;
+    public final float stairsHeight;
+
+    // Used in texture generation to determine the size of bitmaps
+    public final int texNbWindowX;
+    public final int texNbWindowY;
+
+    public CityConfig(float gridSize, float spaceBetweenRoads, float roadWidth, float mainRoadScale,
+                      int buildMinHeight, int buildMaxHeight) {
+        this.gridSize = gridSize;
+        halfGridSize = gridSize / 2.0f;
+
+        this.spaceBetweenRoads = spaceBetweenRoads;
+        spaceBetweenRoadsX2 = spaceBetweenRoads * 2.0f;
+
+        allowedGridSize = gridSize - (spaceBetweenRoads * 2.0f);
+        halfAllowedGridSize = allowedGridSize / 2.0f;
+
+        this.roadWidth = roadWidth;
+        halfRoadWidth = roadWidth / 2.0f;
+        this.mainRoadScale = mainRoadScale;
+        mainRoadWidth = roadWidth * mainRoadScale;
+        halfDiffBetweenRoads = (mainRoadWidth - roadWidth) / 2.0f;
+
+        this.buildMinHeight = buildMinHeight;
+        this.buildMaxHeight = buildMaxHeight;
+        averageBuildHeight = (buildMinHeight + buildMaxHeight) / 2;
+
+        buildSquareWidth = spaceBetweenRoads - roadWidth;
+        halfBuildSquareWidth = buildSquareWidth / 2.0f;
+
+        firstBlockPos = halfRoadWidth + halfDiffBetweenRoads;
+        blocksPerHalfSide = (int) ((halfGridSize - firstBlockPos) / spaceBetweenRoads) + 1;
+
+        chunkSize = chunkBlocks * spaceBetweenRoads;
+
+        stairsWidth = buildSquareWidth;
+        stairsDepth = stairsWidth / (float) stairsNumber;
+        stairsHeight = stairsDepth;
+
+        texNbWindowX = (int) (buildSquareWidth) / 4;
+        texNbWindowY = averageBuildHeight / 6;
+    }
+
+    // Return the number of buildings in the full city
+    public int getBuildingsNumber() {
+        return blocksPerHalfSide * blocksPerHalfSide * 4;
+    }
+
+    // Return the top left coordinate (on one axis) of the block at the specified index.
+    // Blocks are indexed from the center of the city, negative indexes are on the left/top parts.
+    public float getBlockTopLeft(int block) {
+        if (block >= 0) {
+            return firstBlockPos + block * spaceBetweenRoads;
+        }
+        return -getBlockTopLeft(-block - 1) - buildSquareWidth;
+    }
+
+    // Return the index of the block that contains (or is just before) the specified coordinate.
+    public int getBlockIndex(float coord) {
+        if (coord >= 0.0f) {
+            return Math.max(0, (int) Math.floor((coord - firstBlockPos) / spaceBetweenRoads));
+        }
+        return -getBlockIndex(-coord) - 1;
+    }
+
+    // Return the index of the chunk that contains the specified block
+    public int getChunkIndex(int block) {
+        // Round to the lower value for negative blocks
+        return block >= 0 ? block / chunkBlocks : ((block + 1) / chunkBlocks) - 1;
+    }
+
+    // All other values are computed from the values passed to the constructor, so only compare them
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        CityConfig config = (CityConfig) o;
+        return gridSize == config.gridSize && spaceBetweenRoads == config.spaceBetweenRoads
+                && roadWidth == config.roadWidth && mainRoadScale == config.mainRoadScale
+                && buildMinHeight == config.buildMinHeight && buildMaxHeight == config.buildMaxHeight;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = Float.floatToIntBits(gridSize);
+        result = 31 * result + Float.floatToIntBits(spaceBetweenRoads);
+        result = 31 * result + Float.floatToIntBits(roadWidth);
+        result = 31 * result + Float.floatToIntBits(mainRoadScale);
+        result = 31 * result + buildMinHeight;
+        result = 31 * result + buildMaxHeight;
+        return result;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * This file is part of RandCity.
+ * Copyright (c) 2015 Fabien Caylus <toutjuste13@gmail.com>
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.tjdev.randcity.generation;
+
+/**
+ * Contains all buildings of the city, stored in parallel arrays of primitives.
+ * A building is only an index in these arrays, use get() to have a Building view over it.
+ * The geometry is not stored, it's computed on demand with generatePositions().
+ */
+public class CityModel {
+
+    // The layout of the city
+    public final CityConfig config;
+
+    // Number of buildings in the model
+    public int size;
+
+    // Coordinates of the center of the building square (the Y coordinate is always 0)
+    public float[] centerX;
+    public float[] centerZ;
+
+    // Height (from the floor) of each building
+    public float[] heights;
+
+    // Colors of the buildings, in RGBA format (4 values per building)
+    public float[] colors;
+
+    // Type of texture used by each building (see Building.getTextureType())
+    public byte[] textureTypes;
+
+    // Create a model with the specified number of buildings.
+    // Values must be set with set() before using them.
+    public CityModel(CityConfig config, int size) {
+        this.config = config;
+        this.size = size;
+        centerX = new float[size];
+        centerZ = new float[size];
+        heights = new float[size];
+        colors = new float[size * 4];
+        textureTypes = new byte[size];
+    }
+
+    // Set all values of the building at the specified index
+    public void set(int index, float centerX, float centerZ, float height,
+                    float red, float green, float blue, int textureType) {
+        this.centerX[index] = centerX;
+        this.centerZ[index] = centerZ;
+        heights[index] = height;
+        colors[index * 4] = red;
+        colors[index * 4 + 1] = green;
+        colors[index * 4 + 2] = blue;
+        colors[index * 4 + 3] = 1.0f;
+        textureTypes[index] = (byte) textureType;
+    }
+
+    // Remove the building at the specified index. Next buildings are moved to keep the order.
+    public void remove(int index) {
+        final int moved = size - index - 1;
+        if (moved > 0) {
+            System.arraycopy(centerX, index + 1, centerX, index, moved);
+            System.arraycopy(centerZ, index + 1, centerZ, index, moved);
+            System.arraycopy(heights, index + 1, heights, index, moved);
+            System.arraycopy(colors, (index + 1) * 4, colors, index * 4, moved * 4);
+            System.arraycopy(textureTypes, index + 1, textureTypes, index, moved);
+        }
+        size--;
+    }
+
+    // Move buildings in the specified order: order[i] is the index of the building moved at index i
+    public void reorder(int[] order) {
+        final float[] oldCenterX = centerX.clone();
+        final float[] oldCenterZ = centerZ.clone();
+        final float[] oldHeights = heights.clone();
+        final float[] oldColors = colors.clone();
+        final byte[] oldTextureTypes = textureTypes.clone();
+        for (int i = 0; i < size; ++i) {
+            final int index = order[i];
+            centerX[i] = oldCenterX[index];
+            centerZ[i] = oldCenterZ[index];
+            heights[i] = oldHeights[index];
+            System.arraycopy(oldColors, index * 4, colors, i * 4, 4);
+            textureTypes[i] = oldTextureTypes[index];
+        }
+    }
+
+    // Return a view over the building at the specified index
+    public Building get(int index) {
+        return new Building(this, index);
+    }
+
+    // Generate positions of all vertices of the building (vertices of Building.mesh, without the bottom face)
+    public float[] generatePositions(int index) {
+        float[] positions = new float[Building.mesh.positions.length];
+        writePositions(index, positions, 0);
+        return positions;
+    }
+
+    // Same as generatePositions(), but positions are written in dst from offset.
+    // Used when building meshes, so the same array is reused for all buildings.
+    public void writePositions(int index, float[] dst, int offset) {
+        final float[] unitPositions = Building.mesh.positions;
+        final float startX = centerX[index] - config.halfBuildSquareWidth;
+        final float startZ = centerZ[index] - config.halfBuildSquareWidth;
+
+        for (int i = 0; i < unitPositions.length; i += 3) {
+            dst[offset + i] = startX + unitPositions[i] * config.buildSquareWidth;
+            dst[offset + i + 1] = unitPositions[i + 1] * heights[index];
+            dst[offset + i + 2] = startZ + unitPositions[i + 2] * config.buildSquareWidth;
+        }
+    }
+
+    // Write the color of all vertices of the building in dst from offset (the same for each vertex of Building.mesh)
+    public void writeColors(int index, float[] dst, int offset) {
+        for (int i = 0; i < Building.mesh.verticesNumber * 4; i += 4) {
+            System.arraycopy(colors, index * 4, dst, offset + i, 4);
+        }
+    }
+}
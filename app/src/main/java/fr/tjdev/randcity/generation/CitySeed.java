@@ -0,0 +1,100 @@
+/*
+ * This file is part of RandCity.
+ * Copyright (c) 2015 Fabien Caylus <toutjuste13@gmail.com>
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.tjdev.randcity.generation;
+
+import fr.tjdev.commonvrlibrary.util.Random;
+
+/**
+ * Represent the seed of a city.
+ * All random generators used by the generation are derived from this single 64-bit value,
+ * so the same seed always produce the same city.
+ * Each building, texture and the treasure get their own independent stream, so the result
+ * does not depend on the order in which they are generated.
+ */
+public class CitySeed {
+
+    // Seed used for debug generations, to always get the same city
+    static public final CitySeed DEBUG_SEED = new CitySeed(0x5EED0F0C17L);
+
+    // Identify each kind of sub-stream
+    static private final long STREAM_BUILDING = 1;
+    static private final long STREAM_TEXTURE = 2;
+    static private final long STREAM_TREASURE = 3;
+
+    public final long value;
+
+    public CitySeed(long value) {
+        this.value = value;
+    }
+
+    // Create a new seed from a non-deterministic source
+    static public CitySeed random() {
+        return new CitySeed(new Random().nextLong());
+    }
+
+    // Random generator used for the building on the specified block.
+    // Blocks are indexed from the center of the city (negative values for the left/top parts).
+    public Random buildingRandom(int blockX, int blockZ) {
+        return new Random(derive(STREAM_BUILDING, blockX, blockZ));
+    }
+
+    // Random generator used for the texture at the specified index
+    public Random textureRandom(int textureIndex) {
+        return new Random(derive(STREAM_TEXTURE, textureIndex, 0));
+    }
+
+    // Random generator used to choose the treasure position
+    public Random treasureRandom() {
+        return new Random(derive(STREAM_TREASURE, 0, 0));
+    }
+
+    // Derive a seed for a sub-stream.
+    // Each component is mixed separately so that close indexes give unrelated seeds.
+    private long derive(long stream, int a, int b) {
+        long h = mix(value + stream * 0x9E3779B97F4A7C15L);
+        h = mix(h ^ (a & 0xFFFFFFFFL));
+        h = mix(h ^ ((long) b << 32));
+        return h;
+    }
+
+    // Finalizer of the SplitMix64 generator
+    static private long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        return value == ((CitySeed) o).value;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (value ^ (value >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return Long.toHexString(value);
+    }
+}
@@ -18,49 +18,15 @@
 
 package fr.tjdev.randcity.generation;
 
-import android.graphics.Color;
-
 /**
  * Contains some constants useful for generation.
+ * Constants that depend on the layout of the city are in CityConfig.
  */
 public class GenUtil {
 
-    static public final float GRID_SIZE = 2048.0f;
-    static public final float HALF_GRID_SIZE = GRID_SIZE / 2.0f;
-
-    static public final float SPACE_BETWEEN_ROADS = 128.0f;
-    static public final float SPACE_BETWEEN_ROADS_X2 = SPACE_BETWEEN_ROADS * 2.0f;
-
-    // The size of the grid where you can walk
-    static public final float ALLOWED_GRID_SIZE = GRID_SIZE - (SPACE_BETWEEN_ROADS * 2.0f);
-    static public final float HALF_ALLOWED_GRID_SIZE = ALLOWED_GRID_SIZE / 2.0f;
-
-    static public final float ROAD_WIDTH = 32.0f;
-    static public final float HALF_ROAD_WIDTH = ROAD_WIDTH / 2.0f;
-    static public final float MAIN_ROAD_SCALE = 2.0f;
-    static public final float MAIN_ROAD_WIDTH = ROAD_WIDTH * MAIN_ROAD_SCALE;
-    static public final float HALF_DIFF_BETWEEN_ROADS = (MAIN_ROAD_WIDTH - ROAD_WIDTH) / 2.0f;
-
-    static public final int BUILD_MIN_HEIGHT = 150;
-    static public final int BUILD_MAX_HEIGHT = 350;
-    static public final int AVERAGE_BUILD_HEIGHT = (BUILD_MIN_HEIGHT + BUILD_MAX_HEIGHT) / 2;
-
     static public final int BUILD_MIN_COLOR = 70;
     static public final int BUILD_MAX_COLOR = 100;
 
-    // The square for buildings is smaller than the space between roads since this space
-    // is computed from the middle of the road.
-    // So, subtract 2 * the half road width.
-    static public final float BUILD_SQUARE_WIDTH = SPACE_BETWEEN_ROADS - ROAD_WIDTH;
-    static public final float HALF_BUILD_SQUARE_WIDTH = BUILD_SQUARE_WIDTH / 2.0f;
-
-    // Some defines for the stairs on the treasure
-    // The width is the same as the square width
-    static public final float STAIRS_WIDTH = BUILD_SQUARE_WIDTH;
-    static public final int STAIRS_NUMBER = 10;
-    static public final float STAIRS_DEPTH = STAIRS_WIDTH / (float)STAIRS_NUMBER;
-    static public final float STAIRS_HEIGHT = STAIRS_DEPTH;
-
     // Width and height for windows
     static public final int TEX_WINDOW_WIDTH = 8;
     static public final int TEX_WINDOW_HEIGHT = 12;
@@ -76,10 +42,6 @@ public class GenUtil {
     static public final int TEX_WINDOW_GLASS_WIDTH = TEX_WINDOW_WIDTH - (TEX_WINDOW_H_BORDER * 2);
     static public final int TEX_WINDOW_GLASS_HEIGHT = TEX_WINDOW_HEIGHT - (TEX_WINDOW_V_BORDER * 2);
 
-    // Used in texture generation to determine the size of bitmaps
-    static public final int TEX_NB_WINDOW_X = (int)(BUILD_SQUARE_WIDTH) / 4;
-    static public final int TEX_NB_WINDOW_Y = AVERAGE_BUILD_HEIGHT / 6;
-
     // The numbers of textures generated
     static public final int TEX_TYPES_NB = 16;
 
@@ -90,11 +52,17 @@ public class GenUtil {
     static public final int WIN_BRIGHT_4_RGB = 50;
     static public final int WIN_DARK_RGB = 20;
 
-    // Generated colors used by canvas
-    static public final int WIN_BRIGHT_1 = Color.rgb(WIN_BRIGHT_1_RGB, WIN_BRIGHT_1_RGB, WIN_BRIGHT_1_RGB);
-    static public final int WIN_BRIGHT_2 = Color.rgb(WIN_BRIGHT_2_RGB, WIN_BRIGHT_2_RGB, WIN_BRIGHT_2_RGB);
-    static public final int WIN_BRIGHT_3 = Color.rgb(WIN_BRIGHT_3_RGB, WIN_BRIGHT_3_RGB, WIN_BRIGHT_3_RGB);
-    static public final int WIN_BRIGHT_4 = Color.rgb(WIN_BRIGHT_4_RGB, WIN_BRIGHT_4_RGB, WIN_BRIGHT_4_RGB);
-    static public final int WIN_DARK = Color.rgb(WIN_DARK_RGB, WIN_DARK_RGB, WIN_DARK_RGB);
+    // Generated colors, in ARGB format (the same as android.graphics.Color)
+    static public final int WIN_BRIGHT_1 = grey(WIN_BRIGHT_1_RGB);
+    static public final int WIN_BRIGHT_2 = grey(WIN_BRIGHT_2_RGB);
+    static public final int WIN_BRIGHT_3 = grey(WIN_BRIGHT_3_RGB);
+    static public final int WIN_BRIGHT_4 = grey(WIN_BRIGHT_4_RGB);
+    static public final int WIN_DARK = grey(WIN_DARK_RGB);
+
+    // Return an opaque grey color, in ARGB format
+    // Color.rgb() is not used, so this class can be used without Android
+    static public int grey(int value) {
+        return 0xFF000000 | (value << 16) | (value << 8) | value;
+    }
 
 }
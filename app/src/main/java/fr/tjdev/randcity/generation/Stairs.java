@@ -24,6 +24,7 @@ import android.util.Log;
 import java.util.ArrayList;
 import java.util.List;
 
+import fr.tjdev.commonvrlibrary.shapes.IndexedMesh;
 import fr.tjdev.commonvrlibrary.util.FloorSurface;
 import fr.tjdev.randcity.BuildConfig;
 
@@ -34,9 +35,8 @@ import fr.tjdev.randcity.BuildConfig;
 public class Stairs {
     static public final String TAG = "Stairs";
 
-    public int verticesNumber;
-    public float[] positionData;
-    public float[] normals;
+    // Faces of all stairs (without texture coordinates)
+    public IndexedMesh mesh;
 
     // RGBA format
     static public final float[] color = {
@@ -70,6 +70,11 @@ public class Stairs {
         }
     }
 
+    // Generate the stairs of the treasure for the specified city
+    static public Stairs generate(CityConfig config) {
+        return generate(config.stairsNumber, config.stairsHeight, config.stairsDepth, config.stairsWidth);
+    }
+
     /**
      * Generate a custom stair object.final float upY
      * @param numberOfStairs The number of stairs, must be a positive integer
@@ -88,10 +93,9 @@ public class Stairs {
 
         Stairs stairs = new Stairs();
 
-        // Resize the buffers
-        stairs.verticesNumber = numberOfStairs*12;
-        stairs.positionData = new float[stairs.verticesNumber*3];
-        stairs.normals = new float[stairs.verticesNumber*3];
+        // Expanded triangles, merged in the mesh at the end
+        final float[] positionData = new float[numberOfStairs*12*3];
+        final float[] normals = new float[numberOfStairs*12*3];
 
         stairs.stairsWidth = width;
         stairs.oneStairDepth = oneStairDepth;
@@ -147,13 +151,15 @@ public class Stairs {
 
             // Copy all pos in the real array
             for(int j=0; j < 18 ; ++j) {
-                stairs.positionData[i*36 + j] = upPosArray[j];
-                stairs.positionData[i*36 + j + 18] = sidePosArray[j];
-                stairs.normals[i*36 + j] = upNormalsArray[j];
-                stairs.normals[i*36 + j + 18] = sideNormalsArray[j];
+                positionData[i*36 + j] = upPosArray[j];
+                positionData[i*36 + j + 18] = sidePosArray[j];
+                normals[i*36 + j] = upNormalsArray[j];
+                normals[i*36 + j + 18] = sideNormalsArray[j];
             }
         }
 
+        stairs.mesh = IndexedMesh.create(positionData, normals, new float[0]);
+
         return stairs;
     }
 }
@@ -0,0 +1,327 @@
+/*
+ * This file is part of RandCity.
+ * Copyright (c) 2015 Fabien Caylus <toutjuste13@gmail.com>
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.tjdev.randcity.generation;
+
+import java.util.Arrays;
+
+/**
+ * Buildings that can be seen from each part of the streets of the full city (a potentially visible set).
+ * The city is a grid of bands on each axis: roads and blocks alternate. A street cell is a cell of this grid
+ * without building (a road, a crossroad or the empty block of the treasure).
+ *
+ * For each street cell, the view is computed from points sampled in the cell with an occlusion horizon:
+ * buildings are processed from the nearest to the farthest (in cells of the grid, so a building is always
+ * processed after the buildings in front of it), and a building is hidden if it's below the horizon made
+ * by buildings in front of it in all its directions. The result is conservative: occluders are shrunk and
+ * targets are expanded by a margin larger than the space between sample points, and heights of occluders
+ * are taken at their farthest point.
+ */
+public class StreetVisibility {
+
+    // Larger cities are not handled: the computation grows with the square of the number of buildings
+    static public final int MAX_BUILDINGS = 1024;
+
+    // Space between points sampled in a street cell
+    static private final float SAMPLE_SPACING = 16.0f;
+    // Larger than the distance between any point of a cell and the nearest sampled point
+    static private final float MARGIN = 12.0f;
+    // Number of parts of the horizon (around the player)
+    static private final int HORIZON_BINS = 2048;
+    // Directions are stored as "diamond angles", from 0 to 4 for a full turn (cheaper than atan2())
+    static private final float FULL_TURN = 4.0f;
+
+    protected final CityConfig mConfig;
+    // Maximum height of the eye of the player (from the ground)
+    public final float eyeHeight;
+
+    // Number of blocks from the center to one side, and number of bands on each axis
+    protected final int mHalfBlocks;
+    protected final int mBands;
+    // Index of the building in each cell of the grid (-1 for street cells), only used by the computation
+    protected final int[] mCellBuildings;
+    // Visible buildings of each street cell (bits of building indexes), null if not computed
+    protected final long[][] mVisibleBuildings;
+
+    // Horizon of the current sampled point: the slope of the top of buildings in each direction
+    private final float[] mHorizon = new float[HORIZON_BINS];
+    private final float[] mCornerAngles = new float[4];
+
+    /**
+     * Compute visible buildings of all street cells where the player can walk.
+     * The model must not be changed after (indexes of buildings are stored).
+     * This is slow (about the square of the number of buildings), it should be done in the background
+     * and stored in the cache.
+     */
+    public StreetVisibility(CityModel model, float eyeHeight) {
+        mConfig = model.config;
+        this.eyeHeight = eyeHeight;
+        mHalfBlocks = mConfig.blocksPerHalfSide;
+        mBands = mHalfBlocks * 4 + 1;
+
+        mCellBuildings = new int[mBands * mBands];
+        Arrays.fill(mCellBuildings, -1);
+        for (int i = 0; i < model.size; ++i) {
+            mCellBuildings[getBand(model.centerX[i]) * mBands + getBand(model.centerZ[i])] = i;
+        }
+
+        // Cells of buildings, sorted later by distance to each street cell
+        int buildingCellsNumber = 0;
+        int[] buildingCells = new int[model.size];
+        for (int cell = 0; cell < mCellBuildings.length; ++cell) {
+            if (mCellBuildings[cell] >= 0) {
+                buildingCells[buildingCellsNumber++] = cell;
+            }
+        }
+        buildingCells = Arrays.copyOf(buildingCells, buildingCellsNumber);
+        final int[] orderedCells = new int[buildingCellsNumber];
+        final int[] distanceCounts = new int[mBands * 2];
+
+        final int words = (model.size + 63) / 64;
+        final float limit = mConfig.halfAllowedGridSize;
+        mVisibleBuildings = new long[mBands * mBands][];
+        for (int bandX = 0; bandX < mBands; ++bandX) {
+            final float minX = Math.max(getBandMin(bandX), -limit);
+            final float maxX = Math.min(getBandMax(bandX), limit);
+            for (int bandZ = 0; bandZ < mBands; ++bandZ) {
+                final float minZ = Math.max(getBandMin(bandZ), -limit);
+                final float maxZ = Math.min(getBandMax(bandZ), limit);
+                final int cell = bandX * mBands + bandZ;
+                // The player can't be there
+                if (mCellBuildings[cell] >= 0 || minX > maxX || minZ > maxZ) {
+                    continue;
+                }
+
+                sortByDistance(buildingCells, bandX, bandZ, distanceCounts, orderedCells);
+                final long[] visible = new long[words];
+                // Sampled points are in the middle of squares of SAMPLE_SPACING covering the cell
+                final int samplesX = Math.max(1, (int) Math.ceil((maxX - minX) / SAMPLE_SPACING));
+                final int samplesZ = Math.max(1, (int) Math.ceil((maxZ - minZ) / SAMPLE_SPACING));
+                for (int i = 0; i < samplesX; ++i) {
+                    for (int j = 0; j < samplesZ; ++j) {
+                        addVisibleBuildings(model, orderedCells,
+                                minX + (maxX - minX) * (i + 0.5f) / samplesX,
+                                minZ + (maxZ - minZ) * (j + 0.5f) / samplesZ, visible);
+                    }
+                }
+                mVisibleBuildings[cell] = visible;
+            }
+        }
+    }
+
+    /**
+     * Use visible buildings computed before for a model of this config (see getVisibleBuildings()),
+     * for example read from the cache.
+     */
+    public StreetVisibility(CityConfig config, float eyeHeight, long[][] visibleBuildings) {
+        mConfig = config;
+        this.eyeHeight = eyeHeight;
+        mHalfBlocks = mConfig.blocksPerHalfSide;
+        mBands = mHalfBlocks * 4 + 1;
+        if (visibleBuildings.length != mBands * mBands) {
+            throw new RuntimeException("Visible buildings of " + Integer.toString(visibleBuildings.length)
+                    + " cells, " + Integer.toString(mBands * mBands) + " expected.");
+        }
+
+        mCellBuildings = null;
+        mVisibleBuildings = visibleBuildings;
+    }
+
+    // Return visible buildings of each cell of the grid (bits of building indexes, null for cells that
+    // aren't street cells). The arrays must not be changed.
+    public long[][] getVisibleBuildings() {
+        return mVisibleBuildings;
+    }
+
+    /**
+     * Return the street cell at this position, or -1 if visible buildings are unknown there
+     * (inside a building or outside the walk area).
+     */
+    public int getCell(float x, float z) {
+        final int cell = getBand(x) * mBands + getBand(z);
+        return mVisibleBuildings[cell] != null ? cell : -1;
+    }
+
+    public boolean isVisible(int cell, int building) {
+        return (mVisibleBuildings[cell][building >>> 6] & (1L << building)) != 0;
+    }
+
+    // Return the number of buildings visible from the cell
+    public int getVisibleNumber(int cell) {
+        int number = 0;
+        for (long word : mVisibleBuildings[cell]) {
+            number += Long.bitCount(word);
+        }
+        return number;
+    }
+
+    // Mark buildings visible from the point
+    protected void addVisibleBuildings(CityModel model, int[] orderedCells, float x, float z, long[] visible) {
+        Arrays.fill(mHorizon, -Float.MAX_VALUE);
+        final float halfWidth = mConfig.halfBuildSquareWidth;
+
+        for (int cell : orderedCells) {
+            final int building = mCellBuildings[cell];
+            final float centerX = model.centerX[building];
+            final float centerZ = model.centerZ[building];
+            final float height = model.heights[building] - eyeHeight;
+
+            // The building as a target, expanded by the margin: visible if its top is above the horizon
+            if ((visible[building >>> 6] & (1L << building)) == 0) {
+                final float size = halfWidth + MARGIN;
+                final float distance = getBoxDistance(centerX, centerZ, size, x, z);
+                if (distance <= 0.0f || isAboveHorizon(centerX, centerZ, size, x, z, height / distance)) {
+                    visible[building >>> 6] |= 1L << building;
+                }
+            }
+
+            // The building as an occluder, shrunk by the margin and with the height of its farthest point
+            final float size = halfWidth - MARGIN;
+            final float farthest = (float) Math.hypot(Math.abs(centerX - x) + halfWidth,
+                    Math.abs(centerZ - z) + halfWidth) + MARGIN;
+            raiseHorizon(centerX, centerZ, size, x, z, height / farthest);
+        }
+    }
+
+    // Return true if the slope is above the horizon in one of the directions of the box
+    private boolean isAboveHorizon(float centerX, float centerZ, float size, float x, float z, float slope) {
+        final float range = computeAngles(centerX, centerZ, size, x, z);
+        // All parts touched by the box
+        final int first = (int) Math.floor(mCornerAngles[0] * HORIZON_BINS / FULL_TURN);
+        final int last = (int) Math.floor((mCornerAngles[0] + range) * HORIZON_BINS / FULL_TURN);
+        for (int bin = first; bin <= last; ++bin) {
+            if (mHorizon[(bin + HORIZON_BINS) % HORIZON_BINS] < slope) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void raiseHorizon(float centerX, float centerZ, float size, float x, float z, float slope) {
+        final float range = computeAngles(centerX, centerZ, size, x, z);
+        // Only parts fully covered by the box
+        final int first = (int) Math.ceil(mCornerAngles[0] * HORIZON_BINS / FULL_TURN);
+        final int end = (int) Math.floor((mCornerAngles[0] + range) * HORIZON_BINS / FULL_TURN);
+        for (int bin = first; bin < end; ++bin) {
+            final int index = (bin + HORIZON_BINS) % HORIZON_BINS;
+            mHorizon[index] = Math.max(mHorizon[index], slope);
+        }
+    }
+
+    /**
+     * Compute directions of the box seen from the point (that must be outside the box).
+     * The first direction is stored in mCornerAngles[0] (from -FULL_TURN to FULL_TURN), and the angle
+     * covered by the box is returned (less than a half turn).
+     */
+    private float computeAngles(float centerX, float centerZ, float size, float x, float z) {
+        final float center = getAngle(centerX - x, centerZ - z);
+        float min = 0.0f;
+        float max = 0.0f;
+        for (int corner = 0; corner < 4; ++corner) {
+            final float cornerX = centerX + ((corner & 1) == 0 ? -size : size);
+            final float cornerZ = centerZ + ((corner & 2) == 0 ? -size : size);
+            float angle = getAngle(cornerX - x, cornerZ - z) - center;
+            // Relative to the center, from -half turn to half turn
+            if (angle > FULL_TURN / 2.0f) {
+                angle -= FULL_TURN;
+            } else if (angle < -FULL_TURN / 2.0f) {
+                angle += FULL_TURN;
+            }
+            min = Math.min(min, angle);
+            max = Math.max(max, angle);
+        }
+        mCornerAngles[0] = center + min;
+        return max - min;
+    }
+
+    // A monotonic function of the angle of the direction, from 0 to FULL_TURN
+    static private float getAngle(float dx, float dz) {
+        final float sum = Math.abs(dx) + Math.abs(dz);
+        if (sum == 0.0f) {
+            return 0.0f;
+        }
+        if (dz >= 0.0f) {
+            return dx >= 0.0f ? dz / sum : 2.0f - dz / sum;
+        }
+        return dx < 0.0f ? 2.0f - dz / sum : 4.0f + dz / sum;
+    }
+
+    // Return the horizontal distance between the point and the square (0 inside)
+    static private float getBoxDistance(float centerX, float centerZ, float size, float x, float z) {
+        final float dx = Math.max(Math.abs(centerX - x) - size, 0.0f);
+        final float dz = Math.max(Math.abs(centerZ - z) - size, 0.0f);
+        return (float) Math.sqrt(dx * dx + dz * dz);
+    }
+
+    // Sort cells of buildings by distance (in cells) to the street cell, with a counting sort
+    private void sortByDistance(int[] cells, int bandX, int bandZ, int[] counts, int[] sorted) {
+        Arrays.fill(counts, 0);
+        for (int cell : cells) {
+            counts[getCellDistance(cell, bandX, bandZ)]++;
+        }
+        int start = 0;
+        for (int distance = 0; distance < counts.length; ++distance) {
+            final int count = counts[distance];
+            counts[distance] = start;
+            start += count;
+        }
+        for (int cell : cells) {
+            sorted[counts[getCellDistance(cell, bandX, bandZ)]++] = cell;
+        }
+    }
+
+    private int getCellDistance(int cell, int bandX, int bandZ) {
+        return Math.abs(cell / mBands - bandX) + Math.abs(cell % mBands - bandZ);
+    }
+
+    /**
+     * Return the band that contains the coordinate. Bands are numbered from the left/top side:
+     * odd bands are blocks, even bands are roads (the first and the last ones go to the infinity).
+     */
+    protected int getBand(float coord) {
+        if (coord < 0.0f) {
+            return mHalfBlocks * 4 - getBand(-coord);
+        }
+        if (coord < mConfig.firstBlockPos) {
+            // The main road, in the middle
+            return mHalfBlocks * 2;
+        }
+        final int block = (int) ((coord - mConfig.firstBlockPos) / mConfig.spaceBetweenRoads);
+        final int band = (block + mHalfBlocks) * 2
+                + (coord - mConfig.getBlockTopLeft(block) < mConfig.buildSquareWidth ? 1 : 2);
+        return Math.min(band, mHalfBlocks * 4);
+    }
+
+    protected float getBandMin(int band) {
+        if (band == 0) {
+            return -Float.MAX_VALUE;
+        }
+        // After the previous block for roads
+        final int block = (band - 1) / 2 - mHalfBlocks;
+        return mConfig.getBlockTopLeft(block) + (band % 2 == 0 ? mConfig.buildSquareWidth : 0.0f);
+    }
+
+    protected float getBandMax(int band) {
+        if (band == mHalfBlocks * 4) {
+            return Float.MAX_VALUE;
+        }
+        // Before the next block for roads
+        final int block = band / 2 - mHalfBlocks;
+        return mConfig.getBlockTopLeft(block) + (band % 2 == 1 ? mConfig.buildSquareWidth : 0.0f);
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * This file is part of RandCity.
+ * Copyright (c) 2015 Fabien Caylus <toutjuste13@gmail.com>
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.tjdev.randcity.generation;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Layout of several textures packed in one big texture, so they can be used without rebinding.
+ * The layout only depends on the size of textures: create it with pack(), then copy each texture
+ * at its position (getX(), getY()) and use mapTextureCoordinates() to draw it.
+ * Textures are packed on shelves (rows of textures), the highest ones first.
+ * There is no padding between textures: borders of window textures are transparent, so neighbours
+ * are the same as the texture edges.
+ * The width and the height are powers of two, so the atlas can be mipmapped (OpenGL ES 2 doesn't
+ * support mipmaps of other sizes).
+ */
+public class TextureAtlas {
+
+    // Maximum width and height of the atlas. Many OpenGL ES 2 devices are limited to 2048
+    // (GL_MAX_TEXTURE_SIZE), they skip the first mipmap level (see TextureHelper).
+    static public final int MAX_SIZE = 4096;
+
+    public final int width;
+    public final int height;
+
+    // Position and size of each texture (x, y, width, height), in pixels
+    protected final int[] mRects;
+
+    public TextureAtlas(int width, int height, int[] rects) {
+        this.width = width;
+        this.height = height;
+        mRects = rects;
+    }
+
+    /**
+     * Compute the layout of textures with the specified sizes.
+     * Each power of two width is tried (up to MAX_SIZE), the one with the smallest area is kept
+     * (the height is rounded up to a power of two).
+     * Layouts higher than MAX_SIZE are only used when there isn't any other choice.
+     */
+    static public TextureAtlas pack(int[] widths, int[] heights) {
+        // Sort textures by height (the highest first), each shelf then wastes less space
+        Integer[] order = new Integer[widths.length];
+        int maxWidth = 1;
+        for (int i = 0; i < widths.length; ++i) {
+            order[i] = i;
+            maxWidth = Math.max(maxWidth, widths[i]);
+        }
+        final int[] sortHeights = heights;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return sortHeights[rhs] - sortHeights[lhs];
+            }
+        });
+
+        TextureAtlas best = null;
+        // The first width is the power of two just above the widest texture
+        for (int atlasWidth = getPowerOfTwo(maxWidth); ; atlasWidth <<= 1) {
+            TextureAtlas atlas = packShelves(atlasWidth, order, widths, heights);
+            if (best == null || (best.height > MAX_SIZE && atlas.height < best.height)
+                    || (atlas.height <= MAX_SIZE
+                        && (long) atlas.width * atlas.height < (long) best.width * best.height)) {
+                best = atlas;
+            }
+            if (atlasWidth >= MAX_SIZE) {
+                break;
+            }
+        }
+        return best;
+    }
+
+    public int getTexturesNumber() {
+        return mRects.length / 4;
+    }
+
+    public int getX(int texture) {
+        return mRects[texture * 4];
+    }
+
+    public int getY(int texture) {
+        return mRects[texture * 4 + 1];
+    }
+
+    public int getWidth(int texture) {
+        return mRects[texture * 4 + 2];
+    }
+
+    public int getHeight(int texture) {
+        return mRects[texture * 4 + 3];
+    }
+
+    /**
+     * Write texture coordinates of the specified texture in the atlas in mapped, from offset.
+     * Each (s, t) pair (from 0 to 1 in the texture) is moved and scaled to the texture place.
+     */
+    public void mapTextureCoordinates(int texture, float[] textureCoordinates, float[] mapped, int offset) {
+        final float startS = (float) getX(texture) / width;
+        final float startT = (float) getY(texture) / height;
+        final float scaleS = (float) getWidth(texture) / width;
+        final float scaleT = (float) getHeight(texture) / height;
+
+        for (int i = 0; i < textureCoordinates.length; i += 2) {
+            mapped[offset + i] = startS + textureCoordinates[i] * scaleS;
+            mapped[offset + i + 1] = startT + textureCoordinates[i + 1] * scaleT;
+        }
+    }
+
+    /**
+     * Return the average color of the textures copied in the atlas (RGBA components from 0 to 1).
+     * Only pixels of the textures are counted, so each texture is weighted by its area
+     * and the empty space left between shelves doesn't darken the color.
+     */
+    public float[] getAverageColor(int[] pixels) {
+        final long[] sums = new long[4];
+        long count = 0;
+        for (int texture = 0; texture < getTexturesNumber(); ++texture) {
+            final int x = getX(texture);
+            final int y = getY(texture);
+            for (int row = y; row < y + getHeight(texture); ++row) {
+                for (int i = row * width + x; i < row * width + x + getWidth(texture); ++i) {
+                    // Pixels are ARGB
+                    sums[0] += (pixels[i] >>> 16) & 0xFF;
+                    sums[1] += (pixels[i] >>> 8) & 0xFF;
+                    sums[2] += pixels[i] & 0xFF;
+                    sums[3] += pixels[i] >>> 24;
+                }
+            }
+            count += getWidth(texture) * getHeight(texture);
+        }
+
+        final float[] color = new float[4];
+        if (count > 0) {
+            for (int i = 0; i < 4; ++i) {
+                color[i] = sums[i] / (255.0f * count);
+            }
+        }
+        return color;
+    }
+
+    // Return a copy of the positions and sizes of all textures (used to store the atlas)
+    public int[] getRects() {
+        return mRects.clone();
+    }
+
+    // Place textures (in the specified order) on shelves of the specified width
+    static private TextureAtlas packShelves(int atlasWidth, Integer[] order, int[] widths, int[] heights) {
+        final int[] rects = new int[widths.length * 4];
+        int x = 0;
+        int shelfY = 0;
+        int shelfHeight = 0;
+        for (int texture : order) {
+            // Start a new shelf when the texture doesn't fit
+            if (x + widths[texture] > atlasWidth) {
+                shelfY += shelfHeight;
+                x = 0;
+                shelfHeight = 0;
+            }
+            rects[texture * 4] = x;
+            rects[texture * 4 + 1] = shelfY;
+            rects[texture * 4 + 2] = widths[texture];
+            rects[texture * 4 + 3] = heights[texture];
+
+            x += widths[texture];
+            shelfHeight = Math.max(shelfHeight, heights[texture]);
+        }
+        return new TextureAtlas(atlasWidth, getPowerOfTwo(shelfY + shelfHeight), rects);
+    }
+
+    // Return the smallest power of two greater than or equal to the size
+    static public int getPowerOfTwo(int size) {
+        return size <= 1 ? 1 : Integer.highestOneBit(size - 1) << 1;
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * This file is part of RandCity.
+ * Copyright (c) 2015 Fabien Caylus <toutjuste13@gmail.com>
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.tjdev.randcity.generation;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import fr.tjdev.commonvrlibrary.util.CompressedTexture;
+import fr.tjdev.commonvrlibrary.util.ETC1Encoder;
+import fr.tjdev.commonvrlibrary.util.MipChain;
+import fr.tjdev.randcity.BuildConfig;
+import fr.tjdev.randcity.shapes.Road;
+import fr.tjdev.randcity.shapes.TreasureCorridor;
+
+/**
+ * Generate all textures of the city in the background.
+ * Each texture is generated by its own task on a pool of threads, start() returns immediately
+ * and join() waits for all textures. Window textures of buildings are then packed in one atlas.
+ * Mipmaps of each texture are computed here (not on the GL thread). They are compressed in ETC1
+ * on the same pool only when join() is told the device supports it (known on the GL thread).
+ * The time spent on each texture is kept to find the slowest ones.
+ */
+public class TextureGenerator {
+    private static final String TAG = "TextureGenerator";
+
+    // Index of each texture returned by join()
+    static public final int ATLAS_TEXTURE_INDEX = 0;
+    static public final int ROAD_TEXTURE_INDEX = 1;
+    static public final int CORRIDOR_TEXTURE_INDEX = 2;
+    static public final int TEXTURES_NUMBER = 3;
+
+    // Index of each generation task (window textures are first)
+    static public final int ROAD_TASK = GenUtil.TEX_TYPES_NB;
+    static public final int CORRIDOR_TASK = GenUtil.TEX_TYPES_NB + 1;
+    static public final int ATLAS_TASK = GenUtil.TEX_TYPES_NB + 2;
+    static public final int TASKS_NUMBER = GenUtil.TEX_TYPES_NB + 3;
+
+    protected final CitySeed mSeed;
+    protected final CityConfig mConfig;
+    protected final int mThreadsNumber;
+
+    protected ExecutorService mExecutor;
+    // Futures of all tasks, in the order of submission
+    protected List<Future<?>> mResults;
+    protected long mStartTime;
+
+    // Results of tasks, they are visible once the futures are done
+    protected final WindowTexture[] mWindowTextures = new WindowTexture[GenUtil.TEX_TYPES_NB];
+    protected final MipChain[] mTextures = new MipChain[TEXTURES_NUMBER];
+    protected final CompressedTexture[] mCompressedTextures = new CompressedTexture[TEXTURES_NUMBER];
+    // Layout of the window textures in the atlas
+    protected TextureAtlas mAtlas;
+    // Average color of the window textures in the atlas
+    protected float[] mAtlasAverageColor;
+
+    // Time spent on each task (in nanoseconds)
+    protected final long[] mTaskTimes = new long[TASKS_NUMBER];
+
+    public TextureGenerator(CitySeed seed, CityConfig config, int threadsNumber) {
+        mSeed = seed;
+        mConfig = config;
+        mThreadsNumber = Math.max(1, threadsNumber);
+    }
+
+    // Start the generation of all textures
+    public void start() {
+        mStartTime = System.nanoTime();
+        mExecutor = Executors.newFixedThreadPool(mThreadsNumber);
+        mResults = new ArrayList<>(TASKS_NUMBER);
+
+        // Longest textures are submitted first
+        mResults.add(mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                final long startTime = System.nanoTime();
+                setTexture(ROAD_TEXTURE_INDEX, Road.generateTexture(mConfig));
+                mTaskTimes[ROAD_TASK] = System.nanoTime() - startTime;
+            }
+        }));
+
+        final List<Future<?>> windowResults = new ArrayList<>(GenUtil.TEX_TYPES_NB);
+        for (int i = 0; i < GenUtil.TEX_TYPES_NB; ++i) {
+            final int type = i;
+            windowResults.add(mExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    final long startTime = System.nanoTime();
+                    mWindowTextures[type] = Building.generateWindowTexture(mConfig, type, mSeed.textureRandom(type));
+                    mTaskTimes[type] = System.nanoTime() - startTime;
+                }
+            }));
+        }
+        mResults.addAll(windowResults);
+
+        mResults.add(mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                final long startTime = System.nanoTime();
+                setTexture(CORRIDOR_TEXTURE_INDEX, TreasureCorridor.generateTexture());
+                mTaskTimes[CORRIDOR_TASK] = System.nanoTime() - startTime;
+            }
+        }));
+
+        // The atlas waits for window textures. It can't block the pool: tasks are run in order,
+        // so all window textures are already running (or done) when this one starts.
+        mResults.add(mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                waitFor(windowResults);
+                final long startTime = System.nanoTime();
+                generateAtlas();
+                mTaskTimes[ATLAS_TASK] = System.nanoTime() - startTime;
+            }
+        }));
+    }
+
+    /**
+     * Run another task of the city generation on the pool, after textures.
+     * join() also waits for it, so its results are visible after join().
+     */
+    public void submit(Runnable task) {
+        mResults.add(mExecutor.submit(task));
+    }
+
+    // Return the pool of the generation, other work of the city can share it until join()
+    public ExecutorService getExecutor() {
+        return mExecutor;
+    }
+
+    public int getThreadsNumber() {
+        return mThreadsNumber;
+    }
+
+    /**
+     * Wait for all textures and return them (uncompressed, with their mipmaps), in the order of
+     * the indexes. start() must be called before.
+     * If compress is true, all levels are then compressed in ETC1 (see getCompressedTextures()).
+     */
+    public MipChain[] join(boolean compress) {
+        waitFor(mResults);
+        if (compress) {
+            compressTextures();
+        }
+        mExecutor.shutdown();
+        mResults = null;
+
+        if (BuildConfig.DEBUG) {
+            logTimes();
+        }
+        return mTextures;
+    }
+
+    // Return textures compressed in ETC1, in the order of the indexes.
+    // Only valid after join(), null elements if textures were not compressed.
+    public CompressedTexture[] getCompressedTextures() {
+        return mCompressedTextures;
+    }
+
+    // Return the layout of window textures in the atlas. Only valid after join().
+    public TextureAtlas getAtlas() {
+        return mAtlas;
+    }
+
+    // Return the average color of window textures (RGBA from 0 to 1). Only valid after join().
+    public float[] getAtlasAverageColor() {
+        return mAtlasAverageColor;
+    }
+
+    // Return the time spent on the task at the specified index (in nanoseconds).
+    // Only valid after join().
+    public long getTaskTime(int index) {
+        return mTaskTimes[index];
+    }
+
+    // Pack window textures in the atlas
+    protected void generateAtlas() {
+        final int[] widths = new int[mWindowTextures.length];
+        final int[] heights = new int[mWindowTextures.length];
+        for (int i = 0; i < mWindowTextures.length; ++i) {
+            widths[i] = mWindowTextures[i].width;
+            heights[i] = mWindowTextures[i].height;
+        }
+        mAtlas = TextureAtlas.pack(widths, heights);
+
+        final int[] pixels = Building.generateTextureAtlas(mWindowTextures, mAtlas);
+        mAtlasAverageColor = mAtlas.getAverageColor(pixels);
+        // Window textures are no longer needed
+        for (int i = 0; i < mWindowTextures.length; ++i) {
+            mWindowTextures[i] = null;
+        }
+
+        setTexture(ATLAS_TEXTURE_INDEX, pixels, mAtlas.width, mAtlas.height);
+    }
+
+    // Store the bitmap with its mipmaps, it's recycled
+    protected void setTexture(int index, Bitmap bitmap) {
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        final int[] pixels = new int[width * height];
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+        bitmap.recycle();
+
+        setTexture(index, pixels, width, height);
+    }
+
+    // Compute all mipmap levels of the pixels (ARGB), each one is stored in RGBA
+    protected void setTexture(int index, int[] pixels, int width, int height) {
+        mTextures[index] = MipChain.generate(pixels, width, height);
+    }
+
+    // Compress all levels of all textures in ETC1, one task per level (the first levels of the atlas
+    // are the longest ones). Textures must be finished.
+    protected void compressTextures() {
+        final long startTime = System.nanoTime();
+        final List<Future<?>> results = new ArrayList<>();
+        for (int i = 0; i < TEXTURES_NUMBER; ++i) {
+            final MipChain texture = mTextures[i];
+            final ByteBuffer[] compressedLevels = new ByteBuffer[texture.levels.length];
+            for (int l = 0; l < compressedLevels.length; ++l) {
+                final int level = l;
+                results.add(mExecutor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        compressedLevels[level] = new ETC1Encoder().encodeImage(texture.levels[level],
+                                MipChain.getLevelSize(texture.width, level),
+                                MipChain.getLevelSize(texture.height, level));
+                    }
+                }));
+            }
+            mCompressedTextures[i] = new CompressedTexture(texture.width, texture.height, compressedLevels);
+        }
+        waitFor(results);
+
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "Textures compressed in ETC1 in "
+                    + Long.toString((System.nanoTime() - startTime) / 1000000) + " ms");
+        }
+    }
+
+    static protected void waitFor(List<Future<?>> futures) {
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Textures generation interrupted.", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Error generating textures.", e.getCause());
+        }
+    }
+
+    // Log the time of each texture, the slowest one is the critical path of the generation
+    protected void logTimes() {
+        int slowest = 0;
+        long total = 0;
+        for (int i = 0; i < TASKS_NUMBER; ++i) {
+            Log.d(TAG, "Texture " + Integer.toString(i) + " generated in "
+                    + Long.toString(mTaskTimes[i] / 1000) + " us");
+            total += mTaskTimes[i];
+            if (mTaskTimes[i] > mTaskTimes[slowest]) {
+                slowest = i;
+            }
+        }
+        Log.d(TAG, "Atlas of " + Integer.toString(mAtlas.width) + "x" + Integer.toString(mAtlas.height)
+                + " packed in " + Long.toString(mTaskTimes[ATLAS_TASK] / 1000) + " us");
+        Log.d(TAG, Integer.toString(TASKS_NUMBER) + " textures generated in "
+                + Long.toString((System.nanoTime() - mStartTime) / 1000000) + " ms using "
+                + Integer.toString(mThreadsNumber) + " threads (" + Long.toString(total / 1000000)
+                + " ms of work, slowest is " + Integer.toString(slowest) + ")");
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * This file is part of RandCity.
+ * Copyright (c) 2015 Fabien Caylus <toutjuste13@gmail.com>
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.tjdev.randcity.generation;
+
+import java.util.Arrays;
+
+import fr.tjdev.commonvrlibrary.util.Random;
+
+/**
+ * Represent a texture of building windows. You can create an object using generateFuzzy()
+ * or generateLinear() methods.
+ * Windows are first chosen on a grid (one brightness per window), then the grid is drawn in
+ * an array of pixels. This class doesn't use Android, so it can run on any JVM.
+ */
+public class WindowTexture {
+
+    public int width;
+    public int height;
+
+    // Pixels in ARGB format (like android.graphics.Color), row after row.
+    // Borders of windows are transparent.
+    public int[] pixels;
+
+    /**
+     * Generate windows with a random brightness and a gradient around the brightest ones.
+     * @param lowDensity If true, there are less bright windows
+     */
+    static public WindowTexture generateFuzzy(CityConfig config, boolean lowDensity, Random rand) {
+        // Randomize width and height (+/- 4 windows)
+        final int nbWinX = rand.moreOrLess(config.texNbWindowX, 4) * 4;
+        final int nbWinY = rand.moreOrLess(config.texNbWindowY, 4);
+
+        // Randomize the percentage of chance to have a white glass
+        final int chanceWhiteGlass = lowDensity ? rand.moreOrLess(10, 5) : rand.moreOrLess(20, 10);
+        // Randomize the percentage of chance to repeat the brightness
+        final int chanceToRepeat = lowDensity ? rand.moreOrLess(20, 10) : rand.moreOrLess(40, 20);
+
+        // Brightness of each window, row after row
+        final int[] windows = new int[nbWinX * nbWinY];
+
+        // First pass : create white window
+        for (int x = 0; x < nbWinX; ++x) {
+            for (int y = 0; y < nbWinY; ++y) {
+                // Percentage of chance to have a white glass
+                if (rand.chance(chanceWhiteGlass)) {
+                    windows[y * nbWinX + x] = GenUtil.WIN_BRIGHT_1_RGB;
+                } else {
+                    windows[y * nbWinX + x] = GenUtil.WIN_DARK_RGB;
+                }
+            }
+        }
+
+        // Second pass : Create gradient on the sides of white windows
+        // The second pass is made twice to have a more completed gradient
+        for (int pass = 0 ; pass < 2 ; ++pass) {
+            for (int x = 0; x < nbWinX; ++x) {
+                for (int y = 0; y < nbWinY; ++y) {
+                    final int index = y * nbWinX + x;
+                    if (windows[index] != GenUtil.WIN_BRIGHT_1_RGB) {
+                        // Check the brightness of next windows
+                        final int nextBright = getBrightestInSideWindow(windows, nbWinX, nbWinY, x, y);
+                        // There is a chance to repeat the light
+                        if (rand.chance(chanceToRepeat)) {
+                            if (nextBright == GenUtil.WIN_BRIGHT_1_RGB) { // White
+                                windows[index] = GenUtil.WIN_BRIGHT_2_RGB;
+                            } else if (nextBright == GenUtil.WIN_BRIGHT_2_RGB) {
+                                windows[index] = GenUtil.WIN_BRIGHT_3_RGB;
+                            } else if (nextBright == GenUtil.WIN_BRIGHT_3_RGB) {
+                                windows[index] = GenUtil.WIN_BRIGHT_4_RGB;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        return rasterize(windows, nbWinX, nbWinY);
+    }
+
+    // Generate rows of bright windows, with a gradient at each end
+    static public WindowTexture generateLinear(CityConfig config, Random rand) {
+        // Randomize width and height (+/- 4 windows)
+        final int nbWinX = rand.moreOrLess(config.texNbWindowX, 4) * 4;
+        final int nbWinY = rand.moreOrLess(config.texNbWindowY, 4);
+
+        // Randomize some values
+        final int spaceLength = rand.moreOrLess(16, 3);
+        final int whiteGlassLength = rand.moreOrLess(16, 3);
+        final int chanceToContinue = rand.moreOrLess(12, 3);
+        final int chanceToStartRow = rand.moreOrLess(12, 3);
+
+        // Brightness of each window, row after row
+        final int[] windows = new int[nbWinX * nbWinY];
+
+        // Used to know when there is a minimum of white glass.
+        int whiteCount = 0;
+        // Used to space the row with a minimum.
+        // Set a large number since there is no space at the beginning (unlimited space in fact)
+        int space = 100;
+
+        // Create line of windows (inverse x and y in the loop)
+        for (int y = 0; y < nbWinY; ++y) {
+            for (int x = 0; x < nbWinX; ++x) {
+                final int index = y * nbWinX + x;
+
+                // If we are not in a white row and there is a minimum space
+                // and it's the chance to have a white glass
+                if (whiteCount == 0 && space >= spaceLength && rand.chance(chanceToStartRow)) {
+                    whiteCount++;
+                    space = 0;
+                    // Start the gradient
+                    if (rand.chance(50)) {
+                        windows[index] = GenUtil.WIN_BRIGHT_4_RGB;
+                    } else {
+                        windows[index] = GenUtil.WIN_BRIGHT_3_RGB;
+                    }
+                } else {
+                    // Check the status of the row
+                    if (whiteCount > 0 && whiteCount <= whiteGlassLength) {
+                        if (whiteCount == 1) {
+                            windows[index] = GenUtil.WIN_BRIGHT_2_RGB;
+                        } else {
+                            windows[index] = GenUtil.WIN_BRIGHT_1_RGB;
+                        }
+                        whiteCount++;
+                    } else if (whiteCount > 0 && rand.chance(chanceToContinue)) {
+                        // Here the row is finished but there is a chance to continue
+                        windows[index] = GenUtil.WIN_BRIGHT_1_RGB;
+                        whiteCount++;
+                    } else {
+                        // The row is really finished, reset the counter
+                        whiteCount = 0;
+                        space++;
+                        // Check to begin the gradient
+                        if (space == 1) {
+                            windows[index] = GenUtil.WIN_BRIGHT_2_RGB;
+                        } else if (space == 2) {
+                            // Random gradient value
+                            if (rand.chance(50)) {
+                                windows[index] = GenUtil.WIN_BRIGHT_3_RGB;
+                            } else {
+                                windows[index] = GenUtil.WIN_BRIGHT_4_RGB;
+                            }
+                        } else {
+                            // No need of gradient, set to dark
+                            windows[index] = GenUtil.WIN_DARK_RGB;
+                        }
+                    }
+                }
+            }
+        }
+
+        return rasterize(windows, nbWinX, nbWinY);
+    }
+
+    // Draw the glass of each window in a new texture (borders stay transparent)
+    static private WindowTexture rasterize(final int[] windows, final int nbWinX, final int nbWinY) {
+        WindowTexture texture = new WindowTexture();
+        texture.width = nbWinX * GenUtil.TEX_WINDOW_WIDTH;
+        texture.height = nbWinY * GenUtil.TEX_WINDOW_HEIGHT;
+        texture.pixels = new int[texture.width * texture.height];
+
+        for (int y = 0; y < nbWinY; ++y) {
+            final int top = y * GenUtil.TEX_WINDOW_HEIGHT + GenUtil.TEX_WINDOW_V_BORDER;
+            for (int x = 0; x < nbWinX; ++x) {
+                final int left = x * GenUtil.TEX_WINDOW_WIDTH + GenUtil.TEX_WINDOW_H_BORDER;
+                final int color = GenUtil.grey(windows[y * nbWinX + x]);
+
+                for (int row = top; row < top + GenUtil.TEX_WINDOW_GLASS_HEIGHT; ++row) {
+                    final int start = row * texture.width + left;
+                    Arrays.fill(texture.pixels, start, start + GenUtil.TEX_WINDOW_GLASS_WIDTH, color);
+                }
+            }
+        }
+        return texture;
+    }
+
+    // Return the higher value in windows on each side of the specified one
+    static private int getBrightestInSideWindow(final int[] windows, final int nbWinX, final int nbWinY,
+                                                final int x, final int y) {
+        int topVal = 0;
+        int bottomVal = 0;
+        int leftVal = 0;
+        int rightVal = 0;
+
+        if (y > 0) {
+            topVal = windows[(y - 1) * nbWinX + x];
+        }
+        if (y + 1 < nbWinY) {
+            bottomVal = windows[(y + 1) * nbWinX + x];
+        }
+        if (x > 0) {
+            leftVal = windows[y * nbWinX + x - 1];
+        }
+        if (x + 1 < nbWinX) {
+            rightVal = windows[y * nbWinX + x + 1];
+        }
+
+        // Return the max value between all windows
+        return Math.max(topVal, Math.max(bottomVal, Math.max(leftVal, rightVal)));
+    }
+}
@@ -24,39 +24,191 @@ import android.graphics.Color;
 import android.graphics.Rect;
 import android.graphics.Region;
 
-import fr.tjdev.randcity.generation.GenUtil;
+import fr.tjdev.randcity.generation.CityConfig;
 
 public class Road extends Floor {
 
-    // X, Y, Z
-    // Mapped as :
-    //   0----2,3
-    //   | \  |
-    //   |  \ |
-    //   1,4--5
-    // With :
-    //   -Z
-    //   /\
-    //   ||--> +X
-    static public final float[] positionData = {
-            -GenUtil.HALF_ROAD_WIDTH, 0.0f, -GenUtil.HALF_GRID_SIZE,
-            -GenUtil.HALF_ROAD_WIDTH, 0.0f, GenUtil.HALF_GRID_SIZE,
-            GenUtil.HALF_ROAD_WIDTH, 0.0f, -GenUtil.HALF_GRID_SIZE,
-            GenUtil.HALF_ROAD_WIDTH, 0.0f, -GenUtil.HALF_GRID_SIZE,
-            -GenUtil.HALF_ROAD_WIDTH, 0.0f, GenUtil.HALF_GRID_SIZE,
-            GenUtil.HALF_ROAD_WIDTH, 0.0f, GenUtil.HALF_GRID_SIZE
-    };
+    // Number of vertices generated for the roads of the full city (see generateData())
+    static public final int VERTICES_NUMBER = 12;
+
+    /**
+     * Generate one road of the full city, along the Z axis and centered on the origin.
+     * The road is split in two halves since blocks are not aligned in the same way on each side of
+     * the main road. The texture (one block and one intersection) is repeated along the road.
+     * Arrays must have a place for VERTICES_NUMBER vertices.
+     */
+    static public void generateData(CityConfig config, float[] positions, float[] normals,
+                                    float[] textureCoordinates) {
+        final float halfLength = config.halfGridSize;
+        // Blocks begin at firstBlockPos after the center, and end at firstBlockPos before it
+        final float negativeStart = -config.firstBlockPos - config.buildSquareWidth;
+        final float positiveStart = config.firstBlockPos;
+
+        // Negative half (-Z)
+        addQuad(-config.halfRoadWidth, -halfLength, config.halfRoadWidth, 0.0f,
+                (-halfLength - negativeStart) / config.spaceBetweenRoads,
+                -negativeStart / config.spaceBetweenRoads, false,
+                positions, normals, textureCoordinates, 0);
+        // Positive half (+Z)
+        addQuad(-config.halfRoadWidth, 0.0f, config.halfRoadWidth, halfLength,
+                -positiveStart / config.spaceBetweenRoads,
+                (halfLength - positiveStart) / config.spaceBetweenRoads, false,
+                positions, normals, textureCoordinates, 6);
+    }
+
+    // Return the number of roads on each side of a main road in the full city
+    static public int getSideRoadsNumber(CityConfig config) {
+        int roadsNumber = 0;
+        // Same positions as in generateCityData()
+        for (float i = config.spaceBetweenRoads + config.halfDiffBetweenRoads;
+             i <= config.halfGridSize;
+             i += config.spaceBetweenRoads) {
+            roadsNumber++;
+        }
+        return roadsNumber;
+    }
+
+    // Return the number of vertices generated for all roads of the full city (see generateCityData())
+    static public int getCityVerticesNumber(CityConfig config) {
+        return (2 + getSideRoadsNumber(config) * 4) * VERTICES_NUMBER;
+    }
+
+    /**
+     * Generate all roads of the full city in the same arrays, so they are drawn at once.
+     * Each road is the one of generateData() moved at its place: the two main roads (mainRoadScale times
+     * larger) cross at the center, other roads are on each side of them, every spaceBetweenRoads.
+     * Arrays must have a place for getCityVerticesNumber() vertices.
+     */
+    static public void generateCityData(CityConfig config, float[] positions, float[] normals,
+                                        float[] textureCoordinates) {
+        float[] roadPositions = new float[VERTICES_NUMBER * 3];
+        float[] roadNormals = new float[VERTICES_NUMBER * 3];
+        float[] roadTexCoords = new float[VERTICES_NUMBER * 2];
+        generateData(config, roadPositions, roadNormals, roadTexCoords);
+
+        // Main roads (2x larger)
+        int road = 0;
+        addRoad(roadPositions, roadNormals, roadTexCoords, config.mainRoadScale, 0.0f, false,
+                positions, normals, textureCoordinates, road++);
+        addRoad(roadPositions, roadNormals, roadTexCoords, config.mainRoadScale, 0.0f, true,
+                positions, normals, textureCoordinates, road++);
+
+        // Other roads (1x larger)
+        // Add the some units to the first road since the middle one is larger
+        for (float i = config.spaceBetweenRoads + config.halfDiffBetweenRoads;
+             i <= config.halfGridSize;
+             i += config.spaceBetweenRoads) {
+            addRoad(roadPositions, roadNormals, roadTexCoords, 1.0f, i, false,
+                    positions, normals, textureCoordinates, road++);
+            addRoad(roadPositions, roadNormals, roadTexCoords, 1.0f, -i, false,
+                    positions, normals, textureCoordinates, road++);
+            addRoad(roadPositions, roadNormals, roadTexCoords, 1.0f, i, true,
+                    positions, normals, textureCoordinates, road++);
+            addRoad(roadPositions, roadNormals, roadTexCoords, 1.0f, -i, true,
+                    positions, normals, textureCoordinates, road++);
+        }
+    }
+
+    // Copy the road of generateData() at the specified index, scaled on the X axis and moved by offset
+    // on it. When rotated, the road is turned by 90 degrees around the Y axis (along the X axis).
+    static private void addRoad(float[] roadPositions, float[] roadNormals, float[] roadTexCoords,
+                                float scaleX, float offset, boolean rotated,
+                                float[] positions, float[] normals, float[] textureCoordinates, int index) {
+        final int firstVertex = index * VERTICES_NUMBER;
+        for (int i = 0; i < VERTICES_NUMBER; ++i) {
+            final float x = roadPositions[i * 3] * scaleX + offset;
+            final float z = roadPositions[i * 3 + 2];
+            final int vertex = firstVertex + i;
+            positions[vertex * 3] = rotated ? z : x;
+            positions[vertex * 3 + 1] = roadPositions[i * 3 + 1];
+            positions[vertex * 3 + 2] = rotated ? -x : z;
+        }
+        // Normals are up, so they don't change
+        System.arraycopy(roadNormals, 0, normals, firstVertex * 3, VERTICES_NUMBER * 3);
+        System.arraycopy(roadTexCoords, 0, textureCoordinates, firstVertex * 2, VERTICES_NUMBER * 2);
+    }
 
     // R, G, B, A
     static public final float[] colorData = {
             1.0f, 1.0f, 1.0f, 1.0f
     };
 
+    // Number of vertices generated for the roads of one block (see generateBlockRoads())
+    static public final int BLOCK_ROADS_VERTICES = 18;
+
+    /**
+     * Generate the roads around the specified block, used by the streaming city.
+     * Only the road on the right (+X), the road below (+Z) and their intersection are generated,
+     * other roads are generated by the neighbour blocks.
+     * Texture coordinates map the texture once per block, so the pattern is aligned everywhere.
+     * Arrays must have a place for BLOCK_ROADS_VERTICES vertices from the first vertex.
+     */
+    static public void generateBlockRoads(CityConfig config, int blockX, int blockZ, float[] positions,
+                                          float[] normals, float[] textureCoordinates, int firstVertex) {
+        final float left = config.getBlockTopLeft(blockX);
+        final float top = config.getBlockTopLeft(blockZ);
+        // The road after the block (the main road is larger)
+        final float right = left + config.buildSquareWidth;
+        final float nextLeft = config.getBlockTopLeft(blockX + 1);
+        final float bottom = top + config.buildSquareWidth;
+        final float nextTop = config.getBlockTopLeft(blockZ + 1);
+
+        // The texture (on the T axis) contains one road segment (between two intersections)
+        // and one intersection.
+        final float segmentTexEnd = config.buildSquareWidth / config.spaceBetweenRoads;
+        final float intersectionTexEnd = 1.0f;
+
+        // Right road (along Z)
+        addQuad(right, top, nextLeft, bottom, 0.0f, segmentTexEnd, false,
+                positions, normals, textureCoordinates, firstVertex);
+        // Bottom road (along X)
+        addQuad(left, bottom, right, nextTop, 0.0f, segmentTexEnd, true,
+                positions, normals, textureCoordinates, firstVertex + 6);
+        // Intersection
+        addQuad(right, bottom, nextLeft, nextTop, segmentTexEnd, intersectionTexEnd, false,
+                positions, normals, textureCoordinates, firstVertex + 12);
+    }
+
+    // Add a quad on the floor (same vertices order as positionData).
+    // The T texture coordinate goes from startT to endT along the road.
+    static private void addQuad(float x0, float z0, float x1, float z1, float startT, float endT, boolean alongX,
+                                float[] positions, float[] normals, float[] textureCoordinates, int firstVertex) {
+        // For each vertex: 0 for the first coordinate, 1 for the second one
+        final int[] xOrder = {0, 0, 1, 1, 0, 1};
+        final int[] zOrder = {0, 1, 0, 0, 1, 1};
+
+        for (int i = 0; i < 6; ++i) {
+            final int vertex = firstVertex + i;
+            positions[vertex * 3] = xOrder[i] == 0 ? x0 : x1;
+            positions[vertex * 3 + 1] = 0.0f;
+            positions[vertex * 3 + 2] = zOrder[i] == 0 ? z0 : z1;
+
+            normals[vertex * 3] = 0.0f;
+            normals[vertex * 3 + 1] = 1.0f;
+            normals[vertex * 3 + 2] = 0.0f;
+
+            // S is across the road, T is along the road
+            if (alongX) {
+                textureCoordinates[vertex * 2] = zOrder[i];
+                textureCoordinates[vertex * 2 + 1] = xOrder[i] == 0 ? startT : endT;
+            } else {
+                textureCoordinates[vertex * 2] = xOrder[i];
+                textureCoordinates[vertex * 2 + 1] = zOrder[i] == 0 ? startT : endT;
+            }
+        }
+    }
+
 
-    // Generate a texture for the road
-    static public Bitmap generateTexture() {
-        final int width = (int)GenUtil.ROAD_WIDTH * 10;
-        final int height = (int)GenUtil.GRID_SIZE;
+    /**
+     * Generate a texture for the road.
+     * The texture contains only one road segment followed by one intersection (the space between
+     * two roads), it must be repeated along the road (GL_REPEAT).
+     * So its size doesn't depend on the size of the city.
+     */
+    static public Bitmap generateTexture(CityConfig config) {
+        final int width = (int)config.roadWidth * 8;
+        final int height = (int)config.spaceBetweenRoads;
+        final int segmentLength = (int)config.buildSquareWidth;
 
         final int lineWidth = 16;
         final int lineColor = Color.rgb(160, 160, 160);
@@ -67,62 +219,33 @@ public class Road extends Floor {
         canvas.drawColor(backColor);
 
         // Left line
-        canvas.clipRect(new Rect(0, 0, width/lineWidth, height), Region.Op.REPLACE);
+        canvas.clipRect(new Rect(0, 0, width/lineWidth, segmentLength), Region.Op.REPLACE);
 
         // Right line
-        canvas.clipRect(new Rect(width - (width/lineWidth), 0, width, height), Region.Op.UNION);
+        canvas.clipRect(new Rect(width - (width/lineWidth), 0, width, segmentLength), Region.Op.UNION);
 
         // Middle line (discontinued)
         final int middleLeft = (width/2) - (width/(lineWidth*2));
         final int middleRight = (width/2) + (width/(lineWidth*2));
 
-        canvas.clipRect(new Rect(middleLeft, 0, middleRight, height), Region.Op.UNION);
+        canvas.clipRect(new Rect(middleLeft, 0, middleRight, segmentLength), Region.Op.UNION);
         // Paint
         canvas.drawColor(lineColor);
 
         // Create the discontinuation
-        for (int i = 0;
-             i <= GenUtil.GRID_SIZE;
-             i += GenUtil.SPACE_BETWEEN_ROADS) {
-
-            // Check for the main road
-            if(i == GenUtil.HALF_GRID_SIZE) {
-                i += GenUtil.MAIN_ROAD_WIDTH - GenUtil.ROAD_WIDTH;
-            }
-
-            // Middle
-            canvas.clipRect(new Rect(middleLeft,
-                    i + (int)((GenUtil.SPACE_BETWEEN_ROADS - GenUtil.ROAD_WIDTH)/2) - 2,
-                    middleRight,
-                    i + (int)((GenUtil.SPACE_BETWEEN_ROADS - GenUtil.ROAD_WIDTH)/2) + 2), Region.Op.REPLACE);
-            // Half middle
-            canvas.clipRect(new Rect(middleLeft,
-                    i + (int)((GenUtil.SPACE_BETWEEN_ROADS - GenUtil.ROAD_WIDTH)/4) - 2,
-                    middleRight,
-                    i + (int)((GenUtil.SPACE_BETWEEN_ROADS - GenUtil.ROAD_WIDTH)/4) + 2), Region.Op.UNION);
-            // Other half middle
-            canvas.clipRect(new Rect(middleLeft,
-                    i + (int)(((GenUtil.SPACE_BETWEEN_ROADS - GenUtil.ROAD_WIDTH)/4)*3) - 2,
-                    middleRight,
-                    i + (int)(((GenUtil.SPACE_BETWEEN_ROADS - GenUtil.ROAD_WIDTH)/4)*3) + 2), Region.Op.UNION);
-
-            canvas.drawColor(backColor);
-        }
+        // Middle
+        canvas.clipRect(new Rect(middleLeft, segmentLength/2 - 2, middleRight, segmentLength/2 + 2),
+                Region.Op.REPLACE);
+        // Half middle
+        canvas.clipRect(new Rect(middleLeft, segmentLength/4 - 2, middleRight, segmentLength/4 + 2),
+                Region.Op.UNION);
+        // Other half middle
+        canvas.clipRect(new Rect(middleLeft, (segmentLength/4)*3 - 2, middleRight, (segmentLength/4)*3 + 2),
+                Region.Op.UNION);
 
-        // Remove lines on intersections
-        for (int i = (int)(GenUtil.SPACE_BETWEEN_ROADS - GenUtil.ROAD_WIDTH);
-             i <= GenUtil.GRID_SIZE;
-             i += GenUtil.SPACE_BETWEEN_ROADS) {
-            // The middle road is larger, check it
-            if(i + GenUtil.ROAD_WIDTH == GenUtil.HALF_GRID_SIZE) {
-                canvas.clipRect(new Rect(0, i, width, i + (int)GenUtil.MAIN_ROAD_WIDTH), Region.Op.REPLACE);
-                i += GenUtil.MAIN_ROAD_WIDTH - GenUtil.ROAD_WIDTH;
-            } else {
-                canvas.clipRect(new Rect(0, i, width, i + (int)GenUtil.ROAD_WIDTH), Region.Op.REPLACE);
-            }
-            canvas.drawColor(backColor);
-        }
+        canvas.drawColor(backColor);
 
+        // The intersection (from segmentLength to height) stays without lines
         return bitmap;
     }
 }
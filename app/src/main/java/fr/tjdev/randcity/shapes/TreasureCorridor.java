@@ -22,58 +22,68 @@ import android.graphics.Bitmap;
 import android.graphics.Color;
 
 import fr.tjdev.commonvrlibrary.shapes.IShape;
-import fr.tjdev.randcity.generation.GenUtil;
+import fr.tjdev.randcity.generation.CityConfig;
 
 // Represent the corridor with the treasure at the end.
 public class TreasureCorridor implements IShape {
 
-    static private final float halfWidth = GenUtil.SPACE_BETWEEN_ROADS_X2;
-    static private final float halfDepth = GenUtil.HALF_BUILD_SQUARE_WIDTH;
-
-    static public final float CORRIDOR_LENGTH = halfWidth * 2.0f + GenUtil.BUILD_SQUARE_WIDTH;
-    static public final float CORRIDOR_HEIGHT = halfDepth * 2.0f;
-    
-    static public final float[] positionData = {
-            // Back wall
-            -halfWidth - GenUtil.BUILD_SQUARE_WIDTH, halfDepth - 0.1f, -halfDepth,
-            halfWidth, -halfDepth, -halfDepth,
-            halfWidth, halfDepth - 0.1f, -halfDepth,
-            -halfWidth - GenUtil.BUILD_SQUARE_WIDTH, halfDepth - 0.1f, -halfDepth,
-            -halfWidth - GenUtil.BUILD_SQUARE_WIDTH, -halfDepth, -halfDepth,
-            halfWidth, -halfDepth, -halfDepth,
-
-            // Front wall
-            halfWidth, halfDepth - 0.1f, halfDepth,
-            -halfWidth  - GenUtil.BUILD_SQUARE_WIDTH, -halfDepth, halfDepth,
-            -halfWidth  - GenUtil.BUILD_SQUARE_WIDTH, halfDepth - 0.1f, halfDepth,
-            halfWidth, halfDepth - 0.1f, halfDepth,
-            halfWidth, -halfDepth, halfDepth,
-            -halfWidth  - GenUtil.BUILD_SQUARE_WIDTH, -halfDepth, halfDepth,
-
-            // Right Wall
-            halfWidth, halfDepth - 0.1f, -halfDepth,
-            halfWidth, -halfDepth, halfDepth,
-            halfWidth, halfDepth - 0.1f, halfDepth,
-            halfWidth, halfDepth - 0.1f, -halfDepth,
-            halfWidth, -halfDepth, -halfDepth,
-            halfWidth, -halfDepth, halfDepth,
-
-            // Bottom
-            -halfWidth, -halfDepth, -halfDepth,
-            halfWidth, -halfDepth, halfDepth,
-            halfWidth, -halfDepth, -halfDepth,
-            -halfWidth, -halfDepth, -halfDepth,
-            -halfWidth, -halfDepth, halfDepth,
-            halfWidth, -halfDepth, halfDepth,
+    // Length of the corridor (on the X axis)
+    static public float getLength(CityConfig config) {
+        return config.spaceBetweenRoadsX2 * 2.0f + config.buildSquareWidth;
+    }
 
-            // Top
-            halfWidth, halfDepth - 2.0f, -halfDepth,
-            -halfWidth, halfDepth - 2.0f, halfDepth,
-            -halfWidth, halfDepth - 2.0f, -halfDepth,
-            halfWidth, halfDepth - 2.0f, -halfDepth,
-            halfWidth, halfDepth - 2.0f, halfDepth,
-            -halfWidth, halfDepth - 2.0f, halfDepth
-    };
+    // Height of the corridor (the bottom is under the floor)
+    static public float getHeight(CityConfig config) {
+        return config.halfBuildSquareWidth * 2.0f;
+    }
+
+    static public float[] generatePositionData(CityConfig config) {
+        final float halfWidth = config.spaceBetweenRoadsX2;
+        final float halfDepth = config.halfBuildSquareWidth;
+        final float squareWidth = config.buildSquareWidth;
+
+        return new float[] {
+                // Back wall
+                -halfWidth - squareWidth, halfDepth - 0.1f, -halfDepth,
+                halfWidth, -halfDepth, -halfDepth,
+                halfWidth, halfDepth - 0.1f, -halfDepth,
+                -halfWidth - squareWidth, halfDepth - 0.1f, -halfDepth,
+                -halfWidth - squareWidth, -halfDepth, -halfDepth,
+                halfWidth, -halfDepth, -halfDepth,
+
+                // Front wall
+                halfWidth, halfDepth - 0.1f, halfDepth,
+                -halfWidth  - squareWidth, -halfDepth, halfDepth,
+                -halfWidth  - squareWidth, halfDepth - 0.1f, halfDepth,
+                halfWidth, halfDepth - 0.1f, halfDepth,
+                halfWidth, -halfDepth, halfDepth,
+                -halfWidth  - squareWidth, -halfDepth, halfDepth,
+
+                // Right Wall
+                halfWidth, halfDepth - 0.1f, -halfDepth,
+                halfWidth, -halfDepth, halfDepth,
+                halfWidth, halfDepth - 0.1f, halfDepth,
+                halfWidth, halfDepth - 0.1f, -halfDepth,
+                halfWidth, -halfDepth, -halfDepth,
+                halfWidth, -halfDepth, halfDepth,
+
+                // Bottom
+                -halfWidth, -halfDepth, -halfDepth,
+                halfWidth, -halfDepth, halfDepth,
+                halfWidth, -halfDepth, -halfDepth,
+                -halfWidth, -halfDepth, -halfDepth,
+                -halfWidth, -halfDepth, halfDepth,
+                halfWidth, -halfDepth, halfDepth,
+
+                // Top
+                halfWidth, halfDepth - 2.0f, -halfDepth,
+                -halfWidth, halfDepth - 2.0f, halfDepth,
+                -halfWidth, halfDepth - 2.0f, -halfDepth,
+                halfWidth, halfDepth - 2.0f, -halfDepth,
+                halfWidth, halfDepth - 2.0f, halfDepth,
+                -halfWidth, halfDepth - 2.0f, halfDepth
+        };
+    }
 
     // X, Y, Z
     static public final float[] normalsData = {
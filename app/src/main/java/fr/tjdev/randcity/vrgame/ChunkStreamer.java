@@ -0,0 +1,272 @@
+/*
+ * This file is part of RandCity.
+ * Copyright (c) 2015 Fabien Caylus <toutjuste13@gmail.com>
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.tjdev.randcity.vrgame;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import fr.tjdev.commonvrlibrary.util.GLStateCache;
+import fr.tjdev.commonvrlibrary.util.MeshBuilder;
+import fr.tjdev.randcity.BuildConfig;
+import fr.tjdev.randcity.generation.CityChunk;
+import fr.tjdev.randcity.generation.CityConfig;
+import fr.tjdev.randcity.generation.CitySeed;
+import fr.tjdev.randcity.generation.TextureAtlas;
+
+/**
+ * Manage the chunks of the streaming city.
+ * Chunks around the player are generated on a background thread, uploaded a few per frame,
+ * and evicted (CPU data and VBOs) when they are too far and the cache is full.
+ * All methods, except isInRestrictedArea(), must be called on the GL thread.
+ */
+public class ChunkStreamer {
+    private static final String TAG = "ChunkStreamer";
+
+    // Chunks are loaded in this radius (in chunks) around the player
+    static public final int LOAD_RADIUS = 3;
+    // Maximum number of chunks kept in memory
+    static public final int MAX_LOADED_CHUNKS = (LOAD_RADIUS * 2 + 2) * (LOAD_RADIUS * 2 + 2);
+    // Maximum number of chunks uploaded on each frame
+    static public final int UPLOADS_PER_FRAME = 2;
+
+    // Margin around buildings, the same as the full city
+    static private final float RESTRICTED_MARGIN = 1.0f;
+
+    protected final CityConfig mConfig;
+    protected final CitySeed mSeed;
+    // Block where there isn't building (the treasure)
+    protected final int mSkipBlockX;
+    protected final int mSkipBlockZ;
+    // Layout of building textures, set when the surface is created (before requesting chunks)
+    protected TextureAtlas mAtlas;
+    // State of the renderer, buffers of chunks are unbound and deleted through it
+    protected final GLStateCache mGLState;
+
+    protected final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    // Buffers of chunks, reused once uploaded (colors of buildings are stored in their vertices)
+    protected final MeshBuilder.Pool mBuildingsMeshPool = new MeshBuilder.Pool(
+            MeshBuilder.POSITION_NORMAL_TEXTURE_COLOR, UPLOADS_PER_FRAME * 2);
+    protected final MeshBuilder.Pool mRoadsMeshPool = new MeshBuilder.Pool(MeshBuilder.POSITION_NORMAL_TEXTURE,
+            UPLOADS_PER_FRAME * 2);
+    // Chunks generated by the background thread and waiting to be uploaded
+    protected final ConcurrentLinkedQueue<CityChunk> mGeneratedChunks = new ConcurrentLinkedQueue<>();
+    // Keys of chunks that are generating
+    protected final HashSet<Long> mPendingChunks = new HashSet<>();
+    // Uploaded chunks, in access order (the first one is the least recently used)
+    protected final LinkedHashMap<Long, CityChunk> mLoadedChunks = new LinkedHashMap<>(MAX_LOADED_CHUNKS, 0.75f, true);
+    // The same chunks, in a list read on each frame without iterator
+    protected final ArrayList<CityChunk> mLoadedChunksList = new ArrayList<>(MAX_LOADED_CHUNKS + UPLOADS_PER_FRAME);
+    // Chunk of the player on the last update, missing chunks are only requested when it changes
+    protected int mPlayerChunkX = Integer.MIN_VALUE;
+    protected int mPlayerChunkZ = Integer.MIN_VALUE;
+
+    public ChunkStreamer(CityConfig config, CitySeed seed, int skipBlockX, int skipBlockZ, GLStateCache glState) {
+        mConfig = config;
+        mSeed = seed;
+        mSkipBlockX = skipBlockX;
+        mSkipBlockZ = skipBlockZ;
+        mGLState = glState;
+    }
+
+    // Return all chunks that can be drawn (the list must not be changed)
+    public List<CityChunk> getLoadedChunks() {
+        return mLoadedChunksList;
+    }
+
+    /**
+     * Load and evict chunks depending on the player position.
+     * Must be called on each frame. Nothing is allocated when the player stays in the same chunk
+     * and there isn't chunk to upload or to evict.
+     * Return true if chunks were requested, uploaded or evicted.
+     */
+    public boolean update(float eyeX, float eyeZ) {
+        final int playerChunkX = mConfig.getChunkIndex(mConfig.getBlockIndex(eyeX));
+        final int playerChunkZ = mConfig.getChunkIndex(mConfig.getBlockIndex(eyeZ));
+        boolean changed = false;
+
+        // Request missing chunks (and mark the others as recently used).
+        // Chunks around the player only change when the player enters another chunk.
+        if (playerChunkX != mPlayerChunkX || playerChunkZ != mPlayerChunkZ) {
+            mPlayerChunkX = playerChunkX;
+            mPlayerChunkZ = playerChunkZ;
+            for (int chunkX = playerChunkX - LOAD_RADIUS; chunkX <= playerChunkX + LOAD_RADIUS; ++chunkX) {
+                for (int chunkZ = playerChunkZ - LOAD_RADIUS; chunkZ <= playerChunkZ + LOAD_RADIUS; ++chunkZ) {
+                    final long key = CityChunk.getKey(chunkX, chunkZ);
+                    if (mLoadedChunks.get(key) == null && !mPendingChunks.contains(key)) {
+                        requestChunk(chunkX, chunkZ);
+                    }
+                }
+            }
+            changed = true;
+        }
+
+        // Upload some generated chunks
+        int uploaded = 0;
+        CityChunk chunk;
+        while (uploaded < UPLOADS_PER_FRAME && (chunk = mGeneratedChunks.poll()) != null) {
+            mPendingChunks.remove(chunk.getKey());
+            // The player may have moved during the generation
+            if (isInRange(chunk, playerChunkX, playerChunkZ, LOAD_RADIUS + 1)) {
+                upload(chunk);
+                mLoadedChunks.put(chunk.getKey(), chunk);
+                mLoadedChunksList.add(chunk);
+                uploaded++;
+            } else {
+                recycleMeshes(chunk);
+            }
+            changed = true;
+        }
+
+        // Evict least recently used chunks that are out of range
+        if (mLoadedChunks.size() > MAX_LOADED_CHUNKS) {
+            Iterator<CityChunk> it = mLoadedChunks.values().iterator();
+            while (mLoadedChunks.size() > MAX_LOADED_CHUNKS && it.hasNext()) {
+                chunk = it.next();
+                if (!isInRange(chunk, playerChunkX, playerChunkZ, LOAD_RADIUS)) {
+                    release(chunk);
+                    it.remove();
+                    mLoadedChunksList.remove(chunk);
+                }
+            }
+            changed = true;
+        }
+        return changed;
+    }
+
+    // Must be called when the GL context is re-created: all buffers are lost.
+    // The atlas is used to map texture coordinates of buildings.
+    public void onSurfaceCreated(TextureAtlas atlas) {
+        mAtlas = atlas;
+        mLoadedChunks.clear();
+        mLoadedChunksList.clear();
+        // Request chunks again on the next update
+        mPlayerChunkX = Integer.MIN_VALUE;
+        mPlayerChunkZ = Integer.MIN_VALUE;
+    }
+
+    // Delete all buffers and stop the generation thread
+    public void shutdown() {
+        mExecutor.shutdownNow();
+        for (CityChunk chunk : mLoadedChunks.values()) {
+            release(chunk);
+        }
+        mLoadedChunks.clear();
+        mLoadedChunksList.clear();
+        mGeneratedChunks.clear();
+        mPendingChunks.clear();
+    }
+
+    /**
+     * Return true if the position is inside a building (with a margin), used to prevent user to walk inside buildings.
+     * The grid is regular, so buildings around the position are computed without using loaded chunks,
+     * and nothing is allocated (this is called for each move of the player).
+     * Can be called from any thread.
+     */
+    public boolean isInRestrictedArea(float x, float y, float z) {
+        // Buildings are always higher than the player, use the minimal height
+        if (y < 0.0f || y >= mConfig.buildMinHeight) {
+            return false;
+        }
+
+        final int blockX = mConfig.getBlockIndex(x);
+        final int blockZ = mConfig.getBlockIndex(z);
+        for (int bx = blockX - 1; bx <= blockX + 1; ++bx) {
+            final float left = mConfig.getBlockTopLeft(bx);
+            if (x < left - RESTRICTED_MARGIN || x >= left + mConfig.buildSquareWidth + RESTRICTED_MARGIN) {
+                continue;
+            }
+            for (int bz = blockZ - 1; bz <= blockZ + 1; ++bz) {
+                if (bx == mSkipBlockX && bz == mSkipBlockZ) {
+                    continue;
+                }
+                final float top = mConfig.getBlockTopLeft(bz);
+                if (z >= top - RESTRICTED_MARGIN && z < top + mConfig.buildSquareWidth + RESTRICTED_MARGIN) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    protected void requestChunk(final int chunkX, final int chunkZ) {
+        mPendingChunks.add(CityChunk.getKey(chunkX, chunkZ));
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mGeneratedChunks.add(CityChunk.generate(mConfig, mSeed, mAtlas, mBuildingsMeshPool,
+                        mRoadsMeshPool, chunkX, chunkZ,
+                        mSkipBlockX, mSkipBlockZ));
+            }
+        });
+    }
+
+    // Create VBOs (vertices and indices) of the chunk and release the CPU buffers
+    protected void upload(CityChunk chunk) {
+        final int buffers[] = new int[4];
+        GLES20.glGenBuffers(4, buffers, 0);
+
+        chunk.buildingsMesh.upload(buffers[0], buffers[1], GLES20.GL_STATIC_DRAW);
+        chunk.roadsMesh.upload(buffers[2], buffers[3], GLES20.GL_STATIC_DRAW);
+
+        mGLState.unbindBuffers();
+
+        chunk.buildingsVBOBuffer = buffers[0];
+        chunk.buildingsIBOBuffer = buffers[1];
+        chunk.roadsVBOBuffer = buffers[2];
+        chunk.roadsIBOBuffer = buffers[3];
+        recycleMeshes(chunk);
+
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "Chunk uploaded: x=" + Integer.toString(chunk.chunkX) + " z=" + Integer.toString(chunk.chunkZ));
+        }
+    }
+
+    // Give back buffers of the chunk to the pool
+    protected void recycleMeshes(CityChunk chunk) {
+        mBuildingsMeshPool.recycle(chunk.buildingsMesh);
+        mRoadsMeshPool.recycle(chunk.roadsMesh);
+        chunk.buildingsMesh = null;
+        chunk.roadsMesh = null;
+    }
+
+    // Delete VBOs of the chunk
+    protected void release(CityChunk chunk) {
+        final int buffers[] = {chunk.buildingsVBOBuffer, chunk.buildingsIBOBuffer,
+                chunk.roadsVBOBuffer, chunk.roadsIBOBuffer};
+        mGLState.deleteBuffers(4, buffers, 0);
+        chunk.buildings = null;
+
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "Chunk evicted: x=" + Integer.toString(chunk.chunkX) + " z=" + Integer.toString(chunk.chunkZ));
+        }
+    }
+
+    static protected boolean isInRange(CityChunk chunk, int centerX, int centerZ, int radius) {
+        return Math.abs(chunk.chunkX - centerX) <= radius && Math.abs(chunk.chunkZ - centerZ) <= radius;
+    }
+}
@@ -27,10 +27,20 @@ import fr.tjdev.commonvrlibrary.BluetoothManager;
 import fr.tjdev.commonvrlibrary.activities.VRActivity;
 import fr.tjdev.randcity.BuildConfig;
 import fr.tjdev.randcity.R;
+import fr.tjdev.randcity.generation.CityConfig;
+import fr.tjdev.randcity.generation.CitySeed;
 
 public class VRGameActivity extends VRActivity {
     private static final String TAG = "VRGameActivity";
 
+    // Key used to save the seed of the city
+    private static final String STATE_SEED = "seed";
+
+    // Set this extra to true to play in the streaming city (with no limit)
+    public static final String EXTRA_STREAMING_CITY = "streaming_city";
+    // Set this extra to true to play in the mega city (used to check how the game scales)
+    public static final String EXTRA_MEGA_CITY = "mega_city";
+
     private VRRenderer mRenderer;
 
     private int mNumberOfTreasureListenerCall = 0;
@@ -42,7 +52,22 @@ public class VRGameActivity extends VRActivity {
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
-        mRenderer = new VRRenderer(this, mDebugRenderer);
+        // Re-use the same seed if the activity is re-created, to get the same city.
+        // Debug generations always use the same city.
+        CitySeed seed;
+        if (savedInstanceState != null && savedInstanceState.containsKey(STATE_SEED)) {
+            seed = new CitySeed(savedInstanceState.getLong(STATE_SEED));
+        } else if (mDebugRenderer) {
+            seed = CitySeed.DEBUG_SEED;
+        } else {
+            seed = CitySeed.random();
+        }
+
+        final boolean streamingCity = getIntent().getBooleanExtra(EXTRA_STREAMING_CITY, false);
+        final CityConfig config = getIntent().getBooleanExtra(EXTRA_MEGA_CITY, false) ?
+                CityConfig.MEGA_CITY : CityConfig.DEFAULT;
+
+        mRenderer = new VRRenderer(this, mDebugRenderer, seed, config, streamingCity);
         enableRenderer(mRenderer);
 
         mRenderer.setOnTreasureFoundListener(new VRRenderer.OnTreasureFoundListener() {
@@ -135,6 +160,14 @@ public class VRGameActivity extends VRActivity {
         mRenderer.enableFog = false;
     }
 
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        if (mRenderer != null) {
+            outState.putLong(STATE_SEED, mRenderer.getSeed().value);
+        }
+    }
+
     @Override
     public void onCardboardTrigger() {
         toggleFog();
@@ -19,37 +19,55 @@
 package fr.tjdev.randcity.vrgame;
 
 import android.content.Context;
-import android.graphics.Bitmap;
 import android.graphics.RectF;
+import android.opengl.ETC1Util;
 import android.opengl.GLES20;
 import android.opengl.Matrix;
+import android.os.Debug;
 import android.util.Log;
 
 import com.google.vrtoolkit.cardboard.CardboardView;
 import com.google.vrtoolkit.cardboard.Eye;
+import com.google.vrtoolkit.cardboard.FieldOfView;
 import com.google.vrtoolkit.cardboard.HeadTransform;
 import com.google.vrtoolkit.cardboard.Viewport;
 
 import java.nio.FloatBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import javax.microedition.khronos.egl.EGLConfig;
 
 import fr.tjdev.commonvrlibrary.BaseGLRenderManager;
 import fr.tjdev.commonvrlibrary.shapes.IShape;
+import fr.tjdev.commonvrlibrary.shapes.IndexedMesh;
 import fr.tjdev.commonvrlibrary.shapes.SkyBox;
-import fr.tjdev.commonvrlibrary.util.BufferHelper;
+import fr.tjdev.commonvrlibrary.util.CommandList;
+import fr.tjdev.commonvrlibrary.util.CompressedTexture;
 import fr.tjdev.commonvrlibrary.util.FloorSurface;
+import fr.tjdev.commonvrlibrary.util.Frustum;
+import fr.tjdev.commonvrlibrary.util.MeshBuilder;
+import fr.tjdev.commonvrlibrary.util.MipChain;
 import fr.tjdev.commonvrlibrary.util.Random;
 import fr.tjdev.commonvrlibrary.util.RawResourceReader;
 import fr.tjdev.commonvrlibrary.util.RectF3D;
-import fr.tjdev.commonvrlibrary.util.ShaderHelper;
+import fr.tjdev.commonvrlibrary.util.RenderQueue;
+import fr.tjdev.commonvrlibrary.util.ShaderProgram;
 import fr.tjdev.commonvrlibrary.util.TextureHelper;
 import fr.tjdev.randcity.BuildConfig;
 import fr.tjdev.randcity.R;
 import fr.tjdev.randcity.generation.Building;
-import fr.tjdev.randcity.generation.GenUtil;
+import fr.tjdev.randcity.generation.BuildingBatches;
+import fr.tjdev.randcity.generation.CityCache;
+import fr.tjdev.randcity.generation.CityChunk;
+import fr.tjdev.randcity.generation.CityConfig;
+import fr.tjdev.randcity.generation.CityModel;
+import fr.tjdev.randcity.generation.CitySeed;
 import fr.tjdev.randcity.generation.Stairs;
+import fr.tjdev.randcity.generation.StreetVisibility;
+import fr.tjdev.randcity.generation.TextureAtlas;
+import fr.tjdev.randcity.generation.TextureGenerator;
 import fr.tjdev.randcity.shapes.Road;
 import fr.tjdev.randcity.shapes.TreasureCorridor;
 
@@ -62,58 +80,228 @@ public class VRRenderer extends BaseGLRenderManager implements CardboardView.Ste
     public static final float PROJECTION_NEAR = 1.0f;
     public static final float PROJECTION_FAR = 2000.0f;
 
+    // Stride of buildings VBOs and offset of colors (the last attribute of vertices)
+    private static final int BUILDING_VBO_STRIDE = MeshBuilder.POSITION_NORMAL_TEXTURE_COLOR.getStride();
+    private static final int BUILDING_VBO_COLOR_OFFSET = MeshBuilder.POSITION_NORMAL_TEXTURE_COLOR.getOffset(3);
+    // Color of shapes that store their color in vertices
+    private static final float[] WHITE_COLOR = {1.0f, 1.0f, 1.0f, 1.0f};
+
+    // Used by the stereo culling until eyes are drawn: tangent of the half field of view of eyes (60 degrees)
+    // and distance between an eye and the center of the head
+    private static final float DEFAULT_FOV_TANGENT = 1.732f;
+    private static final float DEFAULT_EYE_DISTANCE = 0.032f;
+
+    // Fog of the shaders (must be the same as in fragment shaders): its factor is exp(-(density * distance)^2)
+    private static final float FOG_DENSITY = 0.01f;
+    private static final float[] FOG_COLOR = {0.03f, 0.03f, 0.03f, 0.0f};
+    // Beyond this distance, the fog covers more than 99.8% of the color (less than half a step of 8-bit colors):
+    // nothing is drawn, it's the far plane
+    private static final float FOG_END_DISTANCE = (float) (Math.sqrt(Math.log(512.0)) / FOG_DENSITY);
+    // Beyond this distance, the fog covers more than 90% of the color: buildings are drawn without texture
+    private static final float FOG_LOD_DISTANCE = (float) (Math.sqrt(Math.log(10.0)) / FOG_DENSITY);
+    // Without fog, buildings are drawn without texture when a face covers about ten pixels
+    private static final float LOD_DISTANCE = 1000.0f;
+
+    // Visible buildings of streets are computed for eyes up to this height above the player height
+    // (the head moves a bit with the neck model)
+    private static final float STREET_VISIBILITY_EYE_MARGIN = 2.0f;
+
+    // In debug, the average draw time is logged every FRAME_TIME_LOG_INTERVAL eyes
+    private static final int FRAME_TIME_LOG_INTERVAL = 300;
+    // In debug, allocations of the GL thread are counted during frames (after the first ones, and except
+    // frames where chunks are loaded): the render path must not allocate anything.
+    // RendererAllocationTest (androidTest) asserts it on a device, for both cities.
+    private static final boolean CHECK_ALLOCATIONS = BuildConfig.DEBUG;
+    private static final int ALLOCATION_WARM_UP_FRAMES = 10;
+
+    // The shader uses only one light: the one at the end of the treasure corridor
+    private static final int SHADER_LIGHT = 3;
+
+    // Render queue: layers (the sky box is behind everything), textures and material flags of draws
+    private static final int LAYER_OPAQUE = 0;
+    private static final int LAYER_BACKGROUND = 1;
+    private static final int QUEUE_TEXTURE_NONE = 0;
+    private static final int QUEUE_TEXTURE_ROAD = 1;
+    private static final int QUEUE_TEXTURE_ATLAS = 2;
+    private static final int QUEUE_TEXTURE_CORRIDOR = 3;
+    private static final int QUEUE_FLAG_VERTEX_COLOR = 1;
+    private static final int QUEUE_PROGRAM_MAIN = 0;
+    private static final int QUEUE_PROGRAM_LOD = 1;
+    // Payloads of draws: the kind of draw in the high bits, and its index (of a building draw or a chunk)
+    private static final int DRAW_ROADS = 0;
+    private static final int DRAW_BUILDINGS = 1;
+    private static final int DRAW_CHUNK_ROADS = 2;
+    private static final int DRAW_CHUNK_BUILDINGS = 3;
+    private static final int DRAW_CORRIDOR = 4;
+    private static final int DRAW_SKY_BOX = 5;
+    private static final int DRAW_STAIRS = 6;
+    private static final int DRAW_FAR_BUILDINGS = 7;
+    private static final int DRAW_FAR_CHUNK_BUILDINGS = 8;
+    private static final int DRAW_KIND_SHIFT = 24;
+    private static final int DRAW_INDEX_MASK = (1 << DRAW_KIND_SHIFT) - 1;
+
+    // How buildings of the full city are drawn
+    private static final int DETAIL_HIDDEN = 0;
+    private static final int DETAIL_NEAR = 1;
+    private static final int DETAIL_FAR = 2;
+
     protected final Context mActivityContext;
 
+    // The seed used to generate the city
+    protected final CitySeed mSeed;
+    // The layout of the city
+    protected final CityConfig mConfig;
+
+    // Generated cities are stored in this cache, and loaded from it when possible
+    protected CityCache mCityCache;
+    // Generate textures in the background when the city is not in the cache (null once finished)
+    protected TextureGenerator mTextureGenerator;
+    // All textures, in the order of TextureGenerator (null once stored in the cache)
+    protected MipChain[] mTextures;
+    protected CompressedTexture[] mCompressedTextures;
+    // If true, ETC1 textures are used (set in onSurfaceCreated())
+    protected boolean mETC1Supported;
+    // GL_MAX_TEXTURE_SIZE of the device, first mipmap levels of bigger textures are skipped
+    protected int mMaxTextureSize;
+
+    // If true, the city has no limit and is generated by chunks around the player
+    protected final boolean mStreamingCity;
+    // Load and draw chunks of the streaming city (null if not used)
+    protected ChunkStreamer mChunkStreamer;
+
+    // All shapes are drawn with indices: a VBO for vertices, an IBO for indices
     protected int mSkyBoxVBOBuffer;
+    protected int mSkyBoxIBOBuffer;
+    protected int mSkyBoxIndicesNumber;
 
     protected int mRoadVBOBuffer;
-    protected Bitmap mRoadTextureBitmap;
+    protected int mRoadIBOBuffer;
+    protected int mRoadIndicesNumber;
     protected int mRoadTextureDataHandle;
 
-    protected ArrayList<Building> mBuildings;
+    protected CityModel mBuildings;
     protected ArrayList<RectF3D> mRestrictedAreas;
-    // Contains all buffers used for buildings
+    // Buildings are merged by batches (one VBO and one draw call per batch)
+    protected BuildingBatches mBuildingBatches;
+    // Buildings visible from each part of the streets (null for the streaming city and large cities)
+    protected StreetVisibility mStreetVisibility;
     protected int[] mBuildVBOBuffers;
-    // Store all different textures used by buildings
-    protected Bitmap mBuildTextureBitmaps[] = new Bitmap[GenUtil.TEX_TYPES_NB];
-    protected int mBuildTextureDataHandles[] = new int[GenUtil.TEX_TYPES_NB];
+    // Indices of the biggest batch, smaller batches use the first ones
+    protected int mBuildIBOBuffer;
+    // All textures used by buildings are packed in one atlas
+    protected TextureAtlas mTextureAtlas;
+    protected int mBuildTextureDataHandle;
 
     protected Stairs mTreasureStairs;
     protected int mStairsVBOBuffer;
+    protected int mStairsIBOBuffer;
 
     protected int mTreasureCorridorVBOBuffer;
-    protected Bitmap mTreasureCorridorBitmap;
+    protected int mTreasureCorridorIBOBuffer;
+    protected int mTreasureCorridorIndicesNumber;
     protected int mTreasureCorridorTextureDataHandle;
 
     protected float[] mHeadView = new float[16];
 
+    // View matrix of the player (without the head), the same for both eyes of a frame
+    protected final float[] mFrameViewMatrix = new float[16];
+
+    // Hidden buildings are skipped once per frame (in onNewFrame()) for both eyes, with a frustum that
+    // contains the frustums of both eyes: the one of the center of the head, moved back.
+    protected final float[] mStereoViewMatrix = new float[16];
+    protected final float[] mStereoProjectionMatrix = new float[16];
+    protected final float[] mViewProjectionMatrix = new float[16];
+    protected final Frustum mFrustum = new Frustum();
+    // Largest tangents of the field of view of eyes (left, right, bottom, top) and distance between an eye
+    // and the head, used for the next frame. They are found when eyes are drawn.
+    protected final float[] mEyeFovTangents = new float[4];
+    protected float mEyeDistance;
+    protected boolean mEyeParamsFound;
+    protected final float[] mNextEyeFovTangents = new float[4];
+    protected float mNextEyeDistance;
+    protected boolean mNextEyeParamsFound;
+
+    // Visible ranges of buildings in a batch, (first, count) pairs
+    protected final int[] mVisibleRanges = new int[BuildingBatches.MAX_BATCH_CELLS * 2];
+    // Draws of visible buildings of the full city, (batch, first, count, far) quadruples in the order of batches.
+    // Ranges of the frustum are split around buildings hidden from the street of the player or by the fog,
+    // and between near and far buildings (far is 1 for buildings drawn without texture).
+    protected int[] mBuildingDraws;
+    protected int mBuildingDrawsNumber;
+    // Visible chunks of the streaming city
+    protected final ArrayList<CityChunk> mVisibleChunks = new ArrayList<>();
+    // Fog, far plane and distance of the level of detail of the frame (enableFog is read once per frame)
+    protected boolean mFrameFog;
+    protected float mFarPlane = PROJECTION_FAR;
+    protected float mLodDistance = LOD_DISTANCE;
+    // Draws of the frame, sorted by state and depth
+    protected final RenderQueue mRenderQueue = new RenderQueue(64, PROJECTION_FAR);
+    // Calls of the frame, recorded once in onNewFrame() and replayed for each eye with its matrices
+    protected final CommandList mCommandList = new CommandList();
+    // True if matrices of shapes without model transformation are uploaded for the current eye
+    protected boolean mIdentityPrepared;
+
+    // Reused to fill all VBOs (with or without texture coordinates)
+    protected final MeshBuilder mMeshBuilder = new MeshBuilder(MeshBuilder.POSITION_NORMAL_TEXTURE);
+    protected final MeshBuilder mMeshBuilderNoTex = new MeshBuilder(MeshBuilder.POSITION_NORMAL);
+
+    // Used to compute the average draw time (debug only)
+    protected long mDrawTimeSum;
+    protected int mDrawCount;
+    protected int mRecordedFrames;
+
+    // Number of objects allocated during the current frame, and number of frames checked (debug only)
+    protected int mFrameAllocations;
+    protected int mCheckedFrames;
+    // Allocation count of the thread when the current call started (the count is never reset,
+    // so it can also be read outside of the renderer)
+    protected int mAllocationsStart;
+    // False if chunks were loaded during the current frame (allocations are expected)
+    protected boolean mSteadyFrame;
+
     //
     // We have 4 lights near the treasure
     //
 
     // Stores a copy of the model matrix specifically for the light position.
-    protected float[][] mLightModelMatrix = new float[4][16];
+    protected final float[][] mLightModelMatrix = new float[4][16];
 
     // Used to hold a light centered on a point. We need a 4th coordinate so we can get translations to work when
     // we multiply this by our transformation matrices.
     protected final float[] mLightPosInModelSpace = new float[]{0.0f, 0.0f, 0.0f, 1.0f};
-    // Used to hold the transformed position of the light in eye space (after transformation via model-view matrix)
-    protected final float[][] mLightPosInEyeSpace = new float[4][4];
-
-    protected int mLightPosHandle1;
-    /*protected int mLightPosHandle2;
-    protected int mLightPosHandle3;
-    protected int mLightPosHandle4;*/
-
-    protected int mMVPMatrixHandle;
-    protected int mMVMatrixHandle;
-    protected int mTextureUniformHandle;
-    protected int mTextureFlagHandle;
-    protected int mFogFlagHandle;
+    // Position of lights in world space, they don't move (computed in the constructor).
+    // They are transformed in eye space when the frame is replayed for each eye.
+    protected final float[][] mLightPosInWorldSpace = new float[4][4];
+
+    // The program, its uniforms and attributes are resolved in onSurfaceCreated()
+    protected ShaderProgram mProgram;
+    // Program of far buildings (without texture) and its uniforms, attributes are the same as mProgram
+    protected ShaderProgram mLodProgram;
+    protected ShaderProgram.Uniform mLodMVPMatrixUniform;
+    protected ShaderProgram.Uniform mLodMVMatrixUniform;
+    protected ShaderProgram.Uniform mLodFogFlagUniform;
+    protected ShaderProgram.Uniform mLodColorUniform;
+    protected ShaderProgram.Uniform mLodLightPosUniform;
+    // Uniforms of mLodProgram are set for the current eye
+    protected boolean mLodPrepared;
+    // Average color of window textures in the atlas, used by far buildings instead of the texture
+    protected float[] mBuildingsAverageColor;
+
+    protected ShaderProgram.Uniform mLightPosUniform1;
+    /*protected ShaderProgram.Uniform mLightPosUniform2;
+    protected ShaderProgram.Uniform mLightPosUniform3;
+    protected ShaderProgram.Uniform mLightPosUniform4;*/
+
+    protected ShaderProgram.Uniform mMVPMatrixUniform;
+    protected ShaderProgram.Uniform mMVMatrixUniform;
+    protected ShaderProgram.Uniform mTextureUniform;
+    protected ShaderProgram.Uniform mTextureFlagUniform;
+    protected ShaderProgram.Uniform mFogFlagUniform;
+    protected ShaderProgram.Uniform mColorUniform;
     protected int mPositionHandle;
     protected int mNormalHandle;
-    protected int mColorHandle;
     protected int mTextureCoordinateHandle;
+    protected int mVertexColorHandle;
 
     // Store the position of the "treasure".
     // In fact, the treasure is a special building that you must reach to end the game.
@@ -140,8 +328,15 @@ public class VRRenderer extends BaseGLRenderManager implements CardboardView.Ste
 
     // If debug generation set to true, the player will not appear at a random pos
     // and the treasure will be at the center of the city
-    public VRRenderer(final Context activityContext, boolean debugGeneration) {
+    // The whole city is generated from the specified seed.
+    // The layout of the city is set by the config (the size is not used by the streaming city).
+    // If streamingCity is set to true, the city has no limit and is generated around the player.
+    public VRRenderer(final Context activityContext, boolean debugGeneration, CitySeed seed, CityConfig config,
+                      boolean streamingCity) {
         mActivityContext = activityContext;
+        mSeed = seed;
+        mConfig = config;
+        mStreamingCity = streamingCity;
 
         // Generate buildings grid and textures
         generateTerrain(debugGeneration);
@@ -151,36 +346,82 @@ public class VRRenderer extends BaseGLRenderManager implements CardboardView.Ste
             boolean success = false;
             while(!success) {
                 Random rand = new Random();
-                final int newX = rand.intBetween((int)-GenUtil.HALF_GRID_SIZE, (int)GenUtil.HALF_GRID_SIZE);
-                final int newZ = rand.intBetween((int)-GenUtil.HALF_GRID_SIZE, (int)GenUtil.HALF_GRID_SIZE);
+                final int newX = rand.intBetween((int)-mConfig.halfGridSize, (int)mConfig.halfGridSize);
+                final int newZ = rand.intBetween((int)-mConfig.halfGridSize, (int)mConfig.halfGridSize);
                 success = movePlayer(newX, 0.0f, newZ);
             }
         }*/
     }
 
+    public CitySeed getSeed() {
+        return mSeed;
+    }
+
+    public CityConfig getConfig() {
+        return mConfig;
+    }
+
     // This function will generate buildings and textures
     protected void generateTerrain(boolean debugGeneration) {
-        mBuildings = Building.generateAllBuildings();
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "Generate the city with seed " + mSeed.toString());
+        }
 
-        // Define the treasure pos
-        int treasureIndex = 2;
-        if(!debugGeneration) {
-            // We replace a random building by the treasure, and get its positions
-            Random rand = new Random();
-            treasureIndex = rand.nextInt(mBuildings.size());
-            // Block the treasure from spawning outside the walk area
-            while (mBuildings.get(treasureIndex).centerCoordinates[0] > GenUtil.HALF_ALLOWED_GRID_SIZE ||
-                    mBuildings.get(treasureIndex).centerCoordinates[0] < -GenUtil.HALF_ALLOWED_GRID_SIZE ||
-                    mBuildings.get(treasureIndex).centerCoordinates[2] > GenUtil.HALF_ALLOWED_GRID_SIZE ||
-                    mBuildings.get(treasureIndex).centerCoordinates[2] < -GenUtil.HALF_ALLOWED_GRID_SIZE) {
-                treasureIndex = rand.nextInt(mBuildings.size());
+        // The streaming city is not in the cache, only its textures
+        mCityCache = new CityCache(mActivityContext.getCacheDir(), mSeed, mConfig, debugGeneration, mStreamingCity);
+        final long startTime = System.nanoTime();
+        final boolean cached = mCityCache.load();
+
+        // Textures are generated in the background, at the same time as buildings.
+        // They are needed only in onSurfaceCreated().
+        if (!cached) {
+            mTextureGenerator = new TextureGenerator(mSeed, mConfig, Runtime.getRuntime().availableProcessors());
+            mTextureGenerator.start();
+        } else {
+            mTextureAtlas = mCityCache.getAtlas();
+            mBuildingsAverageColor = mCityCache.getAtlasAverageColor();
+        }
+
+        if (mStreamingCity) {
+            generateStreamingBuildings(debugGeneration);
+        } else if (cached) {
+            mBuildings = mCityCache.getBuildings();
+            mTreasurePos = mCityCache.getTreasurePosition();
+            mRestrictedAreas = Building.generateRestrictedAreas(mBuildings);
+        } else {
+            generateBuildings(debugGeneration);
+        }
+
+        // Sort buildings by batch (it doesn't change buildings loaded from the cache, they are already sorted)
+        if (!mStreamingCity) {
+            mBuildingBatches = BuildingBatches.sort(mBuildings);
+            // At most one draw per cell, or per building when ranges are split
+            mBuildingDraws = new int[Math.max(mBuildingBatches.getCellsNumber(), mBuildings.size) * 4];
+
+            // Computed after sorting (visible buildings are stored by index) on the pool of the
+            // texture generator, it's ready after finishTextures() and then stored in the cache
+            if (cached) {
+                mStreetVisibility = mCityCache.getStreetVisibility();
+            } else if (mBuildings.size <= StreetVisibility.MAX_BUILDINGS) {
+                mTextureGenerator.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        final long startTime = System.nanoTime();
+                        mStreetVisibility = new StreetVisibility(mBuildings,
+                                PLAYER_HEIGHT + STREET_VISIBILITY_EYE_MARGIN);
+                        if (BuildConfig.DEBUG) {
+                            Log.d(TAG, "Street visibility computed in "
+                                    + Long.toString((System.nanoTime() - startTime) / 1000000) + " ms");
+                        }
+                    }
+                });
             }
         }
 
-        // Represent the position for the enter of the treasure room
-        mTreasurePos = mBuildings.get(treasureIndex).centerCoordinates;
-        // Remove the building from the list.
-        mBuildings.remove(treasureIndex);
+        if (BuildConfig.DEBUG && cached) {
+            Log.d(TAG, "City loaded from the cache in " + Long.toString((System.nanoTime() - startTime) / 1000000)
+                    + " ms");
+        }
 
         if (BuildConfig.DEBUG) {
             Log.d(TAG, "Treasure position set to :");
@@ -188,43 +429,152 @@ public class VRRenderer extends BaseGLRenderManager implements CardboardView.Ste
         }
 
         // Generate the stairs for the treasure
-        mTreasureStairs = Stairs.generate(GenUtil.STAIRS_NUMBER, GenUtil.STAIRS_HEIGHT,
-                GenUtil.STAIRS_DEPTH, GenUtil.STAIRS_WIDTH);
+        mTreasureStairs = Stairs.generate(mConfig);
 
-        mTreasureStairs.area = new RectF(mTreasurePos[0] - GenUtil.HALF_BUILD_SQUARE_WIDTH,
-                mTreasurePos[2] - GenUtil.HALF_BUILD_SQUARE_WIDTH,
-                mTreasurePos[0] + GenUtil.HALF_BUILD_SQUARE_WIDTH,
-                mTreasurePos[2] + GenUtil.HALF_BUILD_SQUARE_WIDTH);
+        mTreasureStairs.area = new RectF(mTreasurePos[0] - mConfig.halfBuildSquareWidth,
+                mTreasurePos[2] - mConfig.halfBuildSquareWidth,
+                mTreasurePos[0] + mConfig.halfBuildSquareWidth,
+                mTreasurePos[2] + mConfig.halfBuildSquareWidth);
 
         mTreasureStairs.generateFloorSurfaces();
 
-        mTreasureArea = new RectF3D(mTreasureStairs.area.left + TreasureCorridor.CORRIDOR_LENGTH - 20.0f,
+        final float corridorLength = TreasureCorridor.getLength(mConfig);
+        final float corridorHeight = TreasureCorridor.getHeight(mConfig);
+        mTreasureArea = new RectF3D(mTreasureStairs.area.left + corridorLength - 20.0f,
                 mTreasureStairs.area.top,
-                mTreasureStairs.area.left + TreasureCorridor.CORRIDOR_LENGTH,
+                mTreasureStairs.area.left + corridorLength,
                 mTreasureStairs.area.bottom,
-                -TreasureCorridor.CORRIDOR_HEIGHT,
-                -TreasureCorridor.CORRIDOR_HEIGHT + PLAYER_HEIGHT + 5.0f);
+                -corridorHeight,
+                -corridorHeight + PLAYER_HEIGHT + 5.0f);
+
+        generateLights(corridorLength, corridorHeight);
+    }
 
-        // TODO: generate lights here
+    // Generate light matrices for the treasure, and their position in world space
+    protected void generateLights(float corridorLength, float corridorHeight) {
+        // TODO: make lights work
+        Matrix.setIdentityM(mLightModelMatrix[0], 0);
+        //Matrix.translateM(mLightModelMatrix[0], 0, mTreasureStairs.area.left, 1.0f, mTreasureStairs.area.top);
+        Matrix.translateM(mLightModelMatrix[0], 0, 0.0f, 5.0f, 0.0f);
 
-        // Generate restricted areas
-        mRestrictedAreas = Building.generateRestrictedAreas(mBuildings, mTreasurePos);
+        Matrix.setIdentityM(mLightModelMatrix[1], 0);
+        Matrix.translateM(mLightModelMatrix[1], 0, mTreasureStairs.area.left, 1.0f, mTreasureStairs.area.bottom);
+
+        Matrix.setIdentityM(mLightModelMatrix[2], 0);
+        Matrix.translateM(mLightModelMatrix[2], 0, mTreasureStairs.area.left + corridorLength - 1.0f,
+                1.0f - corridorHeight, mTreasureStairs.area.top - 1.0f);
+
+        Matrix.setIdentityM(mLightModelMatrix[3], 0);
+        Matrix.translateM(mLightModelMatrix[3], 0, mTreasureStairs.area.left + corridorLength - 1.0f,
+                1.0f - corridorHeight, mTreasureStairs.area.bottom + 1.0f);
+
+        for (int i = 0; i < mLightModelMatrix.length; ++i) {
+            Matrix.multiplyMV(mLightPosInWorldSpace[i], 0, mLightModelMatrix[i], 0, mLightPosInModelSpace, 0);
+        }
+    }
 
-        // Generate textures
-        // Handles to these textures are generated in onSurfaceCreated() method.
-        int i;
-        for (i=0 ; i < 6 ; ++i) {
-            mBuildTextureBitmaps[i] = Building.generateFuzzyTexture(false);
+    // Wait for textures (and the street visibility) generated in the background, and store the city in the cache.
+    // Handles to these textures are generated in onSurfaceCreated() method.
+    protected void finishTextures() {
+        // ETC1 textures are only computed if they are used
+        mTextures = mTextureGenerator.join(mETC1Supported);
+        mCompressedTextures = mTextureGenerator.getCompressedTextures();
+        mTextureAtlas = mTextureGenerator.getAtlas();
+        mBuildingsAverageColor = mTextureGenerator.getAtlasAverageColor();
+        mTextureGenerator = null;
+
+        // Store the city (with textures in the format of this device), textures and buildings
+        // are then uploaded from the cache
+        final long startTime = System.nanoTime();
+        if (mCityCache.save(mStreamingCity ? null : mBuildings, mTreasurePos, mTextures,
+                mCompressedTextures, mTextureAtlas, mBuildingsAverageColor, mStreetVisibility, mETC1Supported)) {
+            releaseTextures();
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "City saved in the cache in "
+                        + Long.toString((System.nanoTime() - startTime) / 1000000) + " ms");
+            }
         }
-        for (; i < 8 ; ++i) {
-            mBuildTextureBitmaps[i] = Building.generateFuzzyTexture(true);
+    }
+
+    // Free textures once they are stored in the cache
+    protected void releaseTextures() {
+        mTextures = null;
+        mCompressedTextures = null;
+    }
+
+    /**
+     * Load a texture from the cache if possible, else from the generated one.
+     * The ETC1 version is used when the device supports it (the cache then only contains this one).
+     * Mipmaps are already computed, they are only uploaded (from the first one supported by the device).
+     */
+    protected int loadCityTexture(int index) {
+        if (mTextures == null) {
+            final CompressedTexture compressed = mCityCache.getCompressedTexture(index);
+            return compressed != null ? TextureHelper.loadCompressedTexture(compressed, mMaxTextureSize)
+                    : TextureHelper.loadTexture(mCityCache.getTexture(index), mMaxTextureSize);
         }
-        for (; i < 16 ; ++i) {
-            mBuildTextureBitmaps[i] = Building.generateLinearTexture();
+
+        if (mETC1Supported && mCompressedTextures[index] != null) {
+            return TextureHelper.loadCompressedTexture(mCompressedTextures[index], mMaxTextureSize);
+        }
+        return TextureHelper.loadTexture(mTextures[index], mMaxTextureSize);
+    }
+
+    // Generate all buildings of the city and choose the treasure
+    protected void generateBuildings(boolean debugGeneration) {
+        // Big cities are generated on the pool of the texture generator (already running) with this thread
+        final long startTime = System.nanoTime();
+        mBuildings = Building.generateAllBuildings(mConfig, mSeed, mTextureGenerator.getExecutor(),
+                mTextureGenerator.getThreadsNumber());
+
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, Integer.toString(mBuildings.size) + " buildings generated in "
+                    + Long.toString((System.nanoTime() - startTime) / 1000) + " us");
         }
 
-        mRoadTextureBitmap = Road.generateTexture();
-        mTreasureCorridorBitmap = TreasureCorridor.generateTexture();
+        // Define the treasure pos
+        int treasureIndex = 2;
+        if(!debugGeneration) {
+            // We replace a random building by the treasure, and get its positions
+            Random rand = mSeed.treasureRandom();
+            treasureIndex = rand.nextInt(mBuildings.size);
+            // Block the treasure from spawning outside the walk area
+            while (mBuildings.centerX[treasureIndex] > mConfig.halfAllowedGridSize ||
+                    mBuildings.centerX[treasureIndex] < -mConfig.halfAllowedGridSize ||
+                    mBuildings.centerZ[treasureIndex] > mConfig.halfAllowedGridSize ||
+                    mBuildings.centerZ[treasureIndex] < -mConfig.halfAllowedGridSize) {
+                treasureIndex = rand.nextInt(mBuildings.size);
+            }
+        }
+
+        // Represent the position for the enter of the treasure room
+        mTreasurePos = mBuildings.get(treasureIndex).getCenterCoordinates();
+        // Remove the building from the list.
+        mBuildings.remove(treasureIndex);
+
+        // Generate restricted areas
+        mRestrictedAreas = Building.generateRestrictedAreas(mBuildings);
+    }
+
+    // Choose the treasure and prepare the chunks for the streaming city.
+    // Buildings are generated later, around the player.
+    protected void generateStreamingBuildings(boolean debugGeneration) {
+        // The treasure stays near the start position
+        int treasureBlockX = 0;
+        int treasureBlockZ = -1;
+        if (!debugGeneration) {
+            Random rand = mSeed.treasureRandom();
+            treasureBlockX = rand.intBetween(-4, 3);
+            treasureBlockZ = rand.intBetween(-4, 3);
+        }
+
+        mTreasurePos = new float[]{
+                mConfig.getBlockTopLeft(treasureBlockX) + mConfig.halfBuildSquareWidth,
+                0.0f,
+                mConfig.getBlockTopLeft(treasureBlockZ) + mConfig.halfBuildSquareWidth
+        };
+
+        mChunkStreamer = new ChunkStreamer(mConfig, mSeed, treasureBlockX, treasureBlockZ, mGLState);
     }
 
     // Utility function to move the player
@@ -243,22 +593,37 @@ public class VRRenderer extends BaseGLRenderManager implements CardboardView.Ste
         // Used to know if we are in a restricted area or not
         boolean inRestrictedArea = false;
 
-        // Check if we are in a building
-        for (RectF3D area : mRestrictedAreas) {
-            if (area.contains(eyeX, eyeY, eyeZ)) {
+        // Check if we are in a building (without allocation, this is called for each move)
+        if (mStreamingCity) {
+            // On the streaming city, only buildings around the player are checked.
+            // Blocks are separated by streets, so the player can only be in one area: cancel the move.
+            if (mChunkStreamer.isInRestrictedArea(eyeX, eyeY, eyeZ)) {
                 inRestrictedArea = true;
-                // Check for each axis
-                if (area.containsXAxis(eyeX)) {
-                    lookX -= moveX;
-                    eyeX -= moveX;
-                }
-                if (area.containsYAxis(eyeY)) {
-                    lookY -= moveY;
-                    eyeY -= moveY;
-                }
-                if (area.containsZAxis(eyeZ)) {
-                    lookZ += moveZ;
-                    eyeZ += moveZ;
+                lookX -= moveX;
+                eyeX -= moveX;
+                lookY -= moveY;
+                eyeY -= moveY;
+                lookZ += moveZ;
+                eyeZ += moveZ;
+            }
+        } else {
+            for (int i = 0; i < mRestrictedAreas.size(); ++i) {
+                final RectF3D area = mRestrictedAreas.get(i);
+                if (area.contains(eyeX, eyeY, eyeZ)) {
+                    inRestrictedArea = true;
+                    // Check for each axis
+                    if (area.containsXAxis(eyeX)) {
+                        lookX -= moveX;
+                        eyeX -= moveX;
+                    }
+                    if (area.containsYAxis(eyeY)) {
+                        lookY -= moveY;
+                        eyeY -= moveY;
+                    }
+                    if (area.containsZAxis(eyeZ)) {
+                        lookZ += moveZ;
+                        eyeZ += moveZ;
+                    }
                 }
             }
         }
@@ -282,19 +647,23 @@ public class VRRenderer extends BaseGLRenderManager implements CardboardView.Ste
             //
 
             // Check if the player is on the stairs
-            for (FloorSurface surface : mTreasureStairs.floorSurfaces) {
+            for (int i = 0; i < mTreasureStairs.floorSurfaces.size(); ++i) {
+                final FloorSurface surface = mTreasureStairs.floorSurfaces.get(i);
                 if (surface.area.contains(eyeX, eyeZ)) {
                     eyeY = surface.height + PLAYER_HEIGHT;
                     lookY = eyeY;
                 }
             }
 
-            // Check if the player is out of the city
-            if (eyeX >= GenUtil.HALF_ALLOWED_GRID_SIZE || eyeX <= -GenUtil.HALF_ALLOWED_GRID_SIZE) {
+            // Check if the player is out of the city (the streaming city has no limit)
+            if (mStreamingCity) {
+                return true;
+            }
+            if (eyeX >= mConfig.halfAllowedGridSize || eyeX <= -mConfig.halfAllowedGridSize) {
                 lookX -= moveX;
                 eyeX -= moveX;
                 return false;
-            } else if (eyeZ >= GenUtil.HALF_ALLOWED_GRID_SIZE || eyeZ <= -GenUtil.HALF_ALLOWED_GRID_SIZE) {
+            } else if (eyeZ >= mConfig.halfAllowedGridSize || eyeZ <= -mConfig.halfAllowedGridSize) {
                 lookZ += moveZ;
                 eyeZ += moveZ;
                 return false;
@@ -306,6 +675,9 @@ public class VRRenderer extends BaseGLRenderManager implements CardboardView.Ste
 
     @Override
     public void onRendererShutdown() {
+        if (mStreamingCity) {
+            mChunkStreamer.shutdown();
+        }
     }
 
     @Override
@@ -317,6 +689,9 @@ public class VRRenderer extends BaseGLRenderManager implements CardboardView.Ste
      */
     @Override
     public void onSurfaceCreated(EGLConfig config) {
+        // The context is new, nothing is bound
+        mGLState.invalidate();
+
         // Use culling to remove back faces.
         GLES20.glEnable(GLES20.GL_CULL_FACE);
 
@@ -326,114 +701,196 @@ public class VRRenderer extends BaseGLRenderManager implements CardboardView.Ste
         GLES20.glDepthFunc(GLES20.GL_LEQUAL);
         GLES20.glDepthMask(true);
 
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_REPEAT);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_REPEAT);
-
         final String vertexShader = RawResourceReader.readTextFileFromRawResource(mActivityContext, R.raw.vertex_shader);
         final String fragmentShader = RawResourceReader.readTextFileFromRawResource(mActivityContext, R.raw.fragment_shader);
 
-        final int vertexShaderHandle = ShaderHelper.compileShader(GLES20.GL_VERTEX_SHADER, vertexShader);
-        final int fragmentShaderHandle = ShaderHelper.compileShader(GLES20.GL_FRAGMENT_SHADER, fragmentShader);
+        mProgram = new ShaderProgram(vertexShader, fragmentShader,
+                new String[]{"a_Position", "a_Normal", "a_TexCoordinate", "a_Color"},
+                new String[]{"u_MVPMatrix", "u_MVMatrix", "u_Texture", "u_TextureFlag", "u_FogFlag", "u_Color",
+                        "u_LightPos"});
+        mProgramHandle = mProgram.handle;
+
+        // Load uniforms from the shader
+        mMVPMatrixUniform = mProgram.getUniform("u_MVPMatrix");
+        mMVMatrixUniform = mProgram.getUniform("u_MVMatrix");
+        mTextureUniform = mProgram.getUniform("u_Texture");
+        mTextureFlagUniform = mProgram.getUniform("u_TextureFlag");
+        mFogFlagUniform = mProgram.getUniform("u_FogFlag");
+        mColorUniform = mProgram.getUniform("u_Color");
 
-        mProgramHandle = ShaderHelper.createAndLinkProgram(vertexShaderHandle, fragmentShaderHandle,
-                new String[]{"a_Position", "a_Normal", "a_TexCoordinate"});
+        mLightPosUniform1 = mProgram.getUniform("u_LightPos");
+
+        // Load attributes from the shader
+        mPositionHandle = mProgram.getAttribute("a_Position");
+        mNormalHandle = mProgram.getAttribute("a_Normal");
+        mTextureCoordinateHandle = mProgram.getAttribute("a_TexCoordinate");
+        mVertexColorHandle = mProgram.getAttribute("a_Color");
+
+        // Attributes are bound to the same locations (in the order of the array)
+        mLodProgram = new ShaderProgram(
+                RawResourceReader.readTextFileFromRawResource(mActivityContext, R.raw.lod_vertex_shader),
+                RawResourceReader.readTextFileFromRawResource(mActivityContext, R.raw.lod_fragment_shader),
+                new String[]{"a_Position", "a_Normal", "a_TexCoordinate", "a_Color"},
+                new String[]{"u_MVPMatrix", "u_MVMatrix", "u_FogFlag", "u_Color", "u_LightPos"});
+        mLodMVPMatrixUniform = mLodProgram.getUniform("u_MVPMatrix");
+        mLodMVMatrixUniform = mLodProgram.getUniform("u_MVMatrix");
+        mLodFogFlagUniform = mLodProgram.getUniform("u_FogFlag");
+        mLodColorUniform = mLodProgram.getUniform("u_Color");
+        mLodLightPosUniform = mLodProgram.getUniform("u_LightPos");
+
+        mETC1Supported = ETC1Util.isETC1Supported();
+        mMaxTextureSize = TextureHelper.getMaxTextureSize();
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "ETC1 textures " + (mETC1Supported ? "supported" : "not supported")
+                    + ", maximum texture size " + Integer.toString(mMaxTextureSize));
+        }
+
+        // The cache only contains textures in the format of the device where it was saved.
+        // They are generated again (and the city is saved again) if they can't be used here.
+        if (mTextureGenerator == null && mCityCache.isLoaded() && !mCityCache.hasValidTextures(mETC1Supported)) {
+            Log.w(TAG, "Textures of the cache can't be used, they are generated again");
+            mCityCache.unload();
+            mTextureGenerator = new TextureGenerator(mSeed, mConfig, Runtime.getRuntime().availableProcessors());
+            mTextureGenerator.start();
+        }
+
+        // Wait for textures (only the first time)
+        if (mTextureGenerator != null) {
+            finishTextures();
+        }
 
         // Load the texture
-        mRoadTextureDataHandle = TextureHelper.loadTexture(mRoadTextureBitmap, false);
-        GLES20.glGenerateMipmap(GLES20.GL_TEXTURE_2D);
+        mRoadTextureDataHandle = loadCityTexture(TextureGenerator.ROAD_TEXTURE_INDEX);
+        // The road texture contains only one block, it's repeated along roads
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_REPEAT);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_REPEAT);
 
-        mTreasureCorridorTextureDataHandle = TextureHelper.loadTexture(mTreasureCorridorBitmap, false);
-        GLES20.glGenerateMipmap(GLES20.GL_TEXTURE_2D);
+        mTreasureCorridorTextureDataHandle = loadCityTexture(TextureGenerator.CORRIDOR_TEXTURE_INDEX);
 
         // Load buildings textures
-        for(int i=0 ; i < mBuildTextureBitmaps.length ; ++i) {
-            mBuildTextureDataHandles[i] = TextureHelper.loadTexture(mBuildTextureBitmaps[i], false);
-            GLES20.glGenerateMipmap(GLES20.GL_TEXTURE_2D);
-        }
+        mBuildTextureDataHandle = loadCityTexture(TextureGenerator.ATLAS_TEXTURE_INDEX);
 
         //
         // Generate all VBOs
         //
 
+        final long startTime = System.nanoTime();
+
         //
         // Building VBOs
-        mBuildVBOBuffers = new int[mBuildings.size()];
-        GLES20.glGenBuffers(mBuildings.size(), mBuildVBOBuffers, 0);
-
-        // Generate one VBO per building
-        for (int i = 0; i < mBuildings.size(); i++) {
-            FloatBuffer buildBuffer = BufferHelper.getInterleavedBuffer(mBuildings.get(i).positions,
-                    Building.normals, Building.textureCoordinates);
+        if (mStreamingCity) {
+            // Chunks are uploaded when needed, previous buffers are lost
+            mChunkStreamer.onSurfaceCreated(mTextureAtlas);
+        } else {
+            final int batchesNumber = mBuildingBatches.getBatchesNumber();
+            mBuildVBOBuffers = new int[batchesNumber];
+            GLES20.glGenBuffers(batchesNumber, mBuildVBOBuffers, 0);
+
+            // Generate one VBO per batch, with the color of buildings in vertices.
+            // The geometry is mapped from the cache (buildings of a batch are consecutive),
+            // or computed from the model only when creating the buffer
+            final MeshBuilder buildingsBuilder = new MeshBuilder(MeshBuilder.POSITION_NORMAL_TEXTURE_COLOR);
+            final float[] positions = new float[CityChunk.BUILDING_VERTICES * 3];
+            final float[] textureCoordinates = new float[CityChunk.BUILDING_VERTICES * 2];
+            final float[] colors = new float[CityChunk.BUILDING_VERTICES * 4];
+            for (int batch = 0; batch < batchesNumber; ++batch) {
+                final int first = mBuildingBatches.getFirstBuilding(batch);
+                final int count = mBuildingBatches.getBuildingsNumber(batch);
+                // Null if the geometry in the cache is corrupted
+                final FloatBuffer geometry = mCityCache.isLoaded() ? mCityCache.getBuildingsGeometry(first, count)
+                        : null;
+                if (geometry != null) {
+                    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mBuildVBOBuffers[batch]);
+                    GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, count * CityCache.BUILDING_GEOMETRY_BYTES,
+                            geometry, GLES20.GL_STATIC_DRAW);
+                } else {
+                    buildingsBuilder.reset();
+                    for (int i = first; i < first + count; ++i) {
+                        mBuildings.writePositions(i, positions, 0);
+                        mTextureAtlas.mapTextureCoordinates(mBuildings.textureTypes[i],
+                                Building.mesh.textureCoordinates, textureCoordinates, 0);
+                        mBuildings.writeColors(i, colors, 0);
+                        buildingsBuilder.addVertices(CityChunk.BUILDING_VERTICES, positions,
+                                Building.mesh.normals, textureCoordinates, colors);
+                    }
+                    buildingsBuilder.upload(mBuildVBOBuffers[batch], 0, GLES20.GL_STATIC_DRAW);
+                }
+            }
 
-            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mBuildVBOBuffers[i]);
-            GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, buildBuffer.capacity() * IShape.BYTES_PER_FLOAT,
-                    buildBuffer, GLES20.GL_STATIC_DRAW);
+            // Indices are shared by all batches: the ones of the biggest batch, building after building
+            final int buildTempBuffers[] = new int[1];
+            GLES20.glGenBuffers(1, buildTempBuffers, 0);
+            buildingsBuilder.reset();
+            for (int i = 0; i < mBuildingBatches.maxBatchBuildings; ++i) {
+                buildingsBuilder.addIndices(Building.mesh.indices, i * CityChunk.BUILDING_VERTICES);
+            }
+            buildingsBuilder.upload(0, buildTempBuffers[0], GLES20.GL_STATIC_DRAW);
+            mBuildIBOBuffer = buildTempBuffers[0];
 
-            buildBuffer.limit(0);
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, Integer.toString(mBuildings.size) + " buildings merged in "
+                        + Integer.toString(batchesNumber) + " batches");
+            }
         }
 
         //
         // Road VBO
-        FloatBuffer roadBuffer = BufferHelper.getInterleavedBuffer(Road.positionData,
-                Road.normalsData, Road.textureCoordinatesData);
-
-        final int roadTempBuffers[] = new int[1];
-        GLES20.glGenBuffers(1, roadTempBuffers, 0);
-
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, roadTempBuffers[0]);
-        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, roadBuffer.capacity() * IShape.BYTES_PER_FLOAT,
-                roadBuffer, GLES20.GL_STATIC_DRAW);
-
+        // All roads of the full city are in the same mesh, at their place
+        final int roadVertices = Road.getCityVerticesNumber(mConfig);
+        float[] roadPositions = new float[roadVertices * 3];
+        float[] roadNormals = new float[roadVertices * 3];
+        float[] roadTexCoords = new float[roadVertices * 2];
+        Road.generateCityData(mConfig, roadPositions, roadNormals, roadTexCoords);
+        final IndexedMesh roadMesh = IndexedMesh.create(roadPositions, roadNormals, roadTexCoords);
+
+        final int roadTempBuffers[] = createMeshBuffers(mMeshBuilder, roadMesh);
         mRoadVBOBuffer = roadTempBuffers[0];
-        roadBuffer.limit(0);
+        mRoadIBOBuffer = roadTempBuffers[1];
+        mRoadIndicesNumber = roadMesh.getIndicesNumber();
 
         //
         // SkyBox VBO
-        FloatBuffer skyBuffer = BufferHelper.getInterleavedBuffer(SkyBox.positionData,
-                SkyBox.normalsData, new float[0]);
-
-        final int skyTempBuffers[] = new int[1];
-        GLES20.glGenBuffers(1, skyTempBuffers, 0);
-
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, skyTempBuffers[0]);
-        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, skyBuffer.capacity() * IShape.BYTES_PER_FLOAT,
-                skyBuffer, GLES20.GL_STATIC_DRAW);
+        final IndexedMesh skyMesh = IndexedMesh.create(SkyBox.positionData, SkyBox.normalsData, new float[0]);
 
+        final int skyTempBuffers[] = createMeshBuffers(mMeshBuilderNoTex, skyMesh);
         mSkyBoxVBOBuffer = skyTempBuffers[0];
-        skyBuffer.limit(0);
+        mSkyBoxIBOBuffer = skyTempBuffers[1];
+        mSkyBoxIndicesNumber = skyMesh.getIndicesNumber();
 
         //
         // Stairs VBOs
-        FloatBuffer stairsBuffer = BufferHelper.getInterleavedBuffer(mTreasureStairs.positionData,
-                mTreasureStairs.normals, new float[0]);
-
-        final int stairsTempBuffers[] = new int[1];
-        GLES20.glGenBuffers(1, stairsTempBuffers, 0);
-
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, stairsTempBuffers[0]);
-        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, stairsBuffer.capacity() * IShape.BYTES_PER_FLOAT,
-                stairsBuffer, GLES20.GL_STATIC_DRAW);
-
+        final int stairsTempBuffers[] = createMeshBuffers(mMeshBuilderNoTex, mTreasureStairs.mesh);
         mStairsVBOBuffer = stairsTempBuffers[0];
-        stairsBuffer.limit(0);
+        mStairsIBOBuffer = stairsTempBuffers[1];
 
         //
         // Treasure corridor VBOs
-        FloatBuffer corridorBuffer = BufferHelper.getInterleavedBuffer(TreasureCorridor.positionData,
+        final IndexedMesh corridorMesh = IndexedMesh.create(TreasureCorridor.generatePositionData(mConfig),
                 TreasureCorridor.normalsData, TreasureCorridor.textureCoordinatesData);
 
-        final int corridorTempBuffers[] = new int[1];
-        GLES20.glGenBuffers(1, corridorTempBuffers, 0);
-
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, corridorTempBuffers[0]);
-        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, corridorBuffer.capacity() * IShape.BYTES_PER_FLOAT,
-                corridorBuffer, GLES20.GL_STATIC_DRAW);
-
+        final int corridorTempBuffers[] = createMeshBuffers(mMeshBuilder, corridorMesh);
         mTreasureCorridorVBOBuffer = corridorTempBuffers[0];
-        corridorBuffer.limit(0);
+        mTreasureCorridorIBOBuffer = corridorTempBuffers[1];
+        mTreasureCorridorIndicesNumber = corridorMesh.getIndicesNumber();
 
         // Finish the binding
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        mGLState.unbindBuffers();
+
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "VBOs created in " + Long.toString((System.nanoTime() - startTime) / 1000000) + " ms");
+        }
+    }
+
+    // Upload vertices and indices of the mesh in new buffers with the builder (its format is used),
+    // return handles of the VBO and the IBO
+    protected int[] createMeshBuffers(MeshBuilder builder, IndexedMesh mesh) {
+        final int buffers[] = new int[2];
+        GLES20.glGenBuffers(2, buffers, 0);
+
+        builder.reset();
+        builder.addMesh(mesh);
+        builder.upload(buffers[0], buffers[1], GLES20.GL_STATIC_DRAW);
+        return buffers;
     }
 
     @Override
@@ -454,336 +911,613 @@ public class VRRenderer extends BaseGLRenderManager implements CardboardView.Ste
      */
     @Override
     public void onNewFrame(HeadTransform headTransform) {
+        if (CHECK_ALLOCATIONS) {
+            checkFrameAllocations();
+        }
+
         headTransform.getHeadView(mHeadView, 0);
         headTransform.getForwardVector(lookForwardVector, 0);
-    }
 
-    /**
-     * Draws a frame for an eye. The transformation for that eye (from the camera) is passed in as
-     * a parameter.
-     * @param transform The transformations to apply to render this eye.
-     */
-    @Override
-    public void onDrawEye(Eye transform) {
-        clearGLBuffers();
+        // The distortion pass of the previous frame changed the state (both eyes share the state of this frame)
+        mGLState.invalidate();
+
+        // Load (and unload) chunks around the player
+        if (mStreamingCity) {
+            mSteadyFrame = !mChunkStreamer.update(eyeX, eyeZ);
+        }
+
+        // Both eyes use the same fog: with it, nothing is drawn where the fog covers everything,
+        // the screen is cleared with its color (the color of the sky box seen through the fog)
+        mFrameFog = enableFog;
+        mFarPlane = mFrameFog ? FOG_END_DISTANCE : PROJECTION_FAR;
+        mLodDistance = mFrameFog ? FOG_LOD_DISTANCE : LOD_DISTANCE;
+        if (mFrameFog) {
+            System.arraycopy(FOG_COLOR, 0, mClearColor, 0, 4);
+        } else {
+            Arrays.fill(mClearColor, 0.0f);
+        }
+
+        // Both eyes use the same position of the player
         setLookAt();
+        System.arraycopy(mViewMatrix, 0, mFrameViewMatrix, 0, 16);
 
-        GLES20.glUseProgram(mProgramHandle);
+        // Visible buildings are found once for both eyes
+        updateStereoFrustum();
+        cullBuildings();
+        fillRenderQueue();
+        recordFrame();
 
-        // Load uniforms from the shader
-        mMVPMatrixHandle = GLES20.glGetUniformLocation(mProgramHandle, "u_MVPMatrix");
-        mMVMatrixHandle = GLES20.glGetUniformLocation(mProgramHandle, "u_MVMatrix");
-        mTextureUniformHandle = GLES20.glGetUniformLocation(mProgramHandle, "u_Texture");
-        mTextureFlagHandle = GLES20.glGetUniformLocation(mProgramHandle, "u_TextureFlag");
-        mFogFlagHandle = GLES20.glGetUniformLocation(mProgramHandle, "u_FogFlag");
-        mColorHandle = GLES20.glGetUniformLocation(mProgramHandle, "u_Color");
-
-        mLightPosHandle1 = GLES20.glGetUniformLocation(mProgramHandle, "u_LightPos");
-        /*mLightPosHandle1 = GLES20.glGetUniformLocation(mProgramHandle, "u_LightPos1");
-        mLightPosHandle2 = GLES20.glGetUniformLocation(mProgramHandle, "u_LightPos2");
-        mLightPosHandle3 = GLES20.glGetUniformLocation(mProgramHandle, "u_LightPos3");
-        mLightPosHandle4 = GLES20.glGetUniformLocation(mProgramHandle, "u_LightPos4");*/
+        if (CHECK_ALLOCATIONS) {
+            mFrameAllocations += Debug.getThreadAllocCount() - mAllocationsStart;
+        }
+    }
 
-        // Load attributes from the shader
-        mPositionHandle = GLES20.glGetAttribLocation(mProgramHandle, "a_Position");
-        mNormalHandle = GLES20.glGetAttribLocation(mProgramHandle, "a_Normal");
-        mTextureCoordinateHandle = GLES20.glGetAttribLocation(mProgramHandle, "a_TexCoordinate");
+    // Report objects allocated during the previous frame, and start counting for this one (debug only)
+    protected void checkFrameAllocations() {
+        if (mCheckedFrames == 0) {
+            Debug.startAllocCounting();
+        }
+        if (mCheckedFrames > ALLOCATION_WARM_UP_FRAMES && mSteadyFrame && mFrameAllocations > 0) {
+            Log.w(TAG, Integer.toString(mFrameAllocations) + " objects allocated while rendering a frame");
+        }
+        mCheckedFrames++;
+        mFrameAllocations = 0;
+        mSteadyFrame = true;
+        mAllocationsStart = Debug.getThreadAllocCount();
+    }
 
-        // Apply the eye transformation to the camera
-        float[] tempViewMatrix = new float[16];
-        Matrix.multiplyMM(tempViewMatrix, 0, transform.getEyeView(), 0, mViewMatrix, 0);
-        System.arraycopy(tempViewMatrix, 0, mViewMatrix, 0, 16);
+    /**
+     * Compute the frustum that contains the frustums of all eyes (drawn in the previous frame).
+     * It has the largest field of view of eyes, from the center of the head moved back until
+     * eyes are inside it (so near and far planes are also moved back).
+     */
+    protected void updateStereoFrustum() {
+        if (mNextEyeParamsFound) {
+            System.arraycopy(mNextEyeFovTangents, 0, mEyeFovTangents, 0, 4);
+            mEyeDistance = mNextEyeDistance;
+            mEyeParamsFound = true;
+        } else if (!mEyeParamsFound) {
+            Arrays.fill(mEyeFovTangents, DEFAULT_FOV_TANGENT);
+            mEyeDistance = DEFAULT_EYE_DISTANCE;
+        }
+        Arrays.fill(mNextEyeFovTangents, 0.0f);
+        mNextEyeDistance = 0.0f;
+        mNextEyeParamsFound = false;
+
+        final float left = mEyeFovTangents[0];
+        final float right = mEyeFovTangents[1];
+        final float back = mEyeDistance / Math.min(left, right);
+        final float near = PROJECTION_NEAR + back;
+        final float far = mFarPlane + back;
+        Matrix.frustumM(mStereoProjectionMatrix, 0, -left * near, right * near,
+                -mEyeFovTangents[2] * near, mEyeFovTangents[3] * near, near, far);
+
+        // The view of the head, then moved back (the last row of the view is always 0, 0, 0, 1)
+        Matrix.multiplyMM(mStereoViewMatrix, 0, mHeadView, 0, mFrameViewMatrix, 0);
+        mStereoViewMatrix[14] -= back;
+
+        Matrix.multiplyMM(mViewProjectionMatrix, 0, mStereoProjectionMatrix, 0, mStereoViewMatrix, 0);
+        mFrustum.setMatrix(mViewProjectionMatrix, 0);
+    }
 
-        checkFog();
+    // Keep the largest field of view and distance to the head of eyes, for the stereo frustum of the next frame
+    protected void updateEyeParams(Eye eye) {
+        final FieldOfView fov = eye.getFov();
+        mNextEyeFovTangents[0] = Math.max(mNextEyeFovTangents[0], (float) Math.tan(Math.toRadians(fov.getLeft())));
+        mNextEyeFovTangents[1] = Math.max(mNextEyeFovTangents[1], (float) Math.tan(Math.toRadians(fov.getRight())));
+        mNextEyeFovTangents[2] = Math.max(mNextEyeFovTangents[2], (float) Math.tan(Math.toRadians(fov.getBottom())));
+        mNextEyeFovTangents[3] = Math.max(mNextEyeFovTangents[3], (float) Math.tan(Math.toRadians(fov.getTop())));
+
+        // The eye view is the head view moved by the eye position
+        final float[] eyeView = eye.getEyeView();
+        final float dx = eyeView[12] - mHeadView[12];
+        final float dy = eyeView[13] - mHeadView[13];
+        final float dz = eyeView[14] - mHeadView[14];
+        mNextEyeDistance = Math.max(mNextEyeDistance, (float) Math.sqrt(dx * dx + dy * dy + dz * dz));
+        mNextEyeParamsFound = true;
+    }
 
+    // Find visible buildings (or chunks) with the stereo frustum, the result is used by both eyes
+    protected void cullBuildings() {
+        if (mStreamingCity) {
+            mVisibleChunks.clear();
+            final List<CityChunk> loadedChunks = mChunkStreamer.getLoadedChunks();
+            for (int i = 0; i < loadedChunks.size(); ++i) {
+                final CityChunk chunk = loadedChunks.get(i);
+                // The frustum is a bit larger than the distance of the fog in its corners
+                if (mFrustum.intersectsBox(chunk.minX, 0.0f, chunk.minZ, chunk.maxX, chunk.maxHeight, chunk.maxZ)
+                        && BuildingBatches.getBoxDistance(chunk.minX, chunk.minZ, chunk.maxX, chunk.maxZ,
+                        eyeX, eyeZ) <= mFarPlane) {
+                    mVisibleChunks.add(chunk);
+                }
+            }
+            return;
+        }
 
-        // TODO: make lights work
-        //
-        // Generate light matrices for the treasure
-        //
+        // Unknown outside streets (and above the height used to compute it): all buildings in the frustum are drawn
+        int streetCell = -1;
+        if (mStreetVisibility != null && eyeY <= mStreetVisibility.eyeHeight) {
+            streetCell = mStreetVisibility.getCell(eyeX, eyeZ);
+        }
+        final float x = eyeX;
+        final float z = eyeZ;
+
+        mBuildingDrawsNumber = 0;
+        for (int batch = 0; batch < mBuildingBatches.getBatchesNumber(); ++batch) {
+            final int rangesNumber = mBuildingBatches.cull(batch, mFrustum, mVisibleRanges);
+            final int batchFirst = mBuildingBatches.getFirstBuilding(batch);
+            for (int i = 0; i < rangesNumber; ++i) {
+                final int first = mVisibleRanges[i * 2];
+                final int end = first + mVisibleRanges[i * 2 + 1];
+
+                // Split the range in runs of buildings with the same detail
+                int runFirst = first;
+                int runDetail = getBuildingDetail(batchFirst + first, streetCell, x, z);
+                for (int building = first + 1; building < end; ++building) {
+                    final int detail = getBuildingDetail(batchFirst + building, streetCell, x, z);
+                    if (detail != runDetail) {
+                        addBuildingDraw(batch, runFirst, building, runDetail);
+                        runFirst = building;
+                        runDetail = detail;
+                    }
+                }
+                addBuildingDraw(batch, runFirst, end, runDetail);
+            }
+        }
+    }
 
-        float[] tempLightModelMatrix = new float[16];
-        Matrix.setIdentityM(tempLightModelMatrix, 0);
-        //Matrix.translateM(mLightModelMatrix[0], 0, mTreasureStairs.area.left, 1.0f, mTreasureStairs.area.top);
-        Matrix.translateM(tempLightModelMatrix, 0, 0.0f, 5.0f, 0.0f);
-        mLightModelMatrix[0] = tempLightModelMatrix;
+    // Return how a building of the full city is drawn: hidden (from the street of the player or by the fog),
+    // near or far (without texture)
+    private int getBuildingDetail(int building, int streetCell, float x, float z) {
+        if (streetCell >= 0 && !mStreetVisibility.isVisible(streetCell, building)) {
+            return DETAIL_HIDDEN;
+        }
+        final float halfWidth = mConfig.halfBuildSquareWidth;
+        final float centerX = mBuildings.centerX[building];
+        final float centerZ = mBuildings.centerZ[building];
+        final float distance = BuildingBatches.getBoxDistance(centerX - halfWidth, centerZ - halfWidth,
+                centerX + halfWidth, centerZ + halfWidth, x, z);
+        if (distance > mFarPlane) {
+            return DETAIL_HIDDEN;
+        }
+        return distance > mLodDistance ? DETAIL_FAR : DETAIL_NEAR;
+    }
+
+    // Draw buildings [first, end[ of the batch
+    private void addBuildingDraw(int batch, int first, int end, int detail) {
+        if (detail == DETAIL_HIDDEN) {
+            return;
+        }
+        mBuildingDraws[mBuildingDrawsNumber * 4] = batch;
+        mBuildingDraws[mBuildingDrawsNumber * 4 + 1] = first;
+        mBuildingDraws[mBuildingDrawsNumber * 4 + 2] = end - first;
+        mBuildingDraws[mBuildingDrawsNumber * 4 + 3] = detail == DETAIL_FAR ? 1 : 0;
+        mBuildingDrawsNumber++;
+    }
 
-        Matrix.setIdentityM(tempLightModelMatrix, 0);
-        Matrix.translateM(tempLightModelMatrix, 0, mTreasureStairs.area.left, 1.0f, mTreasureStairs.area.bottom);
-        mLightModelMatrix[1] = tempLightModelMatrix;
+    /**
+     * Draws a frame for an eye. The transformation for that eye (from the camera) is passed in as
+     * a parameter.
+     * @param transform The transformations to apply to render this eye.
+     */
+    @Override
+    public void onDrawEye(Eye transform) {
+        if (CHECK_ALLOCATIONS) {
+            mAllocationsStart = Debug.getThreadAllocCount();
+        }
 
-        Matrix.setIdentityM(tempLightModelMatrix, 0);
-        Matrix.translateM(tempLightModelMatrix, 0, mTreasureStairs.area.left + TreasureCorridor.CORRIDOR_LENGTH - 1.0f,
-                1.0f - TreasureCorridor.CORRIDOR_HEIGHT, mTreasureStairs.area.top - 1.0f);
-        mLightModelMatrix[2] = tempLightModelMatrix;
+        clearGLBuffers();
+        updateEyeParams(transform);
 
-        Matrix.setIdentityM(tempLightModelMatrix, 0);
-        Matrix.translateM(tempLightModelMatrix, 0, mTreasureStairs.area.left + TreasureCorridor.CORRIDOR_LENGTH - 1.0f,
-                1.0f - TreasureCorridor.CORRIDOR_HEIGHT, mTreasureStairs.area.bottom + 1.0f);
-        mLightModelMatrix[3] = tempLightModelMatrix;
+        // Apply the eye transformation to the camera
+        Matrix.multiplyMM(mViewMatrix, 0, transform.getEyeView(), 0, mFrameViewMatrix, 0);
 
-        //
-        // Update light matrices depending on the current view matrix
+        // Written in our matrix (getPerspective() returns an array of the eye)
+        transform.getFov().toPerspectiveMatrix(PROJECTION_NEAR, mFarPlane, mProjectionMatrix, 0);
 
-        float[] lightPosInWorldSpace = new float[4];
-        float[] lightPosInEyeSpace = new float[4];
-        Matrix.multiplyMV(lightPosInWorldSpace, 0, mLightModelMatrix[0], 0, mLightPosInModelSpace, 0);
-        Matrix.multiplyMV(lightPosInEyeSpace, 0, mViewMatrix, 0, lightPosInWorldSpace, 0);
-        mLightPosInEyeSpace[0] = lightPosInEyeSpace;
+        // Now, we can draw all elements on the screen: calls were recorded in onNewFrame(),
+        // only matrices (and the light) depend on the eye
+        if (BuildConfig.DEBUG) {
+            final long startTime = System.nanoTime();
+            mCommandList.replay(mViewMatrix, mProjectionMatrix);
+            final long drawTime = System.nanoTime() - startTime;
+            if (CHECK_ALLOCATIONS) {
+                mFrameAllocations += Debug.getThreadAllocCount() - mAllocationsStart;
+            }
+            logDrawTime(drawTime);
+        } else {
+            mCommandList.replay(mViewMatrix, mProjectionMatrix);
+        }
+    }
 
-        Matrix.multiplyMV(lightPosInWorldSpace, 0, mLightModelMatrix[1], 0, mLightPosInModelSpace, 0);
-        Matrix.multiplyMV(lightPosInEyeSpace, 0, mViewMatrix, 0, lightPosInWorldSpace, 0);
-        mLightPosInEyeSpace[1] = lightPosInEyeSpace;
+    /**
+     * Record all calls of the frame in the command list, they are replayed for each eye.
+     * The state is forgotten before, so the list sets everything it uses.
+     */
+    protected void recordFrame() {
+        mCommandList.clear();
+        mGLState.startRecording(mCommandList);
+        mProgram.startRecording(mCommandList);
+        mLodProgram.startRecording(mCommandList);
 
-        Matrix.multiplyMV(lightPosInWorldSpace, 0, mLightModelMatrix[2], 0, mLightPosInModelSpace, 0);
-        Matrix.multiplyMV(lightPosInEyeSpace, 0, mViewMatrix, 0, lightPosInWorldSpace, 0);
-        mLightPosInEyeSpace[2] = lightPosInEyeSpace;
+        // Locations are resolved in onSurfaceCreated()
+        mGLState.useProgram(mProgram.handle);
 
-        Matrix.multiplyMV(lightPosInWorldSpace, 0, mLightModelMatrix[3], 0, mLightPosInModelSpace, 0);
-        Matrix.multiplyMV(lightPosInEyeSpace, 0, mViewMatrix, 0, lightPosInWorldSpace, 0);
-        mLightPosInEyeSpace[3] = lightPosInEyeSpace;
+        // Only buildings have colors in their vertices, other shapes use white (the color is set by u_Color)
+        mGLState.disableVertexAttribArray(mVertexColorHandle);
+        mGLState.vertexAttrib4fv(mVertexColorHandle, WHITE_COLOR, 0);
 
-        /*for (int i=0; i<4; ++i) {
-            Matrix.multiplyMV(mLightPosInWorldSpace[i], 0, mLightModelMatrix[i], 0, mLightPosInModelSpace, 0);
-            Matrix.multiplyMV(mLightPosInEyeSpace[i], 0, mViewMatrix, 0, mLightPosInWorldSpace[i], 0);
-        }*/
+        checkFog();
 
-        mProjectionMatrix = transform.getPerspective(PROJECTION_NEAR, PROJECTION_FAR);
+        // Pass in the light position, in eye space
+        mCommandList.eyePosition(mLightPosUniform1.location, mLightPosInWorldSpace[SHADER_LIGHT], 0);
 
-        // Now, we can draw all elements on the screen
         draw();
+
+        mGLState.stopRecording();
+        mProgram.stopRecording();
+        mLodProgram.stopRecording();
+        if (BuildConfig.DEBUG) {
+            mRecordedFrames++;
+        }
+    }
+
+    // Log the average time spent to issue draw calls (only used in debug)
+    protected void logDrawTime(long drawTime) {
+        mDrawTimeSum += drawTime;
+        mDrawCount++;
+        if (mDrawCount == FRAME_TIME_LOG_INTERVAL) {
+            Log.d(TAG, "Average draw time: " + Long.toString(mDrawTimeSum / mDrawCount / 1000) + " us per eye, "
+                    + Integer.toString(mCommandList.getCommandsNumber()) + " commands");
+            // State changes are filtered when the frame is recorded
+            final int frames = Math.max(mRecordedFrames, 1);
+            Log.d(TAG, "State changes: " + Integer.toString(mGLState.getIssuedCalls() / frames) + " issued, "
+                    + Integer.toString(mGLState.getSkippedCalls() / frames) + " skipped per frame");
+            mGLState.resetCounters();
+            mDrawTimeSum = 0;
+            mDrawCount = 0;
+            mRecordedFrames = 0;
+        }
     }
 
     // Check the fog parameter
     protected void checkFog() {
         // Enable (or disable) the fog
-        if (enableFog) {
-            GLES20.glUniform1f(mFogFlagHandle, 1.0f);
+        if (mFrameFog) {
+            mFogFlagUniform.set1f(1.0f);
         } else {
-            GLES20.glUniform1f(mFogFlagHandle, 0.0f);
+            mFogFlagUniform.set1f(0.0f);
         }
     }
 
     // Pass in the position information
     protected void bindPositionBuffer(int bufferVBO, int stride) {
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, bufferVBO);
-        GLES20.glEnableVertexAttribArray(mPositionHandle);
-        GLES20.glVertexAttribPointer(mPositionHandle, IShape.VERTEX_DATA_ELEMENTS, GLES20.GL_FLOAT, false,
-                stride, 0);
+        mGLState.enableVertexAttribArray(mPositionHandle);
+        mGLState.vertexAttribPointer(mPositionHandle, IShape.VERTEX_DATA_ELEMENTS, stride, 0, bufferVBO);
     }
 
     // Pass in the normal information
     protected void bindNormalBuffer(int bufferVBO, int stride) {
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, bufferVBO);
-        GLES20.glEnableVertexAttribArray(mNormalHandle);
-        GLES20.glVertexAttribPointer(mNormalHandle, IShape.VERTEX_DATA_ELEMENTS, GLES20.GL_FLOAT, false,
-                stride, mVBONormalOffset);
+        mGLState.enableVertexAttribArray(mNormalHandle);
+        mGLState.vertexAttribPointer(mNormalHandle, IShape.VERTEX_DATA_ELEMENTS, stride, mVBONormalOffset, bufferVBO);
     }
 
     // Pass in the texture information
     protected void bindTextureBuffer(int bufferVBO, int stride) {
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, bufferVBO);
-        GLES20.glEnableVertexAttribArray(mTextureCoordinateHandle);
-        GLES20.glVertexAttribPointer(mTextureCoordinateHandle, IShape.VERTEX_DATA_ELEMENTS, GLES20.GL_FLOAT, false,
-                stride, mVBOTextureOffset);
+        mGLState.enableVertexAttribArray(mTextureCoordinateHandle);
+        mGLState.vertexAttribPointer(mTextureCoordinateHandle, IShape.VERTEX_DATA_ELEMENTS, stride, mVBOTextureOffset, bufferVBO);
     }
 
-    /**
-     * Draw all elements in the world.
-     */
-    protected void draw() {
-        GLES20.glUniform1f(mTextureFlagHandle, 1.0f);
-
-        //
-        // Draw the roads
-        //
-
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mRoadTextureDataHandle);
-        GLES20.glUniform1i(mTextureUniformHandle, 0);
+    // Pass in the color of vertices (disable it once drawn)
+    protected void bindColorBuffer(int bufferVBO, int stride, int offset) {
+        mGLState.enableVertexAttribArray(mVertexColorHandle);
+        mGLState.vertexAttribPointer(mVertexColorHandle, IShape.COLOR_DATA_ELEMENTS, stride, offset, bufferVBO);
+    }
 
-        bindPositionBuffer(mRoadVBOBuffer, mVBOStride);
-        bindNormalBuffer(mRoadVBOBuffer, mVBOStride);
-        bindTextureBuffer(mRoadVBOBuffer, mVBOStride);
+    // Bind all attributes of a buildings VBO (the color is in vertices)
+    protected void bindBuildingsBuffer(int bufferVBO) {
+        bindPositionBuffer(bufferVBO, BUILDING_VBO_STRIDE);
+        bindNormalBuffer(bufferVBO, BUILDING_VBO_STRIDE);
+        bindTextureBuffer(bufferVBO, BUILDING_VBO_STRIDE);
+        bindColorBuffer(bufferVBO, BUILDING_VBO_STRIDE, BUILDING_VBO_COLOR_OFFSET);
+    }
 
-        // Main roads (2x larger)
-        Matrix.setIdentityM(mModelMatrix, 0);
-        Matrix.scaleM(mModelMatrix, 0, GenUtil.MAIN_ROAD_SCALE, 1.0f, 1.0f);
-        drawRoad();
+    // Indices used by next draws
+    protected void bindIndexBuffer(int bufferIBO) {
+        mGLState.bindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, bufferIBO);
+    }
 
-        Matrix.setIdentityM(mModelMatrix, 0);
-        Matrix.rotateM(mModelMatrix, 0, 90, 0.0f, 1.0f, 0.0f);
-        Matrix.scaleM(mModelMatrix, 0, GenUtil.MAIN_ROAD_SCALE, 1.0f, 1.0f);
-        drawRoad();
+    /**
+     * Draw all elements in the world, in the order of the render queue (filled in onNewFrame()).
+     * Calls are recorded in the command list.
+     */
+    protected void draw() {
+        mIdentityPrepared = false;
+        mLodPrepared = false;
+
+        for (int i = 0; i < mRenderQueue.getSize(); ++i) {
+            final int payload = mRenderQueue.getPayload(i);
+            final int index = payload & DRAW_INDEX_MASK;
+            final int kind = payload >>> DRAW_KIND_SHIFT;
+            if (kind == DRAW_FAR_BUILDINGS || kind == DRAW_FAR_CHUNK_BUILDINGS) {
+                useLodProgram();
+            } else {
+                mGLState.useProgram(mProgram.handle);
+            }
 
-        // Other roads (1x larger)
-        // Add the some units to the first road since the middle one is larger
-        for (float i = GenUtil.SPACE_BETWEEN_ROADS + GenUtil.HALF_DIFF_BETWEEN_ROADS;
-             i <= GenUtil.HALF_GRID_SIZE;
-             i += GenUtil.SPACE_BETWEEN_ROADS) {
-            Matrix.setIdentityM(mModelMatrix, 0);
-            Matrix.translateM(mModelMatrix, 0, i, 0.0f, 0.0f);
-            drawRoad();
+            switch (kind) {
+                case DRAW_ROADS:
+                    setMaterial(mRoadTextureDataHandle, false);
+                    drawAllRoads();
+                    break;
+                case DRAW_BUILDINGS:
+                    setMaterial(mBuildTextureDataHandle, true);
+                    prepareIdentityDraw();
+                    drawBuildings(index);
+                    break;
+                case DRAW_CHUNK_ROADS:
+                    setMaterial(mRoadTextureDataHandle, false);
+                    drawChunkRoads(mVisibleChunks.get(index));
+                    break;
+                case DRAW_CHUNK_BUILDINGS:
+                    setMaterial(mBuildTextureDataHandle, true);
+                    prepareIdentityDraw();
+                    drawChunkBuildings(mVisibleChunks.get(index));
+                    break;
+                case DRAW_FAR_BUILDINGS:
+                    // The program has no texture and its matrices are set by useLodProgram(),
+                    // buffers of buildings are the same
+                    drawBuildings(index);
+                    break;
+                case DRAW_FAR_CHUNK_BUILDINGS:
+                    drawChunkBuildings(mVisibleChunks.get(index));
+                    break;
+                case DRAW_CORRIDOR:
+                    setMaterial(mTreasureCorridorTextureDataHandle, false);
+                    Matrix.setIdentityM(mModelMatrix, 0);
+                    Matrix.translateM(mModelMatrix, 0,
+                            mTreasurePos[0] + mConfig.halfBuildSquareWidth + mConfig.spaceBetweenRoadsX2,
+                            -mConfig.halfBuildSquareWidth, mTreasurePos[2]);
+                    drawCorridor();
+                    mIdentityPrepared = false;
+                    break;
+                case DRAW_SKY_BOX:
+                    // Without texture
+                    setMaterial(0, false);
+                    Matrix.setIdentityM(mModelMatrix, 0);
+                    // The sky box follows the player, so it works with any city size
+                    Matrix.translateM(mModelMatrix, 0, eyeX, 0.0f, eyeZ);
+                    Matrix.scaleM(mModelMatrix, 0, 1000.0f, 1000.0f, 1000.0f);
+                    drawSkyBox();
+                    mIdentityPrepared = false;
+                    break;
+                case DRAW_STAIRS:
+                    // Without texture
+                    setMaterial(0, false);
+                    Matrix.setIdentityM(mModelMatrix, 0);
+                    Matrix.translateM(mModelMatrix, 0, mTreasurePos[0] - mConfig.halfBuildSquareWidth, 0.0f,
+                            mTreasurePos[2]);
+                    drawStairs();
+                    mIdentityPrepared = false;
+                    break;
+            }
+        }
 
-            Matrix.setIdentityM(mModelMatrix, 0);
-            Matrix.translateM(mModelMatrix, 0, -i, 0.0f, 0.0f);
-            drawRoad();
+        // Clear the currently bound buffers (so future OpenGL calls do not use these buffers).
+        mGLState.bindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        mGLState.bindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+    }
 
-            Matrix.setIdentityM(mModelMatrix, 0);
-            Matrix.rotateM(mModelMatrix, 0, 90, 0.0f, 1.0f, 0.0f);
-            Matrix.translateM(mModelMatrix, 0, i, 0.0f, 0.0f);
-            drawRoad();
+    /**
+     * Fill the render queue with draws of the frame (visible buildings must be found before).
+     * Draws are grouped by texture, and sorted from the nearest to the farthest in each group.
+     * Far buildings use another program, drawn after near ones. The sky box is drawn last, it's behind everything.
+     */
+    protected void fillRenderQueue() {
+        final float x = eyeX;
+        final float z = eyeZ;
+        mRenderQueue.clear();
+
+        if (mStreamingCity) {
+            for (int i = 0; i < mVisibleChunks.size(); ++i) {
+                final CityChunk chunk = mVisibleChunks.get(i);
+                final float depth = BuildingBatches.getBoxDistance(chunk.minX, chunk.minZ, chunk.maxX, chunk.maxZ,
+                        x, z);
+                mRenderQueue.add(LAYER_OPAQUE, QUEUE_PROGRAM_MAIN, QUEUE_TEXTURE_ROAD, 0, depth,
+                        getPayload(DRAW_CHUNK_ROADS, i));
+                if (depth > mLodDistance) {
+                    mRenderQueue.add(LAYER_OPAQUE, QUEUE_PROGRAM_LOD, QUEUE_TEXTURE_NONE, QUEUE_FLAG_VERTEX_COLOR, depth,
+                            getPayload(DRAW_FAR_CHUNK_BUILDINGS, i));
+                } else {
+                    mRenderQueue.add(LAYER_OPAQUE, QUEUE_PROGRAM_MAIN, QUEUE_TEXTURE_ATLAS, QUEUE_FLAG_VERTEX_COLOR,
+                            depth, getPayload(DRAW_CHUNK_BUILDINGS, i));
+                }
+            }
+        } else {
+            // The player walks on roads
+            mRenderQueue.add(LAYER_OPAQUE, QUEUE_PROGRAM_MAIN, QUEUE_TEXTURE_ROAD, 0, 0.0f, getPayload(DRAW_ROADS, 0));
+            for (int i = 0; i < mBuildingDrawsNumber; ++i) {
+                final float depth = mBuildingBatches.getDistance(mBuildingDraws[i * 4], x, z);
+                if (mBuildingDraws[i * 4 + 3] != 0) {
+                    mRenderQueue.add(LAYER_OPAQUE, QUEUE_PROGRAM_LOD, QUEUE_TEXTURE_NONE, QUEUE_FLAG_VERTEX_COLOR, depth,
+                            getPayload(DRAW_FAR_BUILDINGS, i));
+                } else {
+                    mRenderQueue.add(LAYER_OPAQUE, QUEUE_PROGRAM_MAIN, QUEUE_TEXTURE_ATLAS, QUEUE_FLAG_VERTEX_COLOR,
+                            depth, getPayload(DRAW_BUILDINGS, i));
+                }
+            }
+        }
 
-            Matrix.setIdentityM(mModelMatrix, 0);
-            Matrix.rotateM(mModelMatrix, 0, 90, 0.0f, 1.0f, 0.0f);
-            Matrix.translateM(mModelMatrix, 0, -i, 0.0f, 0.0f);
-            drawRoad();
+        final float treasureDistance = (float) Math.hypot(mTreasurePos[0] - x, mTreasurePos[2] - z);
+        mRenderQueue.add(LAYER_OPAQUE, QUEUE_PROGRAM_MAIN, QUEUE_TEXTURE_CORRIDOR, 0, treasureDistance,
+                getPayload(DRAW_CORRIDOR, 0));
+        mRenderQueue.add(LAYER_OPAQUE, QUEUE_PROGRAM_MAIN, QUEUE_TEXTURE_NONE, 0, treasureDistance,
+                getPayload(DRAW_STAIRS, 0));
+        // Through the fog, the sky box has the color of the fog: the screen is cleared with it
+        if (!mFrameFog) {
+            mRenderQueue.add(LAYER_BACKGROUND, QUEUE_PROGRAM_MAIN, QUEUE_TEXTURE_NONE, 0, 0.0f,
+                    getPayload(DRAW_SKY_BOX, 0));
         }
 
-        //
-        // Draw buildings
-        // Buildings are created in the constructor
-        //
+        mRenderQueue.sort();
+    }
 
-        drawAllBuildings();
+    static protected int getPayload(int kind, int index) {
+        return (kind << DRAW_KIND_SHIFT) | index;
+    }
 
-        //
-        // Draw the treasure corridor
-        //
+    // Bind the texture (0 for none) and tell if the color is in vertices (set when buffers are bound)
+    protected void setMaterial(int texture, boolean vertexColor) {
+        mTextureFlagUniform.set1f(texture != 0 ? 1.0f : 0.0f);
+        mGLState.activeTexture(0);
+        mGLState.bindTexture2D(texture);
+        mTextureUniform.set1i(0);
 
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTreasureCorridorTextureDataHandle);
-        GLES20.glUniform1i(mTextureUniformHandle, 0);
+        if (vertexColor) {
+            // The color of each building is in its vertices
+            mColorUniform.set4fv(WHITE_COLOR, 0);
+        } else {
+            mGLState.disableVertexAttribArray(mVertexColorHandle);
+        }
+        // Shapes without texture have no texture coordinates in their buffer
+        if (texture == 0) {
+            mGLState.disableVertexAttribArray(mTextureCoordinateHandle);
+        }
+    }
 
+    /**
+     * Use the program of far buildings. Its uniforms are set the first time it's used in the frame
+     * (far buildings are at their place, like near ones).
+     */
+    protected void useLodProgram() {
+        mGLState.useProgram(mLodProgram.handle);
+        if (mLodPrepared) {
+            return;
+        }
         Matrix.setIdentityM(mModelMatrix, 0);
-        Matrix.translateM(mModelMatrix, 0, mTreasurePos[0] + GenUtil.HALF_BUILD_SQUARE_WIDTH + GenUtil.SPACE_BETWEEN_ROADS_X2,
-                -GenUtil.HALF_BUILD_SQUARE_WIDTH, mTreasurePos[2]);
-        drawCorridor();
-
-        //
-        // Draw SkyBox (without textures)
-        //
-
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
-        // Disable texture flag
-        GLES20.glUniform1f(mTextureFlagHandle, 0.0f);
+        mCommandList.eyeMatrices(mLodMVMatrixUniform.location, mLodMVPMatrixUniform.location, mModelMatrix, 0);
+        mCommandList.eyePosition(mLodLightPosUniform.location, mLightPosInWorldSpace[SHADER_LIGHT], 0);
+        mLodFogFlagUniform.set1f(mFrameFog ? 1.0f : 0.0f);
+        mLodColorUniform.set4fv(mBuildingsAverageColor, 0);
+        mLodPrepared = true;
+    }
 
+    // Set matrices for shapes that are already at their place (only once per frame)
+    protected void prepareIdentityDraw() {
+        if (mIdentityPrepared) {
+            return;
+        }
         Matrix.setIdentityM(mModelMatrix, 0);
-        Matrix.scaleM(mModelMatrix, 0, 1000.0f, 1000.0f, 1000.0f);
-        drawSkyBox();
-
-        //
-        // Draw the stairs at the treasure pos
-        //
+        prepareDraw();
+        mIdentityPrepared = true;
+    }
 
-        Matrix.setIdentityM(mModelMatrix, 0);
-        Matrix.translateM(mModelMatrix, 0, mTreasurePos[0] - GenUtil.HALF_BUILD_SQUARE_WIDTH, 0.0f, mTreasurePos[2]);
-        drawStairs();
+    // Draw all roads of the city (the road texture must be bound)
+    protected void drawAllRoads() {
+        bindPositionBuffer(mRoadVBOBuffer, mVBOStride);
+        bindNormalBuffer(mRoadVBOBuffer, mVBOStride);
+        bindTextureBuffer(mRoadVBOBuffer, mVBOStride);
+        bindIndexBuffer(mRoadIBOBuffer);
 
-        // Clear the currently bound buffer (so future OpenGL calls do not use this buffer).
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        // Roads are already at their place, they are drawn at once
+        prepareIdentityDraw();
+        drawRoad();
     }
 
-    protected void drawAllBuildings() {
-        // All elements that are not in the for() loop are the same for each building.
-        Matrix.setIdentityM(mModelMatrix, 0);
+    // Draw visible buildings of a batch of the full city (one range of visible cells, found in onNewFrame()).
+    // Matrices of the program must be set (buildings are at their place).
+    protected void drawBuildings(int draw) {
+        // All batches use the first indices of the same buffer
+        bindIndexBuffer(mBuildIBOBuffer);
+        bindBuildingsBuffer(mBuildVBOBuffers[mBuildingDraws[draw * 4]]);
 
-        GLES20.glUniform1f(mTextureFlagHandle, 1.0f);
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        // Indices of a building only depend on its place in the batch
+        mGLState.drawElements(mBuildingDraws[draw * 4 + 2] * CityChunk.BUILDING_INDICES,
+                mBuildingDraws[draw * 4 + 1] * CityChunk.BUILDING_INDICES * IndexedMesh.BYTES_PER_INDEX);
+    }
 
-        // These information (normal and texture) are stored for each building but are the same for all.
-        // Get them from only the first one
-        bindNormalBuffer(mBuildVBOBuffers[0], mVBOStride);
-        bindTextureBuffer(mBuildVBOBuffers[0], mVBOStride);
+    // Draw roads of a chunk (the road texture must be bound)
+    protected void drawChunkRoads(CityChunk chunk) {
+        // Roads are already at the right position
+        prepareIdentityDraw();
 
-        prepareDraw();
+        mColorUniform.set4fv(Road.colorData, 0);
 
-        // Draw sides
-        for (int i = 0; i < mBuildings.size(); ++i) {
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mBuildTextureDataHandles[mBuildings.get(i).textureType]);
-            GLES20.glUniform1i(mTextureUniformHandle, 0);
+        bindPositionBuffer(chunk.roadsVBOBuffer, mVBOStride);
+        bindNormalBuffer(chunk.roadsVBOBuffer, mVBOStride);
+        bindTextureBuffer(chunk.roadsVBOBuffer, mVBOStride);
+        bindIndexBuffer(chunk.roadsIBOBuffer);
 
-            bindPositionBuffer(mBuildVBOBuffers[i], mVBOStride);
+        drawCommon(chunk.roadsIndicesNumber, false);
+    }
 
-            // Pass in the color information
-            GLES20.glUniform4fv(mColorHandle, 1, mBuildings.get(i).color, 0);
+    // Draw buildings of a chunk (matrices of the program must be set, buildings are at their place)
+    protected void drawChunkBuildings(CityChunk chunk) {
+        // All buildings of the chunk are in the same buffer, they are drawn at once
+        bindBuildingsBuffer(chunk.buildingsVBOBuffer);
+        bindIndexBuffer(chunk.buildingsIBOBuffer);
 
-            // There isn't bottom face, so only 30 faces
-            // The draw is already prepared
-            drawCommon(30, false);
-        }
+        drawCommon(chunk.buildings.size * CityChunk.BUILDING_INDICES, false);
     }
 
     protected void drawRoad() {
-        // Buffers are initialized in the draw() method
+        // Buffers are bound and the draw is prepared in drawAllRoads()
 
         // Pass in the color information
-        GLES20.glUniform4fv(mColorHandle, 1, Road.colorData, 0);
+        mColorUniform.set4fv(Road.colorData, 0);
 
-        drawCommon(6);
+        drawCommon(mRoadIndicesNumber, false);
     }
 
     protected void drawStairs() {
         bindPositionBuffer(mStairsVBOBuffer, mVBOStrideNoTex);
         bindNormalBuffer(mStairsVBOBuffer, mVBOStrideNoTex);
+        bindIndexBuffer(mStairsIBOBuffer);
 
         // Pass in the color information
-        GLES20.glUniform4fv(mColorHandle, 1, Stairs.color, 0);
+        mColorUniform.set4fv(Stairs.color, 0);
 
-        drawCommon(mTreasureStairs.verticesNumber);
+        drawCommon(mTreasureStairs.mesh.getIndicesNumber());
     }
 
     protected void drawCorridor() {
         bindPositionBuffer(mTreasureCorridorVBOBuffer, mVBOStride);
         bindNormalBuffer(mTreasureCorridorVBOBuffer, mVBOStride);
         bindTextureBuffer(mTreasureCorridorVBOBuffer, mVBOStride);
+        bindIndexBuffer(mTreasureCorridorIBOBuffer);
 
-        GLES20.glUniform4fv(mColorHandle, 1, Road.colorData, 0);
+        mColorUniform.set4fv(Road.colorData, 0);
 
-        drawCommon(30);
+        drawCommon(mTreasureCorridorIndicesNumber);
     }
 
     protected void drawSkyBox() {
         bindPositionBuffer(mSkyBoxVBOBuffer, mVBOStrideNoTex);
         bindNormalBuffer(mSkyBoxVBOBuffer, mVBOStrideNoTex);
+        bindIndexBuffer(mSkyBoxIBOBuffer);
 
         // Pass in the color information
-        GLES20.glUniform4fv(mColorHandle, 1, SkyBox.colorData, 0);
+        mColorUniform.set4fv(SkyBox.colorData, 0);
 
-        drawCommon(36);
+        drawCommon(mSkyBoxIndicesNumber);
     }
 
-    // This function do all matrices operations
+    // This function do all matrices operations: the model matrix is recorded, the model-view and
+    // the model-view-projection matrices are computed for each eye when the frame is replayed
     protected void prepareDraw() {
-        // This multiplies the view matrix by the model matrix, and stores the result in the MVP matrix
-        // (which currently contains model * view).
-        Matrix.multiplyMM(mMVMatrix, 0, mViewMatrix, 0, mModelMatrix, 0);
-
-        // Pass in the model-view matrix.
-        GLES20.glUniformMatrix4fv(mMVMatrixHandle, 1, false, mMVMatrix, 0);
-
-        // This multiplies the model-view matrix by the projection matrix, and stores the result in the MVP matrix
-        Matrix.multiplyMM(mMVPMatrix, 0, mProjectionMatrix, 0, mMVMatrix, 0);
-
-        // Pass in the combined matrix.
-        GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, mMVPMatrix, 0);
-
-        // Pass in the light positions in eye space.
-        GLES20.glUniform3f(mLightPosHandle1, mLightPosInEyeSpace[0][0], mLightPosInEyeSpace[0][1], mLightPosInEyeSpace[0][2]);
-        /*GLES20.glUniform3f(mLightPosHandle2, mLightPosInEyeSpace[1][0], mLightPosInEyeSpace[1][1], mLightPosInEyeSpace[1][2]);
-        GLES20.glUniform3f(mLightPosHandle3, mLightPosInEyeSpace[2][0], mLightPosInEyeSpace[2][1], mLightPosInEyeSpace[2][2]);
-        GLES20.glUniform3f(mLightPosHandle4, mLightPosInEyeSpace[3][0], mLightPosInEyeSpace[3][1], mLightPosInEyeSpace[3][2]);*/
+        mCommandList.eyeMatrices(mMVMatrixUniform.location, mMVPMatrixUniform.location, mModelMatrix, 0);
     }
 
     // This function is called at the end of other draw functions.
-    protected void drawCommon(int verticesNumber) {
-        drawCommon(verticesNumber, true);
+    // The index buffer must be bound.
+    protected void drawCommon(int indicesNumber) {
+        drawCommon(indicesNumber, true);
     }
 
-    protected void drawCommon(int verticesNumber, boolean prepareDraw) {
+    protected void drawCommon(int indicesNumber, boolean prepareDraw) {
         if (prepareDraw) {
             prepareDraw();
         }
-        GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, verticesNumber);
+        mGLState.drawElements(indicesNumber, 0);
     }
 }
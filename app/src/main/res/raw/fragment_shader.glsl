@@ -16,6 +16,7 @@ uniform lowp float u_FogFlag;
 varying highp vec3 v_Position;
 varying vec3 v_Normal;
 varying vec2 v_TexCoordinate;
+varying lowp vec4 v_Color;
 
 void main()                    		
 {
@@ -41,9 +42,11 @@ void main()
     diffuse = diffuse + 0.4;
 
 	// Multiply the color by the diffuse illumination level and texture value to get final output color.
+    // The color is the one of the shape multiplied by the one of the vertex (for merged buildings).
     // The texture flag enable (or disable) the texture.
-    vec4 finalColor = u_TextureFlag * u_Color * diffuse * texture2D(u_Texture, v_TexCoordinate) +
-                            (1.0 - u_TextureFlag) * u_Color * diffuse;
+    vec4 color = u_Color * v_Color;
+    vec4 finalColor = u_TextureFlag * color * diffuse * texture2D(u_Texture, v_TexCoordinate) +
+                            (1.0 - u_TextureFlag) * color * diffuse;
 
     // Compute the fog
     const float LOG2 = 1.442695;
@@ -0,0 +1,37 @@
+precision mediump float;
+
+uniform vec3 u_LightPos;
+
+// The average color of the texture of buildings
+uniform lowp vec4 u_Color;
+
+uniform lowp float u_FogFlag;
+
+varying highp vec3 v_Position;
+varying vec3 v_Normal;
+varying lowp vec4 v_Color;
+
+// Used for far buildings: the same as fragment_shader.glsl, without texture
+void main()
+{
+    float distance = length(u_LightPos - v_Position);
+    vec3 lightVec = normalize(u_LightPos - v_Position);
+    float diffuse = max(dot(v_Normal, lightVec), 0.0);
+    diffuse = diffuse * (1.0 / (1.0 + (0.25 * distance)));
+
+    // Add ambient lighting
+    diffuse = diffuse + 0.4;
+
+    vec4 finalColor = u_Color * v_Color * diffuse;
+
+    // Compute the fog (the same as fragment_shader.glsl)
+    const float LOG2 = 1.442695;
+    const float fogDensity = 0.01;
+    const vec4 fogColor = vec4(0.03, 0.03, 0.03, 0.0);
+
+    float z = length(v_Position);
+    float fogFactor = exp2(-fogDensity * fogDensity * z * z * LOG2);
+    fogFactor = clamp(fogFactor, 0.0, 1.0);
+
+    gl_FragColor = u_FogFlag * mix(fogColor, finalColor, fogFactor) + (1.0 - u_FogFlag) * finalColor;
+}
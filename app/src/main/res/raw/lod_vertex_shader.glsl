@@ -0,0 +1,25 @@
+uniform mat4 u_MVPMatrix;
+uniform mat4 u_MVMatrix;
+
+attribute vec4 a_Position;
+attribute vec3 a_Normal;
+attribute vec4 a_Color;
+
+varying vec3 v_Position;
+varying vec3 v_Normal;
+varying lowp vec4 v_Color;
+
+// Used for far buildings: the same as vertex_shader.glsl, without texture coordinates
+void main()
+{
+	// Transform the vertex into eye space.
+	v_Position = vec3(u_MVMatrix * a_Position);
+
+	// Pass through the color of the vertex.
+	v_Color = a_Color;
+
+	// Transform the normal's orientation into eye space.
+	v_Normal = vec3(u_MVMatrix * vec4(a_Normal, 0.0));
+
+	gl_Position = u_MVPMatrix * a_Position;
+}
@@ -4,10 +4,12 @@ uniform mat4 u_MVMatrix;
 attribute vec4 a_Position;
 attribute vec3 a_Normal;
 attribute vec2 a_TexCoordinate;
+attribute vec4 a_Color;
 		  
 varying vec3 v_Position;
 varying vec3 v_Normal;
 varying vec2 v_TexCoordinate;
+varying lowp vec4 v_Color;
 
 void main()                                                 	
 {                                                         
@@ -16,6 +18,9 @@ void main()
 
 	// Pass through the texture coordinate.
 	v_TexCoordinate = a_TexCoordinate;                                      
+
+	// Pass through the color of the vertex (white when the shape only uses u_Color).
+	v_Color = a_Color;
 	
 	// Transform the normal's orientation into eye space.
 	v_Normal = vec3(u_MVMatrix * vec4(a_Normal, 0.0));
@@ -0,0 +1,123 @@
+/*
+ * This file is part of RandCity.
+ * Copyright (c) 2015 Fabien Caylus <toutjuste13@gmail.com>
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.tjdev.randcity.generation;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The parallel generation of buildings must give exactly the same city as the serial one,
+ * and the benchmark reports the speedup on this machine. Like in the game, one pool is reused.
+ */
+public class BuildingGenerationTest {
+
+    static private final CitySeed SEED = new CitySeed(0x5EED0F0C17L);
+    static private final int BENCHMARK_RUNS = 5;
+
+    static private final int THREADS_NUMBER = Math.max(Runtime.getRuntime().availableProcessors(), 4);
+    static private ExecutorService sExecutor;
+
+    @BeforeClass
+    public static void startExecutor() {
+        sExecutor = Executors.newFixedThreadPool(THREADS_NUMBER);
+    }
+
+    @AfterClass
+    public static void stopExecutor() {
+        sExecutor.shutdown();
+    }
+
+    @Test
+    public void parallelGenerationIsDeterministic() {
+        assertSameModel(Building.generateAllBuildings(CityConfig.DEFAULT, SEED),
+                Building.generateAllBuildings(CityConfig.DEFAULT, SEED, sExecutor, THREADS_NUMBER));
+        assertSameModel(Building.generateAllBuildings(CityConfig.MEGA_CITY, SEED),
+                Building.generateAllBuildings(CityConfig.MEGA_CITY, SEED, sExecutor, THREADS_NUMBER));
+    }
+
+    // The calling thread generates all rows when the pool is busy, it doesn't wait for queued tasks
+    @Test
+    public void busyPoolDoesNotBlock() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < THREADS_NUMBER; ++i) {
+            sExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws InterruptedException {
+                    release.await();
+                    return null;
+                }
+            });
+        }
+        try {
+            assertSameModel(Building.generateAllBuildings(CityConfig.MEGA_CITY, SEED),
+                    Building.generateAllBuildings(CityConfig.MEGA_CITY, SEED, sExecutor, THREADS_NUMBER));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void benchmarkParallelGeneration() {
+        benchmark("DEFAULT", CityConfig.DEFAULT);
+        benchmark("MEGA_CITY", CityConfig.MEGA_CITY);
+    }
+
+    static private void assertSameModel(CityModel expected, CityModel actual) {
+        assertEquals(expected.size, actual.size);
+        assertArrayEquals(expected.centerX, actual.centerX, 0.0f);
+        assertArrayEquals(expected.centerZ, actual.centerZ, 0.0f);
+        assertArrayEquals(expected.heights, actual.heights, 0.0f);
+        assertArrayEquals(expected.colors, actual.colors, 0.0f);
+        assertArrayEquals(expected.textureTypes, actual.textureTypes);
+    }
+
+    // Print the best time of the serial and the parallel generations (after a warm up run of each).
+    // Cities smaller than Building.PARALLEL_MIN_BUILDINGS use the serial path in both cases.
+    static private void benchmark(String name, CityConfig config) {
+        final int threadsNumber = Runtime.getRuntime().availableProcessors();
+        Building.generateAllBuildings(config, SEED);
+        Building.generateAllBuildings(config, SEED, sExecutor, threadsNumber);
+
+        long serialTime = Long.MAX_VALUE;
+        long parallelTime = Long.MAX_VALUE;
+        for (int run = 0; run < BENCHMARK_RUNS; ++run) {
+            long startTime = System.nanoTime();
+            Building.generateAllBuildings(config, SEED);
+            serialTime = Math.min(serialTime, System.nanoTime() - startTime);
+
+            startTime = System.nanoTime();
+            Building.generateAllBuildings(config, SEED, sExecutor, threadsNumber);
+            parallelTime = Math.min(parallelTime, System.nanoTime() - startTime);
+        }
+
+        System.out.println(name + " (" + Integer.toString(config.getBuildingsNumber()) + " buildings): serial "
+                + Long.toString(serialTime / 1000) + " us, " + Integer.toString(threadsNumber) + " threads "
+                + Long.toString(parallelTime / 1000) + " us, speedup "
+                + String.format("%.2f", (double) serialTime / parallelTime));
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * This file is part of RandCity.
+ * Copyright (c) 2015 Fabien Caylus <toutjuste13@gmail.com>
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.tjdev.randcity.generation;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Window textures only depend on the seed. Checksums of pixels are the ones of the current generation:
+ * if it changes on purpose, update them (and CityCache.VERSION, cached textures are then stale).
+ */
+public class WindowTextureTest {
+
+    static private final CitySeed SEED = new CitySeed(0x5EED0F0C17L);
+    static private final int BENCHMARK_RUNS = 5;
+
+    @Test
+    public void generateFuzzyIsDeterministic() {
+        final WindowTexture texture = WindowTexture.generateFuzzy(CityConfig.DEFAULT, false, SEED.textureRandom(0));
+        assertSameTexture(texture, WindowTexture.generateFuzzy(CityConfig.DEFAULT, false, SEED.textureRandom(0)));
+        assertTexture(texture, 800, 444, 0xc69c51feL);
+    }
+
+    @Test
+    public void generateFuzzyLowDensityIsDeterministic() {
+        final WindowTexture texture = WindowTexture.generateFuzzy(CityConfig.DEFAULT, true, SEED.textureRandom(6));
+        assertSameTexture(texture, WindowTexture.generateFuzzy(CityConfig.DEFAULT, true, SEED.textureRandom(6)));
+        assertTexture(texture, 832, 480, 0x9eaa130eL);
+    }
+
+    @Test
+    public void generateLinearIsDeterministic() {
+        final WindowTexture texture = WindowTexture.generateLinear(CityConfig.DEFAULT, SEED.textureRandom(8));
+        assertSameTexture(texture, WindowTexture.generateLinear(CityConfig.DEFAULT, SEED.textureRandom(8)));
+        assertTexture(texture, 800, 492, 0x8aa88170L);
+    }
+
+    // Print the best time to generate the textures of all types (after a warm up run)
+    @Test
+    public void benchmarkWindowTextures() {
+        generateAllTypes();
+
+        long bestTime = Long.MAX_VALUE;
+        for (int run = 0; run < BENCHMARK_RUNS; ++run) {
+            final long startTime = System.nanoTime();
+            generateAllTypes();
+            bestTime = Math.min(bestTime, System.nanoTime() - startTime);
+        }
+
+        System.out.println(Integer.toString(GenUtil.TEX_TYPES_NB) + " window textures generated in "
+                + Long.toString(bestTime / 1000) + " us");
+    }
+
+    static private void generateAllTypes() {
+        for (int type = 0; type < GenUtil.TEX_TYPES_NB; ++type) {
+            Building.generateWindowTexture(CityConfig.DEFAULT, type, SEED.textureRandom(type));
+        }
+    }
+
+    static private void assertSameTexture(WindowTexture expected, WindowTexture actual) {
+        assertEquals(expected.width, actual.width);
+        assertEquals(expected.height, actual.height);
+        assertArrayEquals(expected.pixels, actual.pixels);
+    }
+
+    static private void assertTexture(WindowTexture texture, int width, int height, long checksum) {
+        // The size is a whole number of windows
+        assertEquals(0, texture.width % (GenUtil.TEX_WINDOW_WIDTH * 4));
+        assertEquals(0, texture.height % GenUtil.TEX_WINDOW_HEIGHT);
+        assertEquals(width, texture.width);
+        assertEquals(height, texture.height);
+        assertEquals(width * height, texture.pixels.length);
+        // The border of the first window is transparent
+        assertEquals(0, texture.pixels[0]);
+        assertEquals(checksum, computeChecksum(texture.pixels));
+    }
+
+    // CRC32 of the ARGB pixels (big endian)
+    static private long computeChecksum(int[] pixels) {
+        final ByteBuffer bytes = ByteBuffer.allocate(pixels.length * 4);
+        bytes.asIntBuffer().put(pixels);
+        final CRC32 crc = new CRC32();
+        crc.update(bytes.array());
+        return crc.getValue();
+    }
+}
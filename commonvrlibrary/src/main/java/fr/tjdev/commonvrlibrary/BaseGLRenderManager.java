@@ -21,6 +21,7 @@ import android.opengl.GLES20;
 import android.opengl.Matrix;
 
 import fr.tjdev.commonvrlibrary.shapes.IShape;
+import fr.tjdev.commonvrlibrary.util.GLStateCache;
 
 /**
  * Contains some elements used by all OpenGL renderer.
@@ -50,6 +51,11 @@ public class BaseGLRenderManager {
     protected float[] mMVPMatrix = new float[16];
 
     protected int mProgramHandle;
+    // Skip redundant state changes (bound buffers, textures, enabled attributes...)
+    protected final GLStateCache mGLState = new GLStateCache();
+
+    // Color of the screen before anything is drawn (RGBA)
+    protected final float[] mClearColor = {0.0f, 0.0f, 0.0f, 0.0f};
 
     // Tell the height of the player
     static public float PLAYER_HEIGHT = 10.0f;
@@ -75,8 +81,8 @@ public class BaseGLRenderManager {
 
     // Clear all buffers, called at the beginning of each rendering
     protected void clearGLBuffers() {
-        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
-        GLES20.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
+        GLES20.glClearColor(mClearColor[0], mClearColor[1], mClearColor[2], mClearColor[3]);
         GLES20.glClearDepthf(1.0f);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
     }
 }
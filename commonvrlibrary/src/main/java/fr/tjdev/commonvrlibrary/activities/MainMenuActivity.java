@@ -64,6 +64,8 @@ public abstract class MainMenuActivity extends ListActivity {
     private final List<Class<? extends Activity>> mActivityMapping = new ArrayList<>();
     // Tell for each activity if we use a debug one or not
     private final List<Boolean> mDebugParams = new ArrayList<>();
+    // Additional parameters passed to each activity (can be null)
+    private final List<Bundle> mExtraParams = new ArrayList<>();
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -111,6 +113,9 @@ public abstract class MainMenuActivity extends ListActivity {
                     Bundle bundle = new Bundle();
                     bundle.putBoolean(PREF_BT, mBluetoothEnabled);
                     bundle.putBoolean(PREF_DEBUG_ACT, mDebugParams.get(position));
+                    if (mExtraParams.get(position) != null) {
+                        bundle.putAll(mExtraParams.get(position));
+                    }
                     launchIntent.putExtras(bundle);
 
                     startActivity(launchIntent);
@@ -155,6 +160,12 @@ public abstract class MainMenuActivity extends ListActivity {
 
     // Allow the child activity to add an item to the main menu
     protected void addItem(int icon, int label, int subTitle, Class<? extends Activity> activity, boolean isDebug) {
+        addItem(icon, label, subTitle, activity, isDebug, null);
+    }
+
+    // Same as above, but extras are added to the parameters passed to the activity
+    protected void addItem(int icon, int label, int subTitle, Class<? extends Activity> activity, boolean isDebug,
+                           Bundle extras) {
         final Map<String, Object> item = new HashMap<>();
         item.put(ITEM_IMAGE, icon);
         if(isDebug) {
@@ -166,6 +177,7 @@ public abstract class MainMenuActivity extends ListActivity {
         mData.add(item);
         mActivityMapping.add(activity);
         mDebugParams.add(isDebug);
+        mExtraParams.add(extras);
     }
 
     // Allow to change the header text
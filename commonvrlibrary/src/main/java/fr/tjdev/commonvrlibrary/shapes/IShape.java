@@ -38,6 +38,10 @@ public interface IShape {
      * Number of elements per texture coordinate.
      */
     static public final int TEXTURE_COORDINATE_ELEMENTS = 2;
+    /**
+     * Number of elements per color (RGBA), when colors are stored in vertices.
+     */
+    static public final int COLOR_DATA_ELEMENTS = 4;
 
     //
     // All class that implements this interface should create variables above.
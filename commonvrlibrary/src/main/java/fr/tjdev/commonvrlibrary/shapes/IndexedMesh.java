@@ -0,0 +1,326 @@
+/*
+ * Copyright (c) 2015 Fabien Caylus <toutjuste13@gmail.com>
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.tjdev.commonvrlibrary.shapes;
+
+import java.util.Arrays;
+
+/**
+ * A shape with shared vertices and a list of triangles (3 indices per triangle),
+ * drawn with glDrawElements() and GL_UNSIGNED_SHORT indices.
+ * Use create() to build one from expanded triangles (like positionData arrays of shapes):
+ * identical vertices (same position, normal and texture coordinates) are merged, then triangles
+ * are reordered so the GPU reuses recently transformed vertices as much as possible.
+ * Normals and texture coordinates can be empty arrays (like in BufferHelper).
+ */
+public class IndexedMesh {
+
+    // Indices are unsigned shorts
+    static public final int BYTES_PER_INDEX = 2;
+    static public final int MAX_VERTICES = 65536;
+
+    // Size of the post-transform vertex cache used to order triangles.
+    // Most GPUs have a bigger one, the order is then still good.
+    static public final int VERTEX_CACHE_SIZE = 16;
+
+    public final int verticesNumber;
+    public final float[] positions;
+    public final float[] normals;
+    public final float[] textureCoordinates;
+    public final short[] indices;
+
+    public IndexedMesh(float[] positions, float[] normals, float[] textureCoordinates, short[] indices) {
+        this.verticesNumber = positions.length / IShape.VERTEX_DATA_ELEMENTS;
+        this.positions = positions;
+        this.normals = normals;
+        this.textureCoordinates = textureCoordinates;
+        this.indices = indices;
+    }
+
+    /**
+     * Create a mesh from expanded triangles (3 vertices per triangle).
+     * Vertices are merged, triangles are ordered for the vertex cache and vertices are stored in the
+     * order of their first use.
+     */
+    static public IndexedMesh create(float[] positions, float[] normals, float[] textureCoordinates) {
+        final int expandedNumber = positions.length / IShape.VERTEX_DATA_ELEMENTS;
+        final boolean hasNormals = normals.length > 0;
+        final boolean hasTexture = textureCoordinates.length > 0;
+
+        // Merge identical vertices with a hash table (open addressing, contains unique index + 1)
+        final int[] table = new int[Integer.highestOneBit(Math.max(1, expandedNumber)) << 2];
+        final int[] firstVertex = new int[expandedNumber];
+        int[] indices = new int[expandedNumber];
+        int uniqueNumber = 0;
+        for (int vertex = 0; vertex < expandedNumber; ++vertex) {
+            int slot = hashVertex(vertex, positions, normals, textureCoordinates) & (table.length - 1);
+            while (table[slot] != 0
+                    && !sameVertex(firstVertex[table[slot] - 1], vertex, positions, normals, textureCoordinates)) {
+                slot = (slot + 1) & (table.length - 1);
+            }
+            if (table[slot] == 0) {
+                firstVertex[uniqueNumber] = vertex;
+                table[slot] = ++uniqueNumber;
+            }
+            indices[vertex] = table[slot] - 1;
+        }
+        if (uniqueNumber > MAX_VERTICES) {
+            throw new RuntimeException("Too many vertices in the mesh: " + Integer.toString(uniqueNumber));
+        }
+
+        indices = orderTriangles(indices, uniqueNumber);
+
+        // Store vertices in the order of their first use, so they are also read in order
+        final int[] newIndex = new int[uniqueNumber];
+        Arrays.fill(newIndex, -1);
+        final float[] newPositions = new float[uniqueNumber * IShape.VERTEX_DATA_ELEMENTS];
+        final float[] newNormals = new float[hasNormals ? uniqueNumber * IShape.NORMAL_DATA_ELEMENTS : 0];
+        final float[] newTexture = new float[hasTexture ? uniqueNumber * IShape.TEXTURE_COORDINATE_ELEMENTS : 0];
+        final short[] newIndices = new short[indices.length];
+        int nextIndex = 0;
+        for (int i = 0; i < indices.length; ++i) {
+            final int vertex = indices[i];
+            if (newIndex[vertex] < 0) {
+                final int source = firstVertex[vertex];
+                newIndex[vertex] = nextIndex;
+                System.arraycopy(positions, source * IShape.VERTEX_DATA_ELEMENTS, newPositions,
+                        nextIndex * IShape.VERTEX_DATA_ELEMENTS, IShape.VERTEX_DATA_ELEMENTS);
+                if (hasNormals) {
+                    System.arraycopy(normals, source * IShape.NORMAL_DATA_ELEMENTS, newNormals,
+                            nextIndex * IShape.NORMAL_DATA_ELEMENTS, IShape.NORMAL_DATA_ELEMENTS);
+                }
+                if (hasTexture) {
+                    System.arraycopy(textureCoordinates, source * IShape.TEXTURE_COORDINATE_ELEMENTS, newTexture,
+                            nextIndex * IShape.TEXTURE_COORDINATE_ELEMENTS, IShape.TEXTURE_COORDINATE_ELEMENTS);
+                }
+                nextIndex++;
+            }
+            newIndices[i] = (short) newIndex[vertex];
+        }
+
+        return new IndexedMesh(newPositions, newNormals, newTexture, newIndices);
+    }
+
+    // Number of indices (3 per triangle)
+    public int getIndicesNumber() {
+        return indices.length;
+    }
+
+    /**
+     * Return the average number of vertices transformed per triangle (ACMR) with a FIFO cache
+     * of the specified size. It's between 0.5 (best) and 3 (no reuse at all).
+     */
+    public float computeCacheMissRatio(int cacheSize) {
+        if (indices.length == 0) {
+            return 0.0f;
+        }
+        final int[] cache = new int[cacheSize];
+        Arrays.fill(cache, -1);
+        int next = 0;
+        int misses = 0;
+        for (short index : indices) {
+            final int vertex = index & 0xFFFF;
+            boolean found = false;
+            for (int entry : cache) {
+                found |= entry == vertex;
+            }
+            if (!found) {
+                cache[next] = vertex;
+                next = (next + 1) % cacheSize;
+                misses++;
+            }
+        }
+        return (float) misses / (indices.length / 3);
+    }
+
+    /**
+     * Reorder triangles for the vertex cache (Tom Forsyth's "Linear-Speed Vertex Cache Optimisation").
+     * At each step, the triangle with the best score is added: vertices recently used and vertices
+     * with few remaining triangles have a better score. The cache is simulated as a LRU list.
+     */
+    static protected int[] orderTriangles(int[] indices, int verticesNumber) {
+        final int trianglesNumber = indices.length / 3;
+
+        // Triangles using each vertex
+        final int[] valence = new int[verticesNumber];
+        for (int index : indices) {
+            valence[index]++;
+        }
+        final int[] trianglesStart = new int[verticesNumber + 1];
+        for (int vertex = 0; vertex < verticesNumber; ++vertex) {
+            trianglesStart[vertex + 1] = trianglesStart[vertex] + valence[vertex];
+        }
+        final int[] vertexTriangles = new int[indices.length];
+        final int[] filled = new int[verticesNumber];
+        for (int i = 0; i < indices.length; ++i) {
+            final int vertex = indices[i];
+            vertexTriangles[trianglesStart[vertex] + filled[vertex]++] = i / 3;
+        }
+
+        final int[] cachePosition = new int[verticesNumber];
+        Arrays.fill(cachePosition, -1);
+        final float[] vertexScores = new float[verticesNumber];
+        for (int vertex = 0; vertex < verticesNumber; ++vertex) {
+            vertexScores[vertex] = vertexScore(-1, valence[vertex]);
+        }
+        final float[] triangleScores = new float[trianglesNumber];
+        final boolean[] added = new boolean[trianglesNumber];
+        for (int triangle = 0; triangle < trianglesNumber; ++triangle) {
+            triangleScores[triangle] = vertexScores[indices[triangle * 3]] + vertexScores[indices[triangle * 3 + 1]]
+                    + vertexScores[indices[triangle * 3 + 2]];
+        }
+
+        // The LRU cache, with room for the 3 vertices of the new triangle
+        int[] cache = new int[VERTEX_CACHE_SIZE + 3];
+        int[] newCache = new int[VERTEX_CACHE_SIZE + 3];
+        int cacheLength = 0;
+
+        final int[] result = new int[indices.length];
+        int bestTriangle = -1;
+        // First triangle not added, used when no triangle of the cache can be added
+        int scanStart = 0;
+        for (int step = 0; step < trianglesNumber; ++step) {
+            if (bestTriangle < 0) {
+                float bestScore = -1.0f;
+                for (int triangle = scanStart; triangle < trianglesNumber; ++triangle) {
+                    if (!added[triangle] && triangleScores[triangle] > bestScore) {
+                        bestScore = triangleScores[triangle];
+                        bestTriangle = triangle;
+                    }
+                }
+            }
+
+            // Add the triangle
+            added[bestTriangle] = true;
+            while (scanStart < trianglesNumber && added[scanStart]) {
+                scanStart++;
+            }
+            int newLength = 0;
+            for (int i = 0; i < 3; ++i) {
+                final int vertex = indices[bestTriangle * 3 + i];
+                result[step * 3 + i] = vertex;
+                newCache[newLength++] = vertex;
+
+                // Remove the triangle from the vertex
+                valence[vertex]--;
+                for (int t = trianglesStart[vertex]; t < trianglesStart[vertex] + valence[vertex]; ++t) {
+                    if (vertexTriangles[t] == bestTriangle) {
+                        vertexTriangles[t] = vertexTriangles[trianglesStart[vertex] + valence[vertex]];
+                        break;
+                    }
+                }
+            }
+
+            // Vertices of the triangle are moved to the front of the cache
+            for (int i = 0; i < cacheLength; ++i) {
+                final int vertex = cache[i];
+                if (vertex != newCache[0] && vertex != newCache[1] && vertex != newCache[2]) {
+                    newCache[newLength++] = vertex;
+                }
+            }
+            final int[] swap = cache;
+            cache = newCache;
+            newCache = swap;
+            cacheLength = newLength;
+
+            // Update scores of vertices in the cache (and of vertices just evicted), and of their triangles
+            bestTriangle = -1;
+            float bestScore = -1.0f;
+            for (int i = 0; i < cacheLength; ++i) {
+                final int vertex = cache[i];
+                cachePosition[vertex] = i < VERTEX_CACHE_SIZE ? i : -1;
+                vertexScores[vertex] = vertexScore(cachePosition[vertex], valence[vertex]);
+            }
+            for (int i = 0; i < cacheLength; ++i) {
+                final int vertex = cache[i];
+                for (int t = trianglesStart[vertex]; t < trianglesStart[vertex] + valence[vertex]; ++t) {
+                    final int triangle = vertexTriangles[t];
+                    triangleScores[triangle] = vertexScores[indices[triangle * 3]]
+                            + vertexScores[indices[triangle * 3 + 1]] + vertexScores[indices[triangle * 3 + 2]];
+                    if (triangleScores[triangle] > bestScore) {
+                        bestScore = triangleScores[triangle];
+                        bestTriangle = triangle;
+                    }
+                }
+            }
+            cacheLength = Math.min(cacheLength, VERTEX_CACHE_SIZE);
+        }
+
+        return result;
+    }
+
+    // Score of a vertex, from its position in the cache (-1 if not in it) and its number of remaining triangles
+    static private float vertexScore(int cachePosition, int remainingTriangles) {
+        if (remainingTriangles == 0) {
+            return -1.0f;
+        }
+
+        float score = 0.0f;
+        if (cachePosition >= 0) {
+            if (cachePosition < 3) {
+                // Vertices of the last triangle have a fixed score, so the next triangle doesn't
+                // depend on the order of these vertices
+                score = 0.75f;
+            } else {
+                score = (float) Math.pow(1.0f - (float) (cachePosition - 3) / (VERTEX_CACHE_SIZE - 3), 1.5f);
+            }
+        }
+        // Vertices with few remaining triangles are used first, so they leave the cache
+        score += 2.0f / (float) Math.sqrt(remainingTriangles);
+        return score;
+    }
+
+    static private int hashVertex(int vertex, float[] positions, float[] normals, float[] textureCoordinates) {
+        int hash = hashRange(1, positions, vertex * IShape.VERTEX_DATA_ELEMENTS, IShape.VERTEX_DATA_ELEMENTS);
+        if (normals.length > 0) {
+            hash = hashRange(hash, normals, vertex * IShape.NORMAL_DATA_ELEMENTS, IShape.NORMAL_DATA_ELEMENTS);
+        }
+        if (textureCoordinates.length > 0) {
+            hash = hashRange(hash, textureCoordinates, vertex * IShape.TEXTURE_COORDINATE_ELEMENTS,
+                    IShape.TEXTURE_COORDINATE_ELEMENTS);
+        }
+        // Mix bits, since only the lowest ones are used
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        return hash;
+    }
+
+    static private int hashRange(int hash, float[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; ++i) {
+            hash = hash * 31 + Float.floatToIntBits(data[i]);
+        }
+        return hash;
+    }
+
+    static private boolean sameVertex(int first, int second, float[] positions, float[] normals,
+                                      float[] textureCoordinates) {
+        return sameRange(positions, first, second, IShape.VERTEX_DATA_ELEMENTS)
+                && (normals.length == 0 || sameRange(normals, first, second, IShape.NORMAL_DATA_ELEMENTS))
+                && (textureCoordinates.length == 0
+                    || sameRange(textureCoordinates, first, second, IShape.TEXTURE_COORDINATE_ELEMENTS));
+    }
+
+    static private boolean sameRange(float[] data, int first, int second, int elements) {
+        for (int i = 0; i < elements; ++i) {
+            if (Float.floatToIntBits(data[first * elements + i]) != Float.floatToIntBits(data[second * elements + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
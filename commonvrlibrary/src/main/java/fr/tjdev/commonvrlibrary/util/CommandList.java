@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) 2015 Fabien Caylus <toutjuste13@gmail.com>
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.tjdev.commonvrlibrary.util;
+
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+
+import java.util.Arrays;
+
+/**
+ * OpenGL calls of a frame, recorded once and replayed for each eye.
+ * Commands that depend on the eye store values in world space (model matrices, positions):
+ * they are transformed with the view and projection matrices of the eye when the list is replayed.
+ * The list is recorded by GLStateCache and ShaderProgram.Uniform (see their startRecording() methods),
+ * and eye-dependent commands are added directly.
+ * Arrays are kept between frames: nothing is allocated once the list is big enough.
+ */
+public class CommandList {
+
+    // Commands, followed by their arguments (ints, and indexes of floats)
+    static private final int USE_PROGRAM = 0;
+    static private final int BIND_BUFFER = 1;
+    static private final int ACTIVE_TEXTURE = 2;
+    static private final int BIND_TEXTURE_2D = 3;
+    static private final int ENABLE_ATTRIBUTE = 4;
+    static private final int DISABLE_ATTRIBUTE = 5;
+    static private final int ATTRIBUTE_POINTER = 6;
+    static private final int ATTRIBUTE_4F = 7;
+    static private final int UNIFORM_1F = 8;
+    static private final int UNIFORM_1I = 9;
+    static private final int UNIFORM_3F = 10;
+    static private final int UNIFORM_4F = 11;
+    static private final int DRAW_ELEMENTS = 12;
+    static private final int EYE_MATRICES = 13;
+    static private final int EYE_POSITION = 14;
+
+    protected int[] mCommands = new int[256];
+    protected int mCommandsSize;
+    protected float[] mFloats = new float[256];
+    protected int mFloatsSize;
+    // Number of recorded commands
+    protected int mCommandsNumber;
+
+    // Used when the list is replayed
+    protected final float[] mMVMatrix = new float[16];
+    protected final float[] mMVPMatrix = new float[16];
+    protected final float[] mPosition = new float[4];
+
+    public void clear() {
+        mCommandsSize = 0;
+        mFloatsSize = 0;
+        mCommandsNumber = 0;
+    }
+
+    public int getCommandsNumber() {
+        return mCommandsNumber;
+    }
+
+    public void useProgram(int program) {
+        addCommand(USE_PROGRAM, program);
+    }
+
+    public void bindBuffer(int target, int buffer) {
+        addCommand(BIND_BUFFER, target, buffer);
+    }
+
+    // The unit is from 0 (not GL_TEXTURE0)
+    public void activeTexture(int unit) {
+        addCommand(ACTIVE_TEXTURE, unit);
+    }
+
+    public void bindTexture2D(int texture) {
+        addCommand(BIND_TEXTURE_2D, texture);
+    }
+
+    public void enableVertexAttribArray(int attribute) {
+        addCommand(ENABLE_ATTRIBUTE, attribute);
+    }
+
+    public void disableVertexAttribArray(int attribute) {
+        addCommand(DISABLE_ATTRIBUTE, attribute);
+    }
+
+    // Floats not normalized, read from the buffer bound to GL_ARRAY_BUFFER when replayed
+    public void vertexAttribPointer(int attribute, int size, int stride, int offset) {
+        addCommand(ATTRIBUTE_POINTER, attribute, size, stride, offset);
+    }
+
+    // Set the value of a disabled attribute
+    public void vertexAttrib4fv(int attribute, float[] values, int offset) {
+        addCommand(ATTRIBUTE_4F, attribute, addFloats(values, offset, 4));
+    }
+
+    public void uniform1f(int location, float x) {
+        final int index = reserveFloats(1);
+        mFloats[index] = x;
+        addCommand(UNIFORM_1F, location, index);
+    }
+
+    public void uniform1i(int location, int x) {
+        addCommand(UNIFORM_1I, location, x);
+    }
+
+    public void uniform3f(int location, float x, float y, float z) {
+        final int index = reserveFloats(3);
+        mFloats[index] = x;
+        mFloats[index + 1] = y;
+        mFloats[index + 2] = z;
+        addCommand(UNIFORM_3F, location, index);
+    }
+
+    public void uniform4fv(int location, float[] values, int offset) {
+        addCommand(UNIFORM_4F, location, addFloats(values, offset, 4));
+    }
+
+    // Draw triangles with the bound index buffer (unsigned shorts), offset is in bytes
+    public void drawElements(int indicesNumber, int offset) {
+        addCommand(DRAW_ELEMENTS, indicesNumber, offset);
+    }
+
+    /**
+     * Set the model-view and the model-view-projection matrices of the next draws,
+     * computed from the model matrix for each eye.
+     */
+    public void eyeMatrices(int mvLocation, int mvpLocation, float[] modelMatrix, int offset) {
+        addCommand(EYE_MATRICES, mvLocation, mvpLocation, addFloats(modelMatrix, offset, 16));
+    }
+
+    // Set a vec3 uniform with a position in world space (x, y, z, w), transformed in eye space for each eye
+    public void eyePosition(int location, float[] position, int offset) {
+        addCommand(EYE_POSITION, location, addFloats(position, offset, 4));
+    }
+
+    /**
+     * Issue all commands for an eye. The OpenGL state at the end is the same for each replay,
+     * it doesn't depend on the state at the beginning if the recording started without any known state.
+     */
+    public void replay(float[] viewMatrix, float[] projectionMatrix) {
+        final int[] commands = mCommands;
+        final float[] floats = mFloats;
+        int i = 0;
+        while (i < mCommandsSize) {
+            switch (commands[i]) {
+                case USE_PROGRAM:
+                    GLES20.glUseProgram(commands[i + 1]);
+                    i += 2;
+                    break;
+                case BIND_BUFFER:
+                    GLES20.glBindBuffer(commands[i + 1], commands[i + 2]);
+                    i += 3;
+                    break;
+                case ACTIVE_TEXTURE:
+                    GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + commands[i + 1]);
+                    i += 2;
+                    break;
+                case BIND_TEXTURE_2D:
+                    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, commands[i + 1]);
+                    i += 2;
+                    break;
+                case ENABLE_ATTRIBUTE:
+                    GLES20.glEnableVertexAttribArray(commands[i + 1]);
+                    i += 2;
+                    break;
+                case DISABLE_ATTRIBUTE:
+                    GLES20.glDisableVertexAttribArray(commands[i + 1]);
+                    i += 2;
+                    break;
+                case ATTRIBUTE_POINTER:
+                    GLES20.glVertexAttribPointer(commands[i + 1], commands[i + 2], GLES20.GL_FLOAT, false,
+                            commands[i + 3], commands[i + 4]);
+                    i += 5;
+                    break;
+                case ATTRIBUTE_4F:
+                    GLES20.glVertexAttrib4fv(commands[i + 1], floats, commands[i + 2]);
+                    i += 3;
+                    break;
+                case UNIFORM_1F:
+                    GLES20.glUniform1f(commands[i + 1], floats[commands[i + 2]]);
+                    i += 3;
+                    break;
+                case UNIFORM_1I:
+                    GLES20.glUniform1i(commands[i + 1], commands[i + 2]);
+                    i += 3;
+                    break;
+                case UNIFORM_3F: {
+                    final int index = commands[i + 2];
+                    GLES20.glUniform3f(commands[i + 1], floats[index], floats[index + 1], floats[index + 2]);
+                    i += 3;
+                    break;
+                }
+                case UNIFORM_4F:
+                    GLES20.glUniform4fv(commands[i + 1], 1, floats, commands[i + 2]);
+                    i += 3;
+                    break;
+                case DRAW_ELEMENTS:
+                    GLES20.glDrawElements(GLES20.GL_TRIANGLES, commands[i + 1], GLES20.GL_UNSIGNED_SHORT,
+                            commands[i + 2]);
+                    i += 3;
+                    break;
+                case EYE_MATRICES:
+                    Matrix.multiplyMM(mMVMatrix, 0, viewMatrix, 0, floats, commands[i + 3]);
+                    Matrix.multiplyMM(mMVPMatrix, 0, projectionMatrix, 0, mMVMatrix, 0);
+                    GLES20.glUniformMatrix4fv(commands[i + 1], 1, false, mMVMatrix, 0);
+                    GLES20.glUniformMatrix4fv(commands[i + 2], 1, false, mMVPMatrix, 0);
+                    i += 4;
+                    break;
+                case EYE_POSITION:
+                    Matrix.multiplyMV(mPosition, 0, viewMatrix, 0, floats, commands[i + 2]);
+                    GLES20.glUniform3f(commands[i + 1], mPosition[0], mPosition[1], mPosition[2]);
+                    i += 3;
+                    break;
+                default:
+                    throw new RuntimeException("Unknown command: " + Integer.toString(commands[i]));
+            }
+        }
+    }
+
+    protected void addCommand(int command, int arg0) {
+        reserveCommand(2);
+        mCommands[mCommandsSize++] = command;
+        mCommands[mCommandsSize++] = arg0;
+    }
+
+    protected void addCommand(int command, int arg0, int arg1) {
+        reserveCommand(3);
+        mCommands[mCommandsSize++] = command;
+        mCommands[mCommandsSize++] = arg0;
+        mCommands[mCommandsSize++] = arg1;
+    }
+
+    protected void addCommand(int command, int arg0, int arg1, int arg2) {
+        reserveCommand(4);
+        mCommands[mCommandsSize++] = command;
+        mCommands[mCommandsSize++] = arg0;
+        mCommands[mCommandsSize++] = arg1;
+        mCommands[mCommandsSize++] = arg2;
+    }
+
+    protected void addCommand(int command, int arg0, int arg1, int arg2, int arg3) {
+        reserveCommand(5);
+        mCommands[mCommandsSize++] = command;
+        mCommands[mCommandsSize++] = arg0;
+        mCommands[mCommandsSize++] = arg1;
+        mCommands[mCommandsSize++] = arg2;
+        mCommands[mCommandsSize++] = arg3;
+    }
+
+    // Make room for a command and its arguments
+    private void reserveCommand(int size) {
+        if (mCommandsSize + size > mCommands.length) {
+            mCommands = Arrays.copyOf(mCommands, Math.max(mCommands.length * 2, mCommandsSize + size));
+        }
+        mCommandsNumber++;
+    }
+
+    // Copy floats at the end of the float array, return their index
+    private int addFloats(float[] values, int offset, int count) {
+        final int index = reserveFloats(count);
+        System.arraycopy(values, offset, mFloats, index, count);
+        return index;
+    }
+
+    private int reserveFloats(int count) {
+        if (mFloatsSize + count > mFloats.length) {
+            mFloats = Arrays.copyOf(mFloats, Math.max(mFloats.length * 2, mFloatsSize + count));
+        }
+        final int index = mFloatsSize;
+        mFloatsSize += count;
+        return index;
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2015 Fabien Caylus <toutjuste13@gmail.com>
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.tjdev.commonvrlibrary.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A texture compressed in the ETC1 format, with all its mipmap levels.
+ * Levels are encoded with ETC1Encoder (on any thread), with the same sizes as a MipChain,
+ * then TextureHelper.loadCompressedTexture() uploads them.
+ */
+public class CompressedTexture {
+
+    // Size of the first level
+    public final int width;
+    public final int height;
+
+    // Encoded data of each level, from the full size to 1x1
+    public final ByteBuffer[] levels;
+
+    public CompressedTexture(int width, int height, ByteBuffer[] levels) {
+        this.width = width;
+        this.height = height;
+        this.levels = levels;
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright (c) 2015 Fabien Caylus <toutjuste13@gmail.com>
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.tjdev.commonvrlibrary.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Encode images in the ETC1 format (4 bits per pixel, no alpha), without using Android,
+ * so it can run on any JVM.
+ * The output has the same layout as android.opengl.ETC1: blocks of 4x4 pixels, row after row,
+ * 8 bytes per block.
+ * The encoder favors speed: the flip is chosen from the variance of each half, and only the best
+ * table is refined. Recently encoded blocks are kept, since generated textures repeat the same
+ * blocks a lot. An encoder is not thread-safe, use one per thread.
+ */
+public class ETC1Encoder {
+
+    // Size of an encoded block of 4x4 pixels, in bytes
+    static public final int ENCODED_BLOCK_SIZE = 8;
+
+    // Intensity modifiers of each table (the two positive values, negative ones are the same)
+    static private final int[][] MODIFIER_TABLES = {
+            {2, 8}, {5, 17}, {9, 29}, {13, 42}, {18, 60}, {24, 80}, {33, 106}, {47, 183}
+    };
+
+    // Number of recently encoded blocks that are kept (must be a power of two)
+    static private final int CACHE_SIZE = 1024;
+
+    // Pixels (y * 4 + x) of each subblock: [flip][subblock][pixel]
+    static private final int[][][] SUBBLOCK_PIXELS = new int[2][2][8];
+    static {
+        for (int i = 0; i < 8; ++i) {
+            // No flip: 2x4 subblocks side by side
+            SUBBLOCK_PIXELS[0][0][i] = (i / 2) * 4 + (i % 2);
+            SUBBLOCK_PIXELS[0][1][i] = (i / 2) * 4 + (i % 2) + 2;
+            // Flip: 4x2 subblocks on top of each other
+            SUBBLOCK_PIXELS[1][0][i] = (i / 4) * 4 + (i % 4);
+            SUBBLOCK_PIXELS[1][1][i] = (i / 4 + 2) * 4 + (i % 4);
+        }
+    }
+
+    // Current block (ARGB, y * 4 + x)
+    private final int[] mBlock = new int[16];
+
+    // Recently encoded blocks, indexed by the hash of their pixels
+    private final int[] mCachePixels = new int[CACHE_SIZE * 16];
+    private final long[] mCacheBlocks = new long[CACHE_SIZE];
+    private final boolean[] mCacheUsed = new boolean[CACHE_SIZE];
+
+    // Result of encodeSubblock()
+    private final int[] mBase = new int[3];
+    private int mTable;
+    private final int[] mIndices = new int[8];
+
+    // Result of the first subblock, kept when encoding the second one
+    private final int[] mFirstBase = new int[3];
+    private int mFirstTable;
+    private final int[] mFirstIndices = new int[8];
+
+    // Work arrays
+    private final int[] mCandidateBase = new int[3];
+    private final int[] mCandidateIndices = new int[8];
+    private final float[] mAverage = new float[3];
+    private final int[] mMinBase = new int[3];
+    private final int[] mMaxBase = new int[3];
+
+    // Return the size of the encoded data of an image
+    static public int getEncodedDataSize(int width, int height) {
+        return ((width + 3) / 4) * ((height + 3) / 4) * ENCODED_BLOCK_SIZE;
+    }
+
+    /**
+     * Encode an image, pixels are in ARGB format (like android.graphics.Color), row after row.
+     * The alpha is ignored. Sizes don't need to be multiples of 4.
+     */
+    public ByteBuffer encodeImage(int[] pixels, int width, int height) {
+        return encodeImage(pixels, null, width, height);
+    }
+
+    /**
+     * Encode an image stored in RGBA bytes (4 bytes per pixel, the format of glTexImage2D()),
+     * row after row. The position of the buffer is not used.
+     */
+    public ByteBuffer encodeImage(ByteBuffer rgbaPixels, int width, int height) {
+        return encodeImage(null, rgbaPixels, width, height);
+    }
+
+    // Encode ARGB pixels, or RGBA bytes if pixels is null
+    private ByteBuffer encodeImage(int[] pixels, ByteBuffer rgbaPixels, int width, int height) {
+        // Blocks are stored with their first byte first
+        ByteBuffer encoded = ByteBuffer.allocateDirect(getEncodedDataSize(width, height)).order(ByteOrder.BIG_ENDIAN);
+
+        for (int blockY = 0; blockY < height; blockY += 4) {
+            for (int blockX = 0; blockX < width; blockX += 4) {
+                // Pixels outside of the image repeat the last row / column
+                for (int y = 0; y < 4; ++y) {
+                    final int row = Math.min(blockY + y, height - 1) * width;
+                    for (int x = 0; x < 4; ++x) {
+                        final int index = row + Math.min(blockX + x, width - 1);
+                        mBlock[y * 4 + x] = pixels != null ? pixels[index] : getRGBAPixel(rgbaPixels, index);
+                    }
+                }
+                encoded.putLong(encodeCachedBlock());
+            }
+        }
+
+        encoded.position(0);
+        return encoded;
+    }
+
+    // Return the pixel at the specified index of RGBA bytes, in ARGB format
+    static private int getRGBAPixel(ByteBuffer rgbaPixels, int index) {
+        return ((rgbaPixels.get(index * 4 + 3) & 0xFF) << 24) | ((rgbaPixels.get(index * 4) & 0xFF) << 16)
+                | ((rgbaPixels.get(index * 4 + 1) & 0xFF) << 8) | (rgbaPixels.get(index * 4 + 2) & 0xFF);
+    }
+
+    // Encode the current block, or reuse the result if the same block was encoded recently
+    private long encodeCachedBlock() {
+        int hash = 0;
+        for (int i = 0; i < 16; ++i) {
+            hash = hash * 31 + (mBlock[i] & 0xFFFFFF);
+        }
+        final int slot = (hash ^ (hash >>> 16)) & (CACHE_SIZE - 1);
+
+        if (mCacheUsed[slot] && isCached(slot)) {
+            return mCacheBlocks[slot];
+        }
+
+        final long block = encodeBlock();
+        for (int i = 0; i < 16; ++i) {
+            mCachePixels[slot * 16 + i] = mBlock[i];
+        }
+        mCacheBlocks[slot] = block;
+        mCacheUsed[slot] = true;
+        return block;
+    }
+
+    private boolean isCached(int slot) {
+        for (int i = 0; i < 16; ++i) {
+            if (((mCachePixels[slot * 16 + i] ^ mBlock[i]) & 0xFFFFFF) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Encode the current block, the first byte is in the highest bits
+    private long encodeBlock() {
+        final int flip = computeSubblockError(1) < computeSubblockError(0) ? 1 : 0;
+
+        // Use the differential mode (5 bits per color) when both averages are close enough
+        computeAverage(flip, 0);
+        for (int c = 0; c < 3; ++c) {
+            mFirstBase[c] = quantize(mAverage[c], 5);
+        }
+        computeAverage(flip, 1);
+        boolean differential = true;
+        for (int c = 0; c < 3; ++c) {
+            final int delta = quantize(mAverage[c], 5) - mFirstBase[c];
+            if (delta < -4 || delta > 3) {
+                differential = false;
+            }
+        }
+        final int bits = differential ? 5 : 4;
+        final int max = (1 << bits) - 1;
+
+        // First subblock
+        computeAverage(flip, 0);
+        for (int c = 0; c < 3; ++c) {
+            mMinBase[c] = 0;
+            mMaxBase[c] = max;
+        }
+        encodeSubblock(flip, 0, bits);
+        System.arraycopy(mBase, 0, mFirstBase, 0, 3);
+        System.arraycopy(mIndices, 0, mFirstIndices, 0, 8);
+        mFirstTable = mTable;
+
+        // Second subblock (the difference with the first color is limited in differential mode)
+        computeAverage(flip, 1);
+        for (int c = 0; c < 3; ++c) {
+            mMinBase[c] = differential ? Math.max(0, mFirstBase[c] - 4) : 0;
+            mMaxBase[c] = differential ? Math.min(max, mFirstBase[c] + 3) : max;
+        }
+        encodeSubblock(flip, 1, bits);
+
+        // Colors and tables
+        long block = 0;
+        for (int c = 0; c < 3; ++c) {
+            final long color = differential ? (mFirstBase[c] << 3) | ((mBase[c] - mFirstBase[c]) & 7)
+                    : (mFirstBase[c] << 4) | mBase[c];
+            block |= color << (56 - c * 8);
+        }
+        block |= (long) ((mFirstTable << 5) | (mTable << 2) | ((differential ? 1 : 0) << 1) | flip) << 32;
+
+        // Pixel indices, pixels are in columns (x * 4 + y)
+        for (int sub = 0; sub < 2; ++sub) {
+            final int[] indices = sub == 0 ? mFirstIndices : mIndices;
+            for (int i = 0; i < 8; ++i) {
+                final int pixel = SUBBLOCK_PIXELS[flip][sub][i];
+                final int column = (pixel % 4) * 4 + pixel / 4;
+                block |= (long) (indices[i] >> 1) << (16 + column);
+                block |= (long) (indices[i] & 1) << column;
+            }
+        }
+        return block;
+    }
+
+    /**
+     * Find the table, the base color (between mMinBase and mMaxBase) and the indices of the
+     * subblock with the smallest error, from the average (computed before).
+     * The base color is first the quantized average, then it is moved to compensate the chosen modifiers.
+     */
+    private void encodeSubblock(int flip, int sub, int bits) {
+        final int[] base = mCandidateBase;
+        for (int c = 0; c < 3; ++c) {
+            base[c] = clamp(quantize(mAverage[c], bits), mMinBase[c], mMaxBase[c]);
+        }
+
+        int bestError = Integer.MAX_VALUE;
+        for (int table = 0; table < MODIFIER_TABLES.length; ++table) {
+            final int error = computeError(flip, sub, base, bits, table, null);
+            if (error < bestError) {
+                bestError = error;
+                mTable = table;
+            }
+        }
+        System.arraycopy(base, 0, mBase, 0, 3);
+        computeError(flip, sub, mBase, bits, mTable, mIndices);
+
+        // Move the base color by the mean of chosen modifiers
+        float meanModifier = 0.0f;
+        for (int i = 0; i < 8; ++i) {
+            meanModifier += getModifier(mTable, mIndices[i]);
+        }
+        meanModifier /= 8.0f;
+        for (int c = 0; c < 3; ++c) {
+            base[c] = clamp(quantize(mAverage[c] - meanModifier, bits), mMinBase[c], mMaxBase[c]);
+        }
+
+        final int[] indices = mCandidateIndices;
+        if (computeError(flip, sub, base, bits, mTable, indices) < bestError) {
+            System.arraycopy(base, 0, mBase, 0, 3);
+            System.arraycopy(indices, 0, mIndices, 0, 8);
+        }
+    }
+
+    // Return the error of the subblock with the specified base color and table.
+    // The best index of each pixel is stored in indices (if not null).
+    private int computeError(int flip, int sub, int[] base, int bits, int table, int[] indices) {
+        final int red = expand(base[0], bits);
+        final int green = expand(base[1], bits);
+        final int blue = expand(base[2], bits);
+
+        int error = 0;
+        for (int i = 0; i < 8; ++i) {
+            final int pixel = mBlock[SUBBLOCK_PIXELS[flip][sub][i]];
+            final int pixelRed = (pixel >> 16) & 0xFF;
+            final int pixelGreen = (pixel >> 8) & 0xFF;
+            final int pixelBlue = pixel & 0xFF;
+
+            int bestError = Integer.MAX_VALUE;
+            int bestIndex = 0;
+            for (int index = 0; index < 4; ++index) {
+                final int modifier = getModifier(table, index);
+                final int dr = pixelRed - clamp(red + modifier, 0, 255);
+                final int dg = pixelGreen - clamp(green + modifier, 0, 255);
+                final int db = pixelBlue - clamp(blue + modifier, 0, 255);
+                final int pixelError = dr * dr + dg * dg + db * db;
+                if (pixelError < bestError) {
+                    bestError = pixelError;
+                    bestIndex = index;
+                }
+            }
+
+            error += bestError;
+            if (indices != null) {
+                indices[i] = bestIndex;
+            }
+        }
+        return error;
+    }
+
+    // Compute the average color of the subblock in mAverage
+    private void computeAverage(int flip, int sub) {
+        mAverage[0] = mAverage[1] = mAverage[2] = 0.0f;
+        for (int i = 0; i < 8; ++i) {
+            final int pixel = mBlock[SUBBLOCK_PIXELS[flip][sub][i]];
+            mAverage[0] += (pixel >> 16) & 0xFF;
+            mAverage[1] += (pixel >> 8) & 0xFF;
+            mAverage[2] += pixel & 0xFF;
+        }
+        mAverage[0] /= 8.0f;
+        mAverage[1] /= 8.0f;
+        mAverage[2] /= 8.0f;
+    }
+
+    // Return the sum of squared distances to the average of each subblock
+    private float computeSubblockError(int flip) {
+        float error = 0.0f;
+        for (int sub = 0; sub < 2; ++sub) {
+            computeAverage(flip, sub);
+            for (int i = 0; i < 8; ++i) {
+                final int pixel = mBlock[SUBBLOCK_PIXELS[flip][sub][i]];
+                final float dr = ((pixel >> 16) & 0xFF) - mAverage[0];
+                final float dg = ((pixel >> 8) & 0xFF) - mAverage[1];
+                final float db = (pixel & 0xFF) - mAverage[2];
+                error += dr * dr + dg * dg + db * db;
+            }
+        }
+        return error;
+    }
+
+    // Index 0 and 1 are the positive values, 2 and 3 the negative ones
+    static private int getModifier(int table, int index) {
+        final int value = MODIFIER_TABLES[table][index & 1];
+        return index < 2 ? value : -value;
+    }
+
+    static private int quantize(float value, int bits) {
+        final int max = (1 << bits) - 1;
+        return clamp(Math.round(value * max / 255.0f), 0, max);
+    }
+
+    // Convert a quantized value to 8 bits
+    static private int expand(int value, int bits) {
+        return bits == 5 ? (value << 3) | (value >> 2) : (value << 4) | value;
+    }
+
+    static private int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
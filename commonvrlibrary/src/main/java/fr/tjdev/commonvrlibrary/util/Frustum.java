@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2015 Fabien Caylus <toutjuste13@gmail.com>
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.tjdev.commonvrlibrary.util;
+
+/**
+ * The 6 planes of a view frustum, used to skip shapes that are not visible.
+ * Planes are extracted from a view-projection matrix, so boxes are tested in world space.
+ * The test is conservative: a box near a corner of the frustum can be seen as visible.
+ */
+public class Frustum {
+
+    static public final int PLANES_NUMBER = 6;
+
+    // a, b, c, d of each plane (left, right, bottom, top, near, far), normals point inside the frustum
+    protected final float[] mPlanes = new float[PLANES_NUMBER * 4];
+
+    /**
+     * Set planes from a view-projection matrix (projection * view, column-major like android.opengl.Matrix).
+     * Each plane is the sum (or the difference) of the last row of the matrix and another row.
+     */
+    public void setMatrix(float[] matrix, int offset) {
+        for (int row = 0; row < 3; ++row) {
+            for (int column = 0; column < 4; ++column) {
+                final float last = matrix[offset + column * 4 + 3];
+                final float value = matrix[offset + column * 4 + row];
+                mPlanes[row * 8 + column] = last + value;
+                mPlanes[row * 8 + 4 + column] = last - value;
+            }
+        }
+    }
+
+    // Return false if the axis-aligned box is fully outside the frustum
+    public boolean intersectsBox(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+        for (int i = 0; i < mPlanes.length; i += 4) {
+            final float a = mPlanes[i];
+            final float b = mPlanes[i + 1];
+            final float c = mPlanes[i + 2];
+            // Test the corner of the box that is the most inside this plane
+            if (a * (a > 0.0f ? maxX : minX) + b * (b > 0.0f ? maxY : minY) + c * (c > 0.0f ? maxZ : minZ)
+                    + mPlanes[i + 3] < 0.0f) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
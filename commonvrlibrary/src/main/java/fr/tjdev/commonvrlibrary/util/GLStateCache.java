@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2015 Fabien Caylus <toutjuste13@gmail.com>
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.tjdev.commonvrlibrary.util;
+
+import android.opengl.GLES20;
+
+import java.util.Arrays;
+
+/**
+ * Keep the OpenGL state set by the renderer (program, buffers, textures and vertex attributes)
+ * and skip calls that set the value already in use.
+ * The cache only knows calls made through it: call invalidate() when the state is changed elsewhere
+ * (a new context, textures loaded by TextureHelper...).
+ * Calls can be recorded in a CommandList instead of being issued (see startRecording()).
+ * Must be used on the GL thread only.
+ */
+public class GLStateCache {
+
+    // Vertex attributes and texture units tracked (the minimum required by OpenGL ES 2.0)
+    static public final int MAX_ATTRIBUTES = 8;
+    static public final int MAX_TEXTURE_UNITS = 8;
+
+    // Value of an unknown state, the next call is always issued
+    static private final int UNKNOWN = -1;
+
+    protected int mProgram;
+    protected int mArrayBuffer;
+    protected int mElementArrayBuffer;
+    protected int mActiveTextureUnit;
+    protected final int[] mTextures = new int[MAX_TEXTURE_UNITS];
+
+    // Bits of attributes with a known state, and bits of enabled ones
+    protected int mKnownAttributes;
+    protected int mEnabledAttributes;
+    // Last pointer of each attribute: the buffer, the size, the stride and the offset
+    protected final int[] mPointers = new int[MAX_ATTRIBUTES * 4];
+
+    // Number of calls sent to OpenGL and number of calls skipped
+    protected int mIssuedCalls;
+    protected int mSkippedCalls;
+
+    // Calls are added to this list instead of being issued (null when not recording)
+    protected CommandList mRecorder;
+
+    public GLStateCache() {
+        invalidate();
+    }
+
+    // Forget all the state, next calls are issued
+    public void invalidate() {
+        mProgram = UNKNOWN;
+        mArrayBuffer = UNKNOWN;
+        mElementArrayBuffer = UNKNOWN;
+        mActiveTextureUnit = UNKNOWN;
+        Arrays.fill(mTextures, UNKNOWN);
+        mKnownAttributes = 0;
+        Arrays.fill(mPointers, UNKNOWN);
+    }
+
+    /**
+     * Record next calls in the list (it's not cleared). The state is forgotten first, so the list
+     * sets all the state it uses and can be replayed from any state. Once replayed, the OpenGL state is
+     * the one known by the cache at the end of the recording.
+     */
+    public void startRecording(CommandList list) {
+        invalidate();
+        mRecorder = list;
+    }
+
+    public void stopRecording() {
+        mRecorder = null;
+    }
+
+    public void useProgram(int program) {
+        if (program == mProgram) {
+            mSkippedCalls++;
+            return;
+        }
+        if (mRecorder != null) {
+            mRecorder.useProgram(program);
+        } else {
+            GLES20.glUseProgram(program);
+        }
+        mProgram = program;
+        mIssuedCalls++;
+    }
+
+    // Bind a buffer to GL_ARRAY_BUFFER or GL_ELEMENT_ARRAY_BUFFER
+    public void bindBuffer(int target, int buffer) {
+        final boolean array = target == GLES20.GL_ARRAY_BUFFER;
+        if (buffer == (array ? mArrayBuffer : mElementArrayBuffer)) {
+            mSkippedCalls++;
+            return;
+        }
+        if (mRecorder != null) {
+            mRecorder.bindBuffer(target, buffer);
+        } else {
+            GLES20.glBindBuffer(target, buffer);
+        }
+        if (array) {
+            mArrayBuffer = buffer;
+        } else {
+            mElementArrayBuffer = buffer;
+        }
+        mIssuedCalls++;
+    }
+
+    // Unbind both buffers, even if the cache thinks they are not bound (used after uploads made without the cache)
+    public void unbindBuffers() {
+        mArrayBuffer = UNKNOWN;
+        mElementArrayBuffer = UNKNOWN;
+        bindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        bindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+    }
+
+    // Delete buffers, bindings to these buffers are reset by OpenGL (never recorded)
+    public void deleteBuffers(int n, int[] buffers, int offset) {
+        GLES20.glDeleteBuffers(n, buffers, offset);
+        mIssuedCalls++;
+        for (int i = offset; i < offset + n; ++i) {
+            final int buffer = buffers[i];
+            if (buffer == 0) {
+                continue;
+            }
+            if (buffer == mArrayBuffer) {
+                mArrayBuffer = 0;
+            }
+            if (buffer == mElementArrayBuffer) {
+                mElementArrayBuffer = 0;
+            }
+            // Names are reused by glGenBuffers(): pointers to the deleted buffer must be set again
+            for (int attribute = 0; attribute < MAX_ATTRIBUTES; ++attribute) {
+                if (mPointers[attribute * 4] == buffer) {
+                    mPointers[attribute * 4] = UNKNOWN;
+                }
+            }
+        }
+    }
+
+    // Set the active texture unit (from 0, not GL_TEXTURE0)
+    public void activeTexture(int unit) {
+        if (unit == mActiveTextureUnit) {
+            mSkippedCalls++;
+            return;
+        }
+        if (mRecorder != null) {
+            mRecorder.activeTexture(unit);
+        } else {
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + unit);
+        }
+        mActiveTextureUnit = unit;
+        mIssuedCalls++;
+    }
+
+    // Bind a 2D texture to the active unit
+    public void bindTexture2D(int texture) {
+        final int unit = mActiveTextureUnit;
+        if (unit >= 0 && unit < MAX_TEXTURE_UNITS && texture == mTextures[unit]) {
+            mSkippedCalls++;
+            return;
+        }
+        if (mRecorder != null) {
+            mRecorder.bindTexture2D(texture);
+        } else {
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+        }
+        if (unit >= 0 && unit < MAX_TEXTURE_UNITS) {
+            mTextures[unit] = texture;
+        }
+        mIssuedCalls++;
+    }
+
+    public void enableVertexAttribArray(int attribute) {
+        if (isKnown(attribute) && (mEnabledAttributes & (1 << attribute)) != 0) {
+            mSkippedCalls++;
+            return;
+        }
+        if (mRecorder != null) {
+            mRecorder.enableVertexAttribArray(attribute);
+        } else {
+            GLES20.glEnableVertexAttribArray(attribute);
+        }
+        setEnabled(attribute, true);
+        mIssuedCalls++;
+    }
+
+    public void disableVertexAttribArray(int attribute) {
+        if (isKnown(attribute) && (mEnabledAttributes & (1 << attribute)) == 0) {
+            mSkippedCalls++;
+            return;
+        }
+        if (mRecorder != null) {
+            mRecorder.disableVertexAttribArray(attribute);
+        } else {
+            GLES20.glDisableVertexAttribArray(attribute);
+        }
+        setEnabled(attribute, false);
+        mIssuedCalls++;
+    }
+
+    /**
+     * Read the attribute from the buffer (floats, not normalized). The buffer is only bound when
+     * the pointer changes: if the attribute already reads the same data, nothing is called.
+     */
+    public void vertexAttribPointer(int attribute, int size, int stride, int offset, int buffer) {
+        final boolean tracked = attribute >= 0 && attribute < MAX_ATTRIBUTES;
+        final int index = attribute * 4;
+        if (tracked && mPointers[index] == buffer && mPointers[index + 1] == size
+                && mPointers[index + 2] == stride && mPointers[index + 3] == offset) {
+            mSkippedCalls++;
+            return;
+        }
+        bindBuffer(GLES20.GL_ARRAY_BUFFER, buffer);
+        if (mRecorder != null) {
+            mRecorder.vertexAttribPointer(attribute, size, stride, offset);
+        } else {
+            GLES20.glVertexAttribPointer(attribute, size, GLES20.GL_FLOAT, false, stride, offset);
+        }
+        if (tracked) {
+            mPointers[index] = buffer;
+            mPointers[index + 1] = size;
+            mPointers[index + 2] = stride;
+            mPointers[index + 3] = offset;
+        }
+        mIssuedCalls++;
+    }
+
+    // Set the value of a disabled attribute (always issued)
+    public void vertexAttrib4fv(int attribute, float[] values, int offset) {
+        if (mRecorder != null) {
+            mRecorder.vertexAttrib4fv(attribute, values, offset);
+        } else {
+            GLES20.glVertexAttrib4fv(attribute, values, offset);
+        }
+        mIssuedCalls++;
+    }
+
+    // Draw triangles with the bound index buffer (unsigned shorts), offset is in bytes
+    public void drawElements(int indicesNumber, int offset) {
+        if (mRecorder != null) {
+            mRecorder.drawElements(indicesNumber, offset);
+        } else {
+            GLES20.glDrawElements(GLES20.GL_TRIANGLES, indicesNumber, GLES20.GL_UNSIGNED_SHORT, offset);
+        }
+    }
+
+    public int getIssuedCalls() {
+        return mIssuedCalls;
+    }
+
+    public int getSkippedCalls() {
+        return mSkippedCalls;
+    }
+
+    public void resetCounters() {
+        mIssuedCalls = 0;
+        mSkippedCalls = 0;
+    }
+
+    protected boolean isKnown(int attribute) {
+        return attribute >= 0 && attribute < MAX_ATTRIBUTES && (mKnownAttributes & (1 << attribute)) != 0;
+    }
+
+    protected void setEnabled(int attribute, boolean enabled) {
+        if (attribute < 0 || attribute >= MAX_ATTRIBUTES) {
+            return;
+        }
+        mKnownAttributes |= 1 << attribute;
+        if (enabled) {
+            mEnabledAttributes |= 1 << attribute;
+        } else {
+            mEnabledAttributes &= ~(1 << attribute);
+        }
+    }
+}
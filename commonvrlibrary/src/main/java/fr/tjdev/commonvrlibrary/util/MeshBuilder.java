@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 2015 Fabien Caylus <toutjuste13@gmail.com>
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.tjdev.commonvrlibrary.util;
+
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayDeque;
+
+import fr.tjdev.commonvrlibrary.shapes.IShape;
+import fr.tjdev.commonvrlibrary.shapes.IndexedMesh;
+
+/**
+ * Write interleaved vertices and indices of meshes in native buffers, ready to be uploaded in VBOs.
+ * The layout of a vertex is declared once with a VertexFormat. Buffers grow when needed and are
+ * kept between meshes: call reset() to start a new mesh with the same memory.
+ * A builder is not thread-safe, use a Pool to share builders between threads.
+ */
+public class MeshBuilder {
+
+    // Initial number of vertices and indices of buffers
+    static public final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * Layout of a vertex: the number of floats of each attribute, in the order of the VBO.
+     */
+    static public class VertexFormat {
+        protected final int[] mSizes;
+        protected final int[] mOffsets;
+        // Number of floats per vertex
+        public final int vertexFloats;
+
+        public VertexFormat(int... sizes) {
+            mSizes = sizes.clone();
+            mOffsets = new int[sizes.length];
+            int floats = 0;
+            for (int i = 0; i < sizes.length; ++i) {
+                mOffsets[i] = floats;
+                floats += sizes[i];
+            }
+            vertexFloats = floats;
+        }
+
+        public int getAttributesNumber() {
+            return mSizes.length;
+        }
+
+        // Number of floats of the attribute
+        public int getSize(int attribute) {
+            return mSizes[attribute];
+        }
+
+        // Offset of the attribute in a vertex, in bytes
+        public int getOffset(int attribute) {
+            return mOffsets[attribute] * IShape.BYTES_PER_FLOAT;
+        }
+
+        // Size of a vertex, in bytes
+        public int getStride() {
+            return vertexFloats * IShape.BYTES_PER_FLOAT;
+        }
+    }
+
+    // Positions, normals and texture coordinates
+    static public final VertexFormat POSITION_NORMAL_TEXTURE = new VertexFormat(IShape.VERTEX_DATA_ELEMENTS,
+            IShape.NORMAL_DATA_ELEMENTS, IShape.TEXTURE_COORDINATE_ELEMENTS);
+    // Positions, normals, texture coordinates and colors (shapes merged in one draw with different colors)
+    static public final VertexFormat POSITION_NORMAL_TEXTURE_COLOR = new VertexFormat(IShape.VERTEX_DATA_ELEMENTS,
+            IShape.NORMAL_DATA_ELEMENTS, IShape.TEXTURE_COORDINATE_ELEMENTS, IShape.COLOR_DATA_ELEMENTS);
+    // Positions and normals (shapes without texture)
+    static public final VertexFormat POSITION_NORMAL = new VertexFormat(IShape.VERTEX_DATA_ELEMENTS,
+            IShape.NORMAL_DATA_ELEMENTS);
+
+    /**
+     * Thread-safe pool of builders with the same format, used when meshes are built on a thread
+     * and uploaded on another one.
+     */
+    static public class Pool {
+        public final VertexFormat format;
+        protected final int mMaxFree;
+        protected final ArrayDeque<MeshBuilder> mFree = new ArrayDeque<>();
+
+        // At most maxFree builders are kept, others are released
+        public Pool(VertexFormat format, int maxFree) {
+            this.format = format;
+            mMaxFree = maxFree;
+        }
+
+        // Return an empty builder
+        public synchronized MeshBuilder obtain() {
+            final MeshBuilder builder = mFree.poll();
+            return builder != null ? builder : new MeshBuilder(format);
+        }
+
+        // Give back a builder that is no longer used
+        public synchronized void recycle(MeshBuilder builder) {
+            if (mFree.size() < mMaxFree) {
+                builder.reset();
+                mFree.push(builder);
+            }
+        }
+    }
+
+    public final VertexFormat format;
+
+    protected FloatBuffer mVertices;
+    protected ShortBuffer mIndices;
+    // Vertices are interleaved here before a bulk copy in the native buffer
+    protected float[] mStaging = new float[0];
+
+    protected int mVerticesNumber;
+    protected int mIndicesNumber;
+
+    public MeshBuilder(VertexFormat format) {
+        this.format = format;
+        mVertices = allocateFloats(DEFAULT_CAPACITY * format.vertexFloats);
+        mIndices = allocateShorts(DEFAULT_CAPACITY);
+    }
+
+    // Start a new mesh, the memory is kept
+    public void reset() {
+        mVerticesNumber = 0;
+        mIndicesNumber = 0;
+    }
+
+    public int getVerticesNumber() {
+        return mVerticesNumber;
+    }
+
+    public int getIndicesNumber() {
+        return mIndicesNumber;
+    }
+
+    /**
+     * Add vertices. There is one array per attribute of the format (in the same order), each one
+     * containing the attribute of all vertices.
+     * Return the index of the first added vertex.
+     */
+    public int addVertices(int count, float[]... attributes) {
+        if (attributes.length != format.getAttributesNumber()) {
+            throw new RuntimeException("Bad number of attributes: " + Integer.toString(attributes.length));
+        }
+
+        final int floats = count * format.vertexFloats;
+        if (mStaging.length < floats) {
+            mStaging = new float[floats];
+        }
+        for (int attribute = 0; attribute < attributes.length; ++attribute) {
+            final float[] data = attributes[attribute];
+            final int size = format.mSizes[attribute];
+            int target = format.mOffsets[attribute];
+            for (int source = 0; source < count * size; source += size) {
+                System.arraycopy(data, source, mStaging, target, size);
+                target += format.vertexFloats;
+            }
+        }
+
+        final int firstVertex = mVerticesNumber;
+        mVertices = ensureCapacity(mVertices, (firstVertex + count) * format.vertexFloats);
+        mVertices.position(firstVertex * format.vertexFloats);
+        mVertices.put(mStaging, 0, floats);
+        mVerticesNumber += count;
+        return firstVertex;
+    }
+
+    // Add indices, moved by the index of the first vertex they use
+    public void addIndices(short[] indices, int firstVertex) {
+        if (mVerticesNumber > IndexedMesh.MAX_VERTICES) {
+            throw new RuntimeException("Too many vertices for indices: " + Integer.toString(mVerticesNumber));
+        }
+
+        mIndices = ensureCapacity(mIndices, mIndicesNumber + indices.length);
+        mIndices.position(mIndicesNumber);
+        if (firstVertex == 0) {
+            mIndices.put(indices);
+        } else {
+            for (short index : indices) {
+                mIndices.put((short) ((index & 0xFFFF) + firstVertex));
+            }
+        }
+        mIndicesNumber += indices.length;
+    }
+
+    // Add vertices (attributes used by the format) and indices of the mesh
+    public void addMesh(IndexedMesh mesh) {
+        final float[][] attributes = {mesh.positions, mesh.normals, mesh.textureCoordinates};
+        final float[][] used = new float[format.getAttributesNumber()][];
+        System.arraycopy(attributes, 0, used, 0, used.length);
+        addIndices(mesh.indices, addVertices(mesh.verticesNumber, used));
+    }
+
+    // Return the vertices added since the last reset(), valid until the next change
+    public FloatBuffer getVertexBuffer() {
+        final FloatBuffer vertices = mVertices.duplicate();
+        vertices.position(0);
+        vertices.limit(mVerticesNumber * format.vertexFloats);
+        return vertices;
+    }
+
+    // Return the indices added since the last reset(), valid until the next change
+    public ShortBuffer getIndexBuffer() {
+        final ShortBuffer indices = mIndices.duplicate();
+        indices.position(0);
+        indices.limit(mIndicesNumber);
+        return indices;
+    }
+
+    /**
+     * Upload vertices and indices in the specified buffers (they stay bound).
+     * A buffer set to 0 is skipped.
+     */
+    public void upload(int vboBuffer, int iboBuffer, int usage) {
+        if (vboBuffer != 0) {
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vboBuffer);
+            GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, mVerticesNumber * format.getStride(),
+                    getVertexBuffer(), usage);
+        }
+        if (iboBuffer != 0) {
+            GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, iboBuffer);
+            GLES20.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, mIndicesNumber * IndexedMesh.BYTES_PER_INDEX,
+                    getIndexBuffer(), usage);
+        }
+    }
+
+    // Return the buffer, or a bigger copy of it if it can't contain the specified number of floats
+    static private FloatBuffer ensureCapacity(FloatBuffer buffer, int floats) {
+        if (floats <= buffer.capacity()) {
+            return buffer;
+        }
+        final FloatBuffer bigger = allocateFloats(Math.max(floats, buffer.capacity() * 2));
+        buffer.position(0);
+        bigger.put(buffer);
+        return bigger;
+    }
+
+    static private ShortBuffer ensureCapacity(ShortBuffer buffer, int shorts) {
+        if (shorts <= buffer.capacity()) {
+            return buffer;
+        }
+        final ShortBuffer bigger = allocateShorts(Math.max(shorts, buffer.capacity() * 2));
+        buffer.position(0);
+        bigger.put(buffer);
+        return bigger;
+    }
+
+    static private FloatBuffer allocateFloats(int floats) {
+        return ByteBuffer.allocateDirect(floats * IShape.BYTES_PER_FLOAT).order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+    }
+
+    static private ShortBuffer allocateShorts(int shorts) {
+        return ByteBuffer.allocateDirect(shorts * IndexedMesh.BYTES_PER_INDEX).order(ByteOrder.nativeOrder())
+                .asShortBuffer();
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2015 Fabien Caylus <toutjuste13@gmail.com>
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.tjdev.commonvrlibrary.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * An uncompressed texture (RGBA, 4 bytes per pixel) with all its mipmap levels (only the first one
+ * if its size isn't a power of two).
+ * Levels are computed from pixels with generate() on any thread, so the GL thread only has to
+ * upload them with TextureHelper.loadTexture() (instead of calling glGenerateMipmap()).
+ */
+public class MipChain {
+
+    // Size of the first level
+    public final int width;
+    public final int height;
+
+    // RGBA pixels of each level, from the full size to 1x1
+    public final ByteBuffer[] levels;
+
+    public MipChain(int width, int height, ByteBuffer[] levels) {
+        this.width = width;
+        this.height = height;
+        this.levels = levels;
+    }
+
+    // Compute all levels of the pixels (ARGB, row after row)
+    static public MipChain generate(int[] pixels, int width, int height) {
+        ByteBuffer[] levels = new ByteBuffer[getLevelsNumber(width, height)];
+
+        int[] levelPixels = pixels;
+        for (int level = 0; level < levels.length; ++level) {
+            if (level > 0) {
+                levelPixels = downsample(levelPixels, getLevelSize(width, level - 1), getLevelSize(height, level - 1));
+            }
+            levels[level] = toRGBA(levelPixels);
+        }
+
+        return new MipChain(width, height, levels);
+    }
+
+    // Return the number of mipmap levels of a texture (down to 1x1).
+    // OpenGL ES 2 only mipmaps textures with power of two sizes, other textures have one level.
+    static public int getLevelsNumber(int width, int height) {
+        if (!isPowerOfTwo(width) || !isPowerOfTwo(height)) {
+            return 1;
+        }
+        return 32 - Integer.numberOfLeadingZeros(Math.max(width, height));
+    }
+
+    static public boolean isPowerOfTwo(int size) {
+        return size > 0 && (size & (size - 1)) == 0;
+    }
+
+    // Return the size of a mipmap level (the same for the width and the height)
+    static public int getLevelSize(int size, int level) {
+        return Math.max(1, size >> level);
+    }
+
+    // Return the next mipmap level of the pixels, each pixel is the average of 2x2 pixels (box filter)
+    static public int[] downsample(int[] pixels, int width, int height) {
+        final int newWidth = Math.max(1, width / 2);
+        final int newHeight = Math.max(1, height / 2);
+        int[] result = new int[newWidth * newHeight];
+
+        for (int y = 0; y < newHeight; ++y) {
+            // Use the same row / column twice when the size is 1
+            final int row0 = Math.min(y * 2, height - 1) * width;
+            final int row1 = Math.min(y * 2 + 1, height - 1) * width;
+            for (int x = 0; x < newWidth; ++x) {
+                final int x0 = Math.min(x * 2, width - 1);
+                final int x1 = Math.min(x * 2 + 1, width - 1);
+                result[y * newWidth + x] = average(pixels[row0 + x0], pixels[row0 + x1],
+                        pixels[row1 + x0], pixels[row1 + x1]);
+            }
+        }
+        return result;
+    }
+
+    // Convert ARGB pixels in a direct buffer of RGBA bytes (the format of glTexImage2D())
+    static public ByteBuffer toRGBA(int[] pixels) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(pixels.length * 4).order(ByteOrder.BIG_ENDIAN);
+        for (int i = 0; i < pixels.length; ++i) {
+            buffer.putInt(i * 4, (pixels[i] << 8) | (pixels[i] >>> 24));
+        }
+        return buffer;
+    }
+
+    // Average of each channel of 4 ARGB colors
+    static private int average(int c0, int c1, int c2, int c3) {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 8) {
+            final int sum = ((c0 >>> shift) & 0xFF) + ((c1 >>> shift) & 0xFF)
+                    + ((c2 >>> shift) & 0xFF) + ((c3 >>> shift) & 0xFF);
+            result |= ((sum + 2) / 4) << shift;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2015 Fabien Caylus <toutjuste13@gmail.com>
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.tjdev.commonvrlibrary.util;
+
+import java.util.Arrays;
+
+/**
+ * Draws of a frame, sorted by a 64-bit key before being executed.
+ * From the high bits, the key contains: the layer, the program, the texture, material flags,
+ * the quantized depth and the index of the draw. So draws are grouped by state (to reduce state changes),
+ * and drawn from the front to the back in each group (to reject hidden fragments early).
+ * Each draw has a payload (defined by the renderer) telling what to draw.
+ * Arrays are kept between frames: nothing is allocated once the queue is big enough.
+ */
+public class RenderQueue {
+
+    // Number of bits of each part of keys
+    static public final int LAYER_BITS = 4;
+    static public final int PROGRAM_BITS = 4;
+    static public final int TEXTURE_BITS = 8;
+    static public final int FLAGS_BITS = 4;
+    static public final int DEPTH_BITS = 24;
+    static public final int INDEX_BITS = 20;
+
+    // Maximum number of draws in a frame
+    static public final int MAX_DRAWS = 1 << INDEX_BITS;
+
+    static private final int DEPTH_SHIFT = INDEX_BITS;
+    static private final int FLAGS_SHIFT = DEPTH_SHIFT + DEPTH_BITS;
+    static private final int TEXTURE_SHIFT = FLAGS_SHIFT + FLAGS_BITS;
+    static private final int PROGRAM_SHIFT = TEXTURE_SHIFT + TEXTURE_BITS;
+    static private final int LAYER_SHIFT = PROGRAM_SHIFT + PROGRAM_BITS;
+    static private final int MAX_DEPTH = (1 << DEPTH_BITS) - 1;
+
+    // Keys are sorted 8 bits at a time
+    static private final int RADIX_BITS = 8;
+    static private final int RADIX_PASSES = 64 / RADIX_BITS;
+
+    protected final float mMaxDepth;
+
+    protected long[] mKeys;
+    protected long[] mSortedKeys;
+    protected int[] mPayloads;
+    protected int mSize;
+    protected final int[] mCounts = new int[1 << RADIX_BITS];
+
+    /**
+     * Depths are quantized between 0 and maxDepth (farther draws have the same depth).
+     */
+    public RenderQueue(int capacity, float maxDepth) {
+        mMaxDepth = maxDepth;
+        mKeys = new long[capacity];
+        mSortedKeys = new long[capacity];
+        mPayloads = new int[capacity];
+    }
+
+    public void clear() {
+        mSize = 0;
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * Add a draw. Layers, programs, textures and flags are small indexes chosen by the renderer
+     * (they must fit in their number of bits), lower values are drawn first.
+     */
+    public void add(int layer, int program, int texture, int flags, float depth, int payload) {
+        if (mSize == MAX_DRAWS) {
+            throw new RuntimeException("Too many draws in the render queue");
+        }
+        if (mSize == mKeys.length) {
+            final int capacity = Math.min(Math.max(mSize * 2, 16), MAX_DRAWS);
+            mKeys = Arrays.copyOf(mKeys, capacity);
+            mSortedKeys = new long[capacity];
+            mPayloads = Arrays.copyOf(mPayloads, capacity);
+        }
+
+        final long quantizedDepth = (long) (Math.min(Math.max(depth / mMaxDepth, 0.0f), 1.0f) * MAX_DEPTH);
+        mKeys[mSize] = ((long) layer << LAYER_SHIFT) | ((long) program << PROGRAM_SHIFT)
+                | ((long) texture << TEXTURE_SHIFT) | ((long) flags << FLAGS_SHIFT)
+                | (quantizedDepth << DEPTH_SHIFT) | mSize;
+        mPayloads[mSize] = payload;
+        mSize++;
+    }
+
+    /**
+     * Sort draws by key with a radix sort (least significant digit first).
+     * Passes on digits that are the same for all keys are skipped.
+     */
+    public void sort() {
+        long[] keys = mKeys;
+        long[] sorted = mSortedKeys;
+        for (int pass = 0; pass < RADIX_PASSES; ++pass) {
+            final int shift = pass * RADIX_BITS;
+            Arrays.fill(mCounts, 0);
+            for (int i = 0; i < mSize; ++i) {
+                mCounts[(int) (keys[i] >>> shift) & 0xFF]++;
+            }
+            if (mSize == 0 || mCounts[(int) (keys[0] >>> shift) & 0xFF] == mSize) {
+                continue;
+            }
+
+            // Start of each bucket
+            int start = 0;
+            for (int digit = 0; digit < mCounts.length; ++digit) {
+                final int count = mCounts[digit];
+                mCounts[digit] = start;
+                start += count;
+            }
+            for (int i = 0; i < mSize; ++i) {
+                sorted[mCounts[(int) (keys[i] >>> shift) & 0xFF]++] = keys[i];
+            }
+
+            final long[] swap = keys;
+            keys = sorted;
+            sorted = swap;
+        }
+        mKeys = keys;
+        mSortedKeys = sorted;
+    }
+
+    // Return the payload of the draw at this position (in the order of keys once sorted)
+    public int getPayload(int position) {
+        return mPayloads[(int) mKeys[position] & (MAX_DRAWS - 1)];
+    }
+}
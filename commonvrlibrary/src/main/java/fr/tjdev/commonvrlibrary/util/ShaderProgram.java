@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2015 Fabien Caylus <toutjuste13@gmail.com>
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.tjdev.commonvrlibrary.util;
+
+import android.opengl.GLES20;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A linked program with the locations of its attributes and uniforms, resolved once when it's created.
+ * Uniforms remember the last uploaded value, so setting the same value again doesn't call OpenGL.
+ * Uniforms are set on the program in use: call use() before setting them.
+ * Like GLStateCache, setters can be recorded in a CommandList (see startRecording()).
+ */
+public class ShaderProgram {
+
+    /**
+     * A uniform of the program. Setters skip the upload when the value is the same as the last one
+     * (except for matrices, which change for almost each draw).
+     * Uniforms removed by the compiler (location -1) are ignored.
+     */
+    static public class Uniform {
+        public final int location;
+
+        // Last uploaded value (floats and ints are stored in the same array)
+        protected final float[] mValue = new float[4];
+        protected boolean mValueKnown;
+        // Setters are added to this list instead of being issued (null when not recording)
+        protected CommandList mRecorder;
+
+        Uniform(int location) {
+            this.location = location;
+        }
+
+        public void set1f(float x) {
+            if (!changed(x, 0.0f, 0.0f, 0.0f)) {
+                return;
+            }
+            if (mRecorder != null) {
+                mRecorder.uniform1f(location, x);
+            } else {
+                GLES20.glUniform1f(location, x);
+            }
+        }
+
+        // Used for samplers (the texture unit)
+        public void set1i(int x) {
+            if (!changed(x, 0.0f, 0.0f, 0.0f)) {
+                return;
+            }
+            if (mRecorder != null) {
+                mRecorder.uniform1i(location, x);
+            } else {
+                GLES20.glUniform1i(location, x);
+            }
+        }
+
+        public void set3f(float x, float y, float z) {
+            if (!changed(x, y, z, 0.0f)) {
+                return;
+            }
+            if (mRecorder != null) {
+                mRecorder.uniform3f(location, x, y, z);
+            } else {
+                GLES20.glUniform3f(location, x, y, z);
+            }
+        }
+
+        // Set a vec4 from 4 values of the array
+        public void set4fv(float[] values, int offset) {
+            if (!changed(values[offset], values[offset + 1], values[offset + 2], values[offset + 3])) {
+                return;
+            }
+            if (mRecorder != null) {
+                mRecorder.uniform4fv(location, values, offset);
+            } else {
+                GLES20.glUniform4fv(location, 1, values, offset);
+            }
+        }
+
+        // Matrices are always uploaded (and never recorded: they depend on the eye, see CommandList.eyeMatrices())
+        public void setMatrix4fv(float[] matrix, int offset) {
+            if (location < 0) {
+                return;
+            }
+            GLES20.glUniformMatrix4fv(location, 1, false, matrix, offset);
+        }
+
+        // Forget the last value, the next one is always uploaded
+        public void invalidate() {
+            mValueKnown = false;
+        }
+
+        // Store the value and return true if it must be uploaded
+        protected boolean changed(float x, float y, float z, float w) {
+            if (location < 0 || (mValueKnown && mValue[0] == x && mValue[1] == y && mValue[2] == z
+                    && mValue[3] == w)) {
+                return false;
+            }
+            mValue[0] = x;
+            mValue[1] = y;
+            mValue[2] = z;
+            mValue[3] = w;
+            mValueKnown = true;
+            return true;
+        }
+    }
+
+    public final int handle;
+
+    protected final HashMap<String, Integer> mAttributes = new HashMap<>();
+    protected final HashMap<String, Uniform> mUniforms = new HashMap<>();
+    // The same uniforms, iterated without allocation
+    protected final Uniform[] mUniformList;
+
+    /**
+     * Compile and link the program. Attributes are bound to their index in the array.
+     * Locations of attributes and uniforms are resolved here, so they can be used for each draw
+     * without asking OpenGL.
+     */
+    public ShaderProgram(String vertexShader, String fragmentShader, String[] attributes, String[] uniforms) {
+        final int vertexShaderHandle = ShaderHelper.compileShader(GLES20.GL_VERTEX_SHADER, vertexShader);
+        final int fragmentShaderHandle = ShaderHelper.compileShader(GLES20.GL_FRAGMENT_SHADER, fragmentShader);
+        handle = ShaderHelper.createAndLinkProgram(vertexShaderHandle, fragmentShaderHandle, attributes);
+
+        for (String attribute : attributes) {
+            mAttributes.put(attribute, GLES20.glGetAttribLocation(handle, attribute));
+        }
+        mUniformList = new Uniform[uniforms.length];
+        for (int i = 0; i < uniforms.length; ++i) {
+            mUniformList[i] = new Uniform(GLES20.glGetUniformLocation(handle, uniforms[i]));
+            mUniforms.put(uniforms[i], mUniformList[i]);
+        }
+    }
+
+    public void use() {
+        GLES20.glUseProgram(handle);
+    }
+
+    /**
+     * Record next setters of all uniforms in the list. Last values are forgotten first,
+     * so the list sets all the uniforms it uses.
+     */
+    public void startRecording(CommandList list) {
+        for (int i = 0; i < mUniformList.length; ++i) {
+            mUniformList[i].invalidate();
+            mUniformList[i].mRecorder = list;
+        }
+    }
+
+    public void stopRecording() {
+        for (int i = 0; i < mUniformList.length; ++i) {
+            mUniformList[i].mRecorder = null;
+        }
+    }
+
+    // Return the location of an attribute passed to the constructor
+    public int getAttribute(String name) {
+        final Integer location = mAttributes.get(name);
+        if (location == null) {
+            throw new RuntimeException("Unknown attribute: " + name);
+        }
+        return location;
+    }
+
+    // Return a uniform passed to the constructor
+    public Uniform getUniform(String name) {
+        final Uniform uniform = mUniforms.get(name);
+        if (uniform == null) {
+            throw new RuntimeException("Unknown uniform: " + name + ", known: "
+                    + Arrays.toString(mUniforms.keySet().toArray()));
+        }
+        return uniform;
+    }
+}
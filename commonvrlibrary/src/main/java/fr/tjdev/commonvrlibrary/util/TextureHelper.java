@@ -37,9 +37,12 @@ package fr.tjdev.commonvrlibrary.util;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.opengl.ETC1;
 import android.opengl.GLES20;
 import android.opengl.GLUtils;
 
+import java.nio.ByteBuffer;
+
 public class TextureHelper {
 
     public static int loadTexture(final Context context, final int resourceId, boolean recycleBitmap) {
@@ -50,32 +53,99 @@ public class TextureHelper {
     }
 
     public static int loadTexture(Bitmap bitmap, boolean recycleBitmap) {
-        final int[] textureHandle = new int[1];
+        final int textureHandle = createTexture(false);
 
-        GLES20.glGenTextures(1, textureHandle, 0);
+        // Load the bitmap into the bound texture.
+        GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
+
+        // Recycle the bitmap, since its data has been loaded into OpenGL.
+        if (recycleBitmap) {
+            bitmap.recycle();
+        }
+
+        return textureHandle;
+    }
+
+    // Load a texture from raw pixels, in RGBA format (4 bytes per pixel).
+    // The buffer can be a direct or mapped buffer, it's passed to OpenGL without any copy.
+    public static int loadTexture(ByteBuffer pixels, int width, int height) {
+        final int textureHandle = createTexture(false);
+
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, pixels);
+
+        return textureHandle;
+    }
+
+    // Load an uncompressed texture with all its mipmap levels (glGenerateMipmap() must not be called).
+    // Levels are only copied, they must be computed before (see MipChain.generate()).
+    // Levels bigger than maxSize (GL_MAX_TEXTURE_SIZE) are skipped, the next one is used as the first level.
+    public static int loadTexture(MipChain texture, int maxSize) {
+        final int firstLevel = getFirstLevel(texture.width, texture.height, texture.levels.length, maxSize);
+        final int textureHandle = createTexture(firstLevel < texture.levels.length - 1);
+
+        for (int level = firstLevel; level < texture.levels.length; ++level) {
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, level - firstLevel, GLES20.GL_RGBA,
+                    MipChain.getLevelSize(texture.width, level),
+                    MipChain.getLevelSize(texture.height, level), 0,
+                    GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, texture.levels[level]);
+        }
 
-        if (textureHandle[0] != 0) {
+        return textureHandle;
+    }
 
-            // Bind to the texture in OpenGL
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureHandle[0]);
+    // Load an ETC1 texture with all its mipmap levels (glGenerateMipmap() must not be called).
+    // Levels bigger than maxSize are skipped, like uncompressed textures.
+    public static int loadCompressedTexture(CompressedTexture texture, int maxSize) {
+        final int firstLevel = getFirstLevel(texture.width, texture.height, texture.levels.length, maxSize);
+        final int textureHandle = createTexture(firstLevel < texture.levels.length - 1);
 
-            // Set filtering
-            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
-            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+        for (int level = firstLevel; level < texture.levels.length; ++level) {
+            GLES20.glCompressedTexImage2D(GLES20.GL_TEXTURE_2D, level - firstLevel, ETC1.ETC1_RGB8_OES,
+                    MipChain.getLevelSize(texture.width, level),
+                    MipChain.getLevelSize(texture.height, level), 0,
+                    texture.levels[level].remaining(), texture.levels[level]);
+        }
 
-            // Load the bitmap into the bound texture.
-            GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
+        return textureHandle;
+    }
 
-            // Recycle the bitmap, since its data has been loaded into OpenGL.
-            if (recycleBitmap) {
-                bitmap.recycle();
-            }
+    // Return the maximum width and height of textures on this device (GL_MAX_TEXTURE_SIZE)
+    public static int getMaxTextureSize() {
+        final int[] maxSize = new int[1];
+        GLES20.glGetIntegerv(GLES20.GL_MAX_TEXTURE_SIZE, maxSize, 0);
+        return maxSize[0];
+    }
+
+    // Return the first mipmap level not bigger than maxSize (the last one if none fits)
+    static int getFirstLevel(int width, int height, int levelsNumber, int maxSize) {
+        int level = 0;
+        while (level < levelsNumber - 1
+                && Math.max(MipChain.getLevelSize(width, level), MipChain.getLevelSize(height, level)) > maxSize) {
+            ++level;
         }
+        return level;
+    }
+
+    // Create a new texture and bind it. Mipmapped textures use the nearest level when they are minified
+    // (far windows don't shimmer), all levels must then be uploaded.
+    private static int createTexture(boolean mipmapped) {
+        final int[] textureHandle = new int[1];
+
+        GLES20.glGenTextures(1, textureHandle, 0);
 
         if (textureHandle[0] == 0) {
             throw new RuntimeException("Error loading texture.");
         }
 
+        // Bind to the texture in OpenGL
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureHandle[0]);
+
+        // Set filtering
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
+                mipmapped ? GLES20.GL_LINEAR_MIPMAP_NEAREST : GLES20.GL_NEAREST);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+
         return textureHandle[0];
     }
 }
\ No newline at end of file
@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2015 Fabien Caylus <toutjuste13@gmail.com>
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.tjdev.commonvrlibrary.util;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Encoded images are decoded with a small reference decoder (written from the ETC1 specification,
+ * independently of the encoder) and compared to the original pixels.
+ */
+public class ETC1EncoderTest {
+
+    // Modifiers of each table, for pixel indices (msb, lsb) 00, 01, 10 and 11
+    static private final int[][] MODIFIERS = {
+            {2, 8, -2, -8}, {5, 17, -5, -17}, {9, 29, -9, -29}, {13, 42, -13, -42},
+            {18, 60, -18, -60}, {24, 80, -24, -80}, {33, 106, -33, -106}, {47, 183, -47, -183}
+    };
+
+    static private final int RED = 0xFFFF0000;
+    static private final int BLUE = 0xFF0000FF;
+
+    // Minimal quality of a generated atlas of windows
+    static private final double MIN_ATLAS_PSNR = 40.0;
+
+    @Test
+    public void encodedDataSize() {
+        assertEquals(8, ETC1Encoder.getEncodedDataSize(1, 1));
+        assertEquals(8, ETC1Encoder.getEncodedDataSize(4, 4));
+        assertEquals(16, ETC1Encoder.getEncodedDataSize(5, 3));
+        assertEquals(48, ETC1Encoder.getEncodedDataSize(6, 9));
+        assertEquals(32 * 16 * 8, ETC1Encoder.getEncodedDataSize(128, 64));
+
+        for (int[] size : new int[][]{{1, 1}, {2, 1}, {3, 7}, {6, 5}, {128, 64}}) {
+            final ByteBuffer encoded = new ETC1Encoder().encodeImage(new int[size[0] * size[1]], size[0], size[1]);
+            assertEquals(ETC1Encoder.getEncodedDataSize(size[0], size[1]), encoded.capacity());
+            assertEquals(0, encoded.position());
+        }
+    }
+
+    // Two subblocks side by side with very different colors: individual mode, no flip.
+    // Pure colors can't be exact: the same modifier is added to all channels.
+    @Test
+    public void individualModeWithoutFlip() {
+        final int[] pixels = new int[16];
+        for (int i = 0; i < 16; ++i) {
+            pixels[i] = (i % 4) < 2 ? RED : BLUE;
+        }
+        final long block = encodeBlock(pixels);
+
+        assertEquals(0, getDiffBit(block));
+        assertEquals(0, getFlipBit(block));
+        // 4 bits per color: red then blue
+        assertEquals(0xF0, (block >>> 56) & 0xFF);
+        assertEquals(0x00, (block >>> 48) & 0xFF);
+        assertEquals(0x0F, (block >>> 40) & 0xFF);
+        assertBlockClose(pixels, decodeBlock(block), 2);
+    }
+
+    // Two subblocks on top of each other: the flip bit is set
+    @Test
+    public void individualModeWithFlip() {
+        final int[] pixels = new int[16];
+        for (int i = 0; i < 16; ++i) {
+            pixels[i] = i < 8 ? RED : BLUE;
+        }
+        final long block = encodeBlock(pixels);
+
+        assertEquals(0, getDiffBit(block));
+        assertEquals(1, getFlipBit(block));
+        assertBlockClose(pixels, decodeBlock(block), 2);
+    }
+
+    // Close colors use the differential mode (5 bits per color and a 3 bits difference)
+    @Test
+    public void differentialMode() {
+        final int[] pixels = new int[16];
+        Arrays.fill(pixels, 0xFF808080);
+        long block = encodeBlock(pixels);
+        assertEquals(1, getDiffBit(block));
+        // The same color in both subblocks: all differences are 0
+        for (int c = 0; c < 3; ++c) {
+            assertEquals(0, (block >>> (56 - c * 8)) & 7);
+        }
+        assertBlockClose(pixels, decodeBlock(block), 4);
+
+        for (int i = 0; i < 16; ++i) {
+            pixels[i] = (i % 4) < 2 ? 0xFF606060 : 0xFF707070;
+        }
+        block = encodeBlock(pixels);
+        assertEquals(1, getDiffBit(block));
+        assertEquals(0, getFlipBit(block));
+        assertBlockClose(pixels, decodeBlock(block), 4);
+    }
+
+    // Pixels outside of the image repeat the last row and column, visible pixels are kept
+    @Test
+    public void sizesNotMultipleOfFour() {
+        final Random rand = new Random(11);
+        for (int[] size : new int[][]{{1, 1}, {2, 1}, {1, 2}, {3, 3}, {6, 5}, {13, 7}}) {
+            final int width = size[0];
+            final int height = size[1];
+            final int[] pixels = new int[width * height];
+            // Smooth colors, so the error only depends on the handling of the borders
+            final int base = rand.nextInt(0xFFFFFF);
+            for (int y = 0; y < height; ++y) {
+                for (int x = 0; x < width; ++x) {
+                    pixels[y * width + x] = 0xFF000000 | addToChannels(base, (x + y) * 2);
+                }
+            }
+
+            final ByteBuffer encoded = new ETC1Encoder().encodeImage(pixels, width, height);
+            assertTrue(Integer.toString(width) + "x" + Integer.toString(height),
+                    computePSNR(pixels, decode(encoded, width, height)) > 30.0);
+            // The same image in RGBA bytes (a level of a MipChain)
+            assertEquals(encoded, new ETC1Encoder().encodeImage(MipChain.toRGBA(pixels), width, height));
+        }
+    }
+
+    @Test
+    public void atlasQuality() {
+        final int width = 512;
+        final int height = 384;
+        final int[] pixels = generateAtlas(width, height);
+
+        final ETC1Encoder encoder = new ETC1Encoder();
+        final ByteBuffer encoded = encoder.encodeImage(pixels, width, height);
+        final double psnr = computePSNR(pixels, decode(encoded, width, height));
+        System.out.println("Atlas of " + Integer.toString(width) + "x" + Integer.toString(height)
+                + " encoded at " + String.format("%.1f", psnr) + " dB");
+        assertTrue(psnr > MIN_ATLAS_PSNR);
+
+        // Blocks reused from the cache of the encoder give the same result
+        assertEquals(encoded, encoder.encodeImage(pixels, width, height));
+        assertEquals(encoded, new ETC1Encoder().encodeImage(pixels, width, height));
+    }
+
+    // Windows of 8x12 pixels (transparent borders) with random greys, mostly dark like window textures
+    // of RandCity. The bottom is empty like the space left after the last shelf of the atlas.
+    static private int[] generateAtlas(int width, int height) {
+        final int[] greys = {20, 20, 20, 20, 50, 100, 150, 255};
+        final Random rand = new Random(42);
+        final int[] pixels = new int[width * height];
+        for (int top = 0; top + 12 <= height * 3 / 4; top += 12) {
+            for (int left = 0; left + 8 <= width; left += 8) {
+                final int grey = greys[rand.nextInt(greys.length)];
+                final int color = 0xFF000000 | (grey << 16) | (grey << 8) | grey;
+                for (int y = top + 1; y < top + 11; ++y) {
+                    Arrays.fill(pixels, y * width + left + 1, y * width + left + 7, color);
+                }
+            }
+        }
+        return pixels;
+    }
+
+    static private long encodeBlock(int[] pixels) {
+        return new ETC1Encoder().encodeImage(pixels, 4, 4).order(ByteOrder.BIG_ENDIAN).getLong(0);
+    }
+
+    static private int getDiffBit(long block) {
+        return (int) (block >>> 33) & 1;
+    }
+
+    static private int getFlipBit(long block) {
+        return (int) (block >>> 32) & 1;
+    }
+
+    static private void assertBlockClose(int[] expected, int[] actual, int tolerance) {
+        for (int i = 0; i < 16; ++i) {
+            for (int shift = 0; shift < 24; shift += 8) {
+                final int difference = ((expected[i] >> shift) & 0xFF) - ((actual[i] >> shift) & 0xFF);
+                assertTrue("Pixel " + Integer.toString(i), Math.abs(difference) <= tolerance);
+            }
+        }
+    }
+
+    // Decode an image, return RGB pixels (0xRRGGBB)
+    static private int[] decode(ByteBuffer encoded, int width, int height) {
+        final ByteBuffer data = encoded.duplicate().order(ByteOrder.BIG_ENDIAN);
+        final int blocksPerRow = (width + 3) / 4;
+        final int[] pixels = new int[width * height];
+        for (int blockY = 0; blockY < height; blockY += 4) {
+            for (int blockX = 0; blockX < width; blockX += 4) {
+                final int[] block = decodeBlock(data.getLong(((blockY / 4) * blocksPerRow + blockX / 4) * 8));
+                for (int y = blockY; y < Math.min(blockY + 4, height); ++y) {
+                    for (int x = blockX; x < Math.min(blockX + 4, width); ++x) {
+                        pixels[y * width + x] = block[(y - blockY) * 4 + x - blockX];
+                    }
+                }
+            }
+        }
+        return pixels;
+    }
+
+    // Decode a block (the first byte in the highest bits), return its RGB pixels (y * 4 + x)
+    static private int[] decodeBlock(long block) {
+        final boolean differential = getDiffBit(block) == 1;
+        final boolean flip = getFlipBit(block) == 1;
+
+        final int[][] baseColors = new int[2][3];
+        for (int c = 0; c < 3; ++c) {
+            final int value = (int) (block >>> (56 - c * 8)) & 0xFF;
+            if (differential) {
+                final int first = value >> 3;
+                // Signed 3 bits difference
+                final int delta = (value & 3) - (value & 4);
+                baseColors[0][c] = extend5(first);
+                baseColors[1][c] = extend5(first + delta);
+            } else {
+                baseColors[0][c] = (value >> 4) * 17;
+                baseColors[1][c] = (value & 0xF) * 17;
+            }
+        }
+        final int[] tables = {(int) (block >>> 37) & 7, (int) (block >>> 34) & 7};
+
+        final int[] pixels = new int[16];
+        for (int y = 0; y < 4; ++y) {
+            for (int x = 0; x < 4; ++x) {
+                final int sub = flip ? y / 2 : x / 2;
+                // Pixel indices are stored column after column
+                final int bit = x * 4 + y;
+                final int index = (int) (((block >>> (16 + bit)) & 1) << 1 | ((block >>> bit) & 1));
+                final int modifier = MODIFIERS[tables[sub]][index];
+                int color = 0;
+                for (int c = 0; c < 3; ++c) {
+                    color = (color << 8) | Math.max(0, Math.min(255, baseColors[sub][c] + modifier));
+                }
+                pixels[y * 4 + x] = color;
+            }
+        }
+        return pixels;
+    }
+
+    static private int extend5(int value) {
+        return (value << 3) | (value >> 2);
+    }
+
+    // Add a value to the red, green and blue channels (clamped)
+    static private int addToChannels(int color, int value) {
+        int result = 0;
+        for (int shift = 16; shift >= 0; shift -= 8) {
+            result = (result << 8) | Math.min(255, ((color >> shift) & 0xFF) + value);
+        }
+        return result;
+    }
+
+    // Peak signal-to-noise ratio of the RGB channels (the alpha is ignored by ETC1)
+    static private double computePSNR(int[] expected, int[] actual) {
+        double error = 0.0;
+        for (int i = 0; i < expected.length; ++i) {
+            for (int shift = 0; shift < 24; shift += 8) {
+                final int difference = ((expected[i] >> shift) & 0xFF) - ((actual[i] >> shift) & 0xFF);
+                error += difference * difference;
+            }
+        }
+        final double meanError = error / (expected.length * 3);
+        return meanError == 0.0 ? Double.POSITIVE_INFINITY : 10.0 * Math.log10(255.0 * 255.0 / meanError);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2015 Fabien Caylus <toutjuste13@gmail.com>
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.tjdev.commonvrlibrary.util;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class MipChainTest {
+
+    @Test
+    public void levelSizes() {
+        assertEquals(1, MipChain.getLevelsNumber(1, 1));
+        assertEquals(3, MipChain.getLevelsNumber(4, 4));
+        assertEquals(13, MipChain.getLevelsNumber(4096, 2048));
+        assertEquals(5, MipChain.getLevelsNumber(2, 16));
+        // Sizes which aren't powers of two can't be mipmapped
+        assertEquals(1, MipChain.getLevelsNumber(4096, 1968));
+        assertEquals(1, MipChain.getLevelsNumber(3, 16));
+
+        assertEquals(4096, MipChain.getLevelSize(4096, 0));
+        assertEquals(123, MipChain.getLevelSize(1968, 4));
+        assertEquals(1, MipChain.getLevelSize(1968, 12));
+    }
+
+    // Each pixel is the average of 2x2 pixels, on each channel (with the alpha), rounded to the nearest
+    @Test
+    public void downsampleAveragesBlocks() {
+        final int[] pixels = {
+                0xFF000000, 0xFF040404, 0x00102030, 0x00102030,
+                0xFF080808, 0xFF0C0C0C, 0x00102030, 0x00102030,
+                0x80FF0000, 0x8000FF00, 0x00000001, 0x00000001,
+                0x800000FF, 0x80000000, 0x00000002, 0x00000001
+        };
+        assertArrayEquals(new int[]{0xFF060606, 0x00102030, 0x80404040, 0x00000001},
+                MipChain.downsample(pixels, 4, 4));
+    }
+
+    // The last row / column is used twice when a size is 1, an odd one loses its last row / column
+    @Test
+    public void downsampleOddSizes() {
+        assertArrayEquals(new int[]{0x00000002, 0x0000000A}, MipChain.downsample(new int[]{
+                0x00000000, 0x00000004, 0x00000008, 0x0000000C, 0x00000010}, 5, 1));
+        assertArrayEquals(new int[]{0x00000004}, MipChain.downsample(new int[]{
+                0x00000000, 0x00000008}, 1, 2));
+        assertArrayEquals(new int[]{0x00000003}, MipChain.downsample(new int[]{
+                0x00000000, 0x00000002, 0x000000FF,
+                0x00000004, 0x00000006, 0x000000FF,
+                0x000000FF, 0x000000FF, 0x000000FF}, 3, 3));
+        assertArrayEquals(new int[]{0x12345678}, MipChain.downsample(new int[]{0x12345678}, 1, 1));
+    }
+
+    // All levels down to 1x1, in RGBA bytes
+    @Test
+    public void generateAllLevels() {
+        final int[] pixels = new int[8 * 2];
+        for (int i = 0; i < pixels.length; ++i) {
+            pixels[i] = 0x80102030;
+        }
+        final MipChain chain = MipChain.generate(pixels, 8, 2);
+
+        assertEquals(4, chain.levels.length);
+        for (int level = 0; level < chain.levels.length; ++level) {
+            final ByteBuffer bytes = chain.levels[level];
+            assertEquals(MipChain.getLevelSize(8, level) * MipChain.getLevelSize(2, level) * 4, bytes.capacity());
+            assertEquals(0x10, bytes.get(0));
+            assertEquals(0x20, bytes.get(1));
+            assertEquals(0x30, bytes.get(2));
+            assertEquals((byte) 0x80, bytes.get(3));
+        }
+    }
+
+    // Only the first level when the size isn't a power of two
+    @Test
+    public void generateNotPowerOfTwo() {
+        final MipChain chain = MipChain.generate(new int[6 * 4], 6, 4);
+        assertEquals(1, chain.levels.length);
+        assertEquals(6 * 4 * 4, chain.levels[0].capacity());
+    }
+}